@@ -0,0 +1,23 @@
+# Rules for minified builds, on top of proguard-android.txt.
+
+# Messages are read and written by field name, in declaration order, and
+# are created through their nullary constructor; all of it by reflection.
+-keepattributes *Annotation*,Signature,InnerClasses,EnclosingMethod
+-keep class * extends com.jilk.ros.message.Message {
+    public <fields>;
+    <init>();
+}
+-keep @interface com.jilk.ros.message.MessageType
+-keep @interface com.jilk.ros.rosbridge.indication.*
+
+# The codecs the annotation processor generates are found by name, as the
+# message class name plus $$Codec; without these they are stripped or
+# renamed and every message falls back to reflection.
+-keep class **$$Codec {
+    <init>();
+}
+
+# ROSBridgeWebSocketClient closes the socket through this private field
+-keepclassmembers class org.java_websocket.client.WebSocketClient {
+    private java.nio.channels.SocketChannel channel;
+}
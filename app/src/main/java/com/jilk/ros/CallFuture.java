@@ -0,0 +1,300 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// The result of a call that has not finished yet, such as an asynchronous
+//    service call. It can be waited on like any Future, or given callbacks,
+//    and chained: thenApply transforms the result, and thenCompose starts
+//    another call with it, so a sequence of calls runs without a thread
+//    waiting on each. (CompletableFuture would do, but is not available on
+//    the Android versions this library supports.)
+//
+//    Callbacks and chained steps run on the thread that completes the future,
+//    which for a service call is the one that delivers responses, so they
+//    should be quick and must not block waiting for another call.
+
+public class CallFuture<T> implements Future<T> {
+    public interface Callback<T> {
+        public void onSuccess(T result);
+        public void onFailure(Throwable error);
+    }
+
+    public interface Function<A, B> {
+        public B apply(A a) throws Exception;
+    }
+
+    public interface AsyncFunction<A, B> {
+        public CallFuture<B> apply(A a) throws Exception;
+    }
+
+    private T result;
+    private Throwable error;
+    private boolean done;
+    private boolean cancelled;
+    private List<Callback<? super T>> callbacks;
+    private Runnable canceller;
+
+    public CallFuture() {}
+
+    public static <T> CallFuture<T> completed(T result) {
+        CallFuture<T> future = new CallFuture<T>();
+        future.complete(result);
+        return future;
+    }
+
+    // Run when the future is cancelled, e.g. to cancel the call behind it
+    void setCanceller(Runnable canceller) {
+        boolean run;
+        synchronized (this) {
+            this.canceller = canceller;
+            run = cancelled;
+        }
+        if (run)
+            canceller.run();
+    }
+
+    // Returns false if the future was already done
+    public boolean complete(T result) {
+        return finish(result, null, false);
+    }
+
+    public boolean fail(Throwable error) {
+        return finish(null, error, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!finish(null, new CancellationException(), true))
+            return false;
+        Runnable c;
+        synchronized (this) {
+            c = canceller;
+        }
+        if (c != null)
+            c.run();
+        return true;
+    }
+
+    private boolean finish(T result, Throwable error, boolean cancel) {
+        List<Callback<? super T>> toRun;
+        synchronized (this) {
+            if (done)
+                return false;
+            this.result = result;
+            this.error = error;
+            this.cancelled = cancel;
+            done = true;
+            toRun = callbacks;
+            callbacks = null;
+            notifyAll();
+        }
+        if (toRun != null)
+            for (Callback<? super T> callback : toRun)
+                run(callback);
+        return true;
+    }
+
+    private void run(Callback<? super T> callback) {
+        try {
+            if (error == null)
+                callback.onSuccess(result);
+            else callback.onFailure(error);
+        }
+        catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // Runs now if the future is done already
+    public void addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (!done) {
+                if (callbacks == null)
+                    callbacks = new ArrayList<Callback<? super T>>(2);
+                callbacks.add(callback);
+                return;
+            }
+        }
+        run(callback);
+    }
+
+    // A future for f applied to this one's result. A failure here, or in f,
+    //    fails it; cancelling it cancels this one.
+    public <U> CallFuture<U> thenApply(final Function<? super T, ? extends U> f) {
+        final CallFuture<U> next = new CallFuture<U>();
+        next.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                cancel(true);
+            }
+        });
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                try {
+                    next.complete(f.apply(result));
+                }
+                catch (Exception ex) {
+                    next.fail(ex);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        });
+        return next;
+    }
+
+    // A future for the call f starts with this one's result
+    public <U> CallFuture<U> thenCompose(final AsyncFunction<? super T, U> f) {
+        final CallFuture<U> next = new CallFuture<U>();
+        next.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                cancel(true);
+            }
+        });
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                final CallFuture<U> inner;
+                try {
+                    inner = f.apply(result);
+                }
+                catch (Exception ex) {
+                    next.fail(ex);
+                    return;
+                }
+                inner.addCallback(new Callback<U>() {
+                    @Override
+                    public void onSuccess(U result) {
+                        next.complete(result);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable error) {
+                        next.fail(error);
+                    }
+                });
+                next.setCanceller(new Runnable() {
+                    @Override
+                    public void run() {
+                        inner.cancel(true);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        });
+        return next;
+    }
+
+    // A future for all the results, in order, which fails when any one fails
+    public static <T> CallFuture<List<T>> all(final List<CallFuture<T>> futures) {
+        final CallFuture<List<T>> all = new CallFuture<List<T>>();
+        final List<T> results = new ArrayList<T>(futures.size());
+        for (int i = 0; i < futures.size(); i++)
+            results.add(null);
+        if (futures.isEmpty()) {
+            all.complete(results);
+            return all;
+        }
+        final int[] left = {futures.size()};
+        for (int i = 0; i < futures.size(); i++) {
+            final int index = i;
+            futures.get(i).addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    boolean last;
+                    synchronized (results) {
+                        results.set(index, result);
+                        last = (--left[0] == 0);
+                    }
+                    if (last)
+                        all.complete(results);
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    all.fail(error);
+                }
+            });
+        }
+        all.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                for (CallFuture<T> future : futures)
+                    future.cancel(true);
+            }
+        });
+        return all;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done)
+            wait();
+        return report();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long left = end - System.nanoTime();
+            if (left <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return report();
+    }
+
+    private T report() throws ExecutionException {
+        if (cancelled)
+            throw (CancellationException) error;
+        if (error != null)
+            throw new ExecutionException(error);
+        return result;
+    }
+}
@@ -0,0 +1,400 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import com.jilk.ros.rosbridge.implementation.TimerWheel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+// The ROS graph as rosapi reported it at one moment: the nodes, and the
+//    topics and services each with its type. It does not change once taken;
+//    take another with ROSClient.getGraphAsync and diff the two to find out
+//    what changed.
+//
+//    The calls behind a snapshot all go out at once: the three lists, then a
+//    type call for each topic and service as soon as its list arrives. How
+//    long the first list, all three lists, and everything took is kept with
+//    the snapshot. A Listener gets a first snapshot as soon as the three
+//    lists are in, with no types yet, for a display that can show the names
+//    while the types are still coming. A display that never shows the types
+//    can ask for the lists only, which is three calls instead of one for
+//    every topic and service as well.
+//
+//    A snapshot has a deadline. If the lists are not all in by then, it
+//    fails with a TimeoutException. If only some types are missing, it is
+//    completed without them, and the calls still out are cancelled.
+
+public class GraphSnapshot {
+    public interface Listener {
+        // Called on the thread that delivered the last list, so it should
+        //    be quick
+        public void onLists(GraphSnapshot lists);
+    }
+
+    private final List<String> nodes;
+    private final Map<String, String> topics;
+    private final Map<String, String> services;
+    private final long time;
+    private final long firstListNanos;
+    private final long listsNanos;
+    private final long totalNanos;
+    private final boolean complete;
+
+    GraphSnapshot(String[] nodes, Map<String, String> topics, Map<String, String> services,
+            long firstListNanos, long listsNanos, long totalNanos, boolean complete) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(nodes)));
+        this.topics = Collections.unmodifiableMap(new LinkedHashMap<String, String>(topics));
+        this.services = Collections.unmodifiableMap(new LinkedHashMap<String, String>(services));
+        this.time = System.currentTimeMillis();
+        this.firstListNanos = firstListNanos;
+        this.listsNanos = listsNanos;
+        this.totalNanos = totalNanos;
+        this.complete = complete;
+    }
+
+    // False for the lists given to a Listener, for a snapshot of the lists
+    //    only, and for one whose deadline passed before every type was in
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public List<String> getTopics() {
+        return new ArrayList<String>(topics.keySet());
+    }
+
+    public List<String> getServices() {
+        return new ArrayList<String>(services.keySet());
+    }
+
+    // Topic name to type, in the order rosapi listed them. A type is null if
+    //    it is not known: its call failed, e.g. because the topic went away in
+    //    between, or had not been answered when the snapshot was taken.
+    public Map<String, String> getTopicTypes() {
+        return topics;
+    }
+
+    public Map<String, String> getServiceTypes() {
+        return services;
+    }
+
+    public String getTopicType(String topic) {
+        return topics.get(topic);
+    }
+
+    public String getServiceType(String service) {
+        return services.get(service);
+    }
+
+    // When the snapshot was completed, as System.currentTimeMillis()
+    public long getTime() {
+        return time;
+    }
+
+    // From the start to the first of the three lists arriving: how long a
+    //    user waits before there is something to show
+    public double getFirstListMillis() {
+        return firstListNanos / 1e6;
+    }
+
+    public double getListsMillis() {
+        return listsNanos / 1e6;
+    }
+
+    // Including the type of every topic and service, or up to the
+    //    deadline if it passed first
+    public double getTotalMillis() {
+        return totalNanos / 1e6;
+    }
+
+    /**
+     * What changed since an earlier snapshot.
+     * @param previous  the earlier snapshot, or null to get everything as added
+     */
+    public Diff diff(GraphSnapshot previous) {
+        Diff diff = new Diff();
+        List<String> oldNodes = (previous == null) ? Collections.<String>emptyList() : previous.nodes;
+        Map<String, String> oldTopics = (previous == null) ? Collections.<String, String>emptyMap() : previous.topics;
+        Map<String, String> oldServices = (previous == null) ? Collections.<String, String>emptyMap() : previous.services;
+        compare(oldNodes, nodes, diff.addedNodes, diff.removedNodes);
+        compare(oldTopics, topics, diff.addedTopics, diff.removedTopics, diff.changedTopics);
+        compare(oldServices, services, diff.addedServices, diff.removedServices, diff.changedServices);
+        return diff;
+    }
+
+    private static void compare(List<String> before, List<String> after, List<String> added, List<String> removed) {
+        Map<String, String> a = new LinkedHashMap<String, String>();
+        for (String s : before)
+            a.put(s, s);
+        Map<String, String> b = new LinkedHashMap<String, String>();
+        for (String s : after)
+            b.put(s, s);
+        compare(a, b, added, removed, new ArrayList<String>());
+    }
+
+    private static void compare(Map<String, String> before, Map<String, String> after,
+            List<String> added, List<String> removed, List<String> changed) {
+        for (Map.Entry<String, String> e : after.entrySet()) {
+            if (!before.containsKey(e.getKey()))
+                added.add(e.getKey());
+            else {
+                String type = before.get(e.getKey());     // a type not known on either side is no change
+                if (type != null && e.getValue() != null && !type.equals(e.getValue()))
+                    changed.add(e.getKey());
+            }
+        }
+        for (String name : before.keySet())
+            if (!after.containsKey(name))
+                removed.add(name);
+    }
+
+    // Names added, removed, or (for topics and services) whose type changed
+    public static class Diff {
+        public final List<String> addedNodes = new ArrayList<String>();
+        public final List<String> removedNodes = new ArrayList<String>();
+        public final List<String> addedTopics = new ArrayList<String>();
+        public final List<String> removedTopics = new ArrayList<String>();
+        public final List<String> changedTopics = new ArrayList<String>();
+        public final List<String> addedServices = new ArrayList<String>();
+        public final List<String> removedServices = new ArrayList<String>();
+        public final List<String> changedServices = new ArrayList<String>();
+
+        Diff() {}
+
+        public boolean isEmpty() {
+            return addedNodes.isEmpty() && removedNodes.isEmpty() &&
+                    addedTopics.isEmpty() && removedTopics.isEmpty() && changedTopics.isEmpty() &&
+                    addedServices.isEmpty() && removedServices.isEmpty() && changedServices.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "nodes +" + addedNodes + " -" + removedNodes +
+                    ", topics +" + addedTopics + " -" + removedTopics + " ~" + changedTopics +
+                    ", services +" + addedServices + " -" + removedServices + " ~" + changedServices;
+        }
+    }
+
+    // Gathers the results of the calls for one snapshot as they arrive, and
+    //    completes the future when the last is in. A failed list fails the
+    //    snapshot; a failed type call leaves that type null.
+    static class Collector {
+        private final ROSClient client;
+        private final long timeout;
+        private final Listener listener;
+        private final boolean withTypes;
+        private TimerWheel.Timeout deadline;
+        private final CallFuture<GraphSnapshot> result = new CallFuture<GraphSnapshot>();
+        private final List<CallFuture<?>> calls = new ArrayList<CallFuture<?>>();
+        private final long start = System.nanoTime();
+        private long firstList = -1;
+        private long lists;
+        private int listsWaiting = 3;
+        private int waiting = 3;
+        private String[] nodes;
+        private final Map<String, String> topics = new LinkedHashMap<String, String>();
+        private final Map<String, String> services = new LinkedHashMap<String, String>();
+
+        Collector(ROSClient client, long timeout, Listener listener, boolean withTypes) {
+            this.client = client;
+            this.timeout = timeout;
+            this.listener = listener;
+            this.withTypes = withTypes;
+        }
+
+        CallFuture<GraphSnapshot> start() {
+            result.setCanceller(new Runnable() {
+                @Override
+                public void run() {
+                    finished();
+                }
+            });
+            if (timeout > 0) {
+                deadline = TimerWheel.getShared().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire();
+                    }
+                }, timeout);
+            }
+            add(client.getNodesAsync()).addCallback(new ListCallback() {
+                @Override
+                void received(String[] names) {
+                    nodes = names;
+                }
+            });
+            add(client.getTopicsAsync()).addCallback(new ListCallback() {
+                @Override
+                void received(String[] names) {
+                    for (String topic : names)
+                        topics.put(topic, null);
+                    if (withTypes)
+                        waiting += names.length;
+                }
+
+                @Override
+                void request(String[] names) {
+                    for (String topic : names)
+                        add(client.getTopicTypeAsync(topic)).addCallback(new TypeCallback(topics, topic));
+                }
+            });
+            add(client.getServicesAsync()).addCallback(new ListCallback() {
+                @Override
+                void received(String[] names) {
+                    for (String service : names)
+                        services.put(service, null);
+                    if (withTypes)
+                        waiting += names.length;
+                }
+
+                @Override
+                void request(String[] names) {
+                    for (String service : names)
+                        add(client.getServiceTypeAsync(service)).addCallback(new TypeCallback(services, service));
+                }
+            });
+            return result;
+        }
+
+        // A call made once the result is settled is cancelled straight away
+        private <T> CallFuture<T> add(CallFuture<T> call) {
+            synchronized (this) {
+                if (!result.isDone()) {
+                    calls.add(call);
+                    return call;
+                }
+            }
+            call.cancel(false);
+            return call;
+        }
+
+        // Once the result is settled, by whatever means: nothing still out
+        //    is wanted, and the deadline is not needed
+        private void finished() {
+            List<CallFuture<?>> pending;
+            TimerWheel.Timeout t;
+            synchronized (this) {
+                pending = new ArrayList<CallFuture<?>>(calls);
+                calls.clear();
+                t = deadline;
+            }
+            if (t != null)
+                t.cancel();
+            for (CallFuture<?> call : pending)
+                call.cancel(false);
+        }
+
+        private void done() {
+            GraphSnapshot snapshot = null;
+            synchronized (this) {
+                if (--waiting == 0)
+                    snapshot = snapshot(withTypes);
+            }
+            if (snapshot != null && result.complete(snapshot))
+                finished();
+        }
+
+        private void expire() {
+            GraphSnapshot snapshot = null;
+            synchronized (this) {
+                if (listsWaiting == 0)
+                    snapshot = snapshot(false);
+            }
+            boolean settled = (snapshot != null) ? result.complete(snapshot) :
+                    result.fail(new TimeoutException("No ROS graph from rosapi in " + timeout + " ms"));
+            if (settled)
+                finished();
+        }
+
+        private GraphSnapshot snapshot(boolean complete) {
+            return new GraphSnapshot(nodes, topics, services, firstList, lists,
+                    System.nanoTime() - start, complete);
+        }
+
+        // received runs under the lock and counts the type calls to come;
+        //    request makes them, outside it, as the answers take the lock
+        private abstract class ListCallback implements CallFuture.Callback<String[]> {
+            abstract void received(String[] names);
+
+            void request(String[] names) {}
+
+            @Override
+            public void onSuccess(String[] names) {
+                if (names == null)
+                    names = new String[0];
+                GraphSnapshot lists = null;
+                synchronized (Collector.this) {
+                    long now = System.nanoTime() - start;
+                    if (firstList < 0)
+                        firstList = now;
+                    received(names);
+                    if (--listsWaiting == 0) {
+                        Collector.this.lists = now;
+                        if (listener != null)
+                            lists = snapshot(false);
+                    }
+                }
+                if (lists != null && !result.isDone())
+                    listener.onLists(lists);
+                if (withTypes && !result.isDone())
+                    request(names);
+                done();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                if (result.fail(error))
+                    finished();
+            }
+        }
+
+        private class TypeCallback implements CallFuture.Callback<String> {
+            private final Map<String, String> types;
+            private final String name;
+
+            TypeCallback(Map<String, String> types, String name) {
+                this.types = types;
+                this.name = name;
+            }
+
+            @Override
+            public void onSuccess(String type) {
+                synchronized (Collector.this) {
+                    types.put(name, type);
+                }
+                done();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                done();
+            }
+        }
+    }
+}
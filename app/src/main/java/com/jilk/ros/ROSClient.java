@@ -25,10 +25,70 @@ import com.jilk.ros.rosbridge.FullMessageHandler;
 import com.jilk.ros.rosbridge.ROSBridgeClient;
 import com.jilk.ros.rosbridge.operation.Operation;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
 public abstract class ROSClient {
+    public static final long DEFAULT_GRAPH_TIMEOUT = 10000;    // ms
+
+    private final Map<String, Service> services = new ConcurrentHashMap<String, Service>();
 
     public ROSClient() {}
     
+    // One long-lived Service per service name and types, so that it is set
+    //    up and registered once, and calls from anywhere share its table of
+    //    calls in flight. Prefer this to a new Service for each call.
+    @SuppressWarnings("unchecked")
+    public <C extends Message, R extends Message> Service<C, R> getService(String service,
+            Class<C> callType, Class<R> responseType) {
+        String key = service + " " + callType.getName() + " " + responseType.getName();
+        Service<C, R> stub = services.get(key);
+        if (stub == null) {
+            synchronized (services) {
+                stub = services.get(key);
+                if (stub == null) {
+                    stub = new Service<C, R>(service, callType, responseType, this);
+                    services.put(key, stub);
+                }
+            }
+        }
+        return stub;
+    }
+    
+    // A snapshot of the nodes, topics and services, with the type of each
+    //    topic and service. All its calls are in flight at once, so it takes
+    //    about as long as the slowest of them rather than the sum. Diff it
+    //    against the previous one to see what changed.
+    public CallFuture<GraphSnapshot> getGraphAsync() {
+        return getGraphAsync(DEFAULT_GRAPH_TIMEOUT, null);
+    }
+    
+    /**
+     * @param timeout   ms for the whole snapshot; the lists not all in by
+     *                  then fail it, and types not in are left out
+     * @param listener  given the lists without types as soon as they are in;
+     *                  may be null
+     */
+    public CallFuture<GraphSnapshot> getGraphAsync(long timeout, GraphSnapshot.Listener listener) {
+        return new GraphSnapshot.Collector(this, timeout, listener, true).start();
+    }
+    
+    // The nodes, topics and services without their types: only the three
+    //    list calls, for a display that does not show the types
+    public CallFuture<GraphSnapshot> getGraphListsAsync(long timeout) {
+        return new GraphSnapshot.Collector(this, timeout, null, false).start();
+    }
+    
+    public GraphSnapshot getGraph() throws InterruptedException {
+        try {
+            return getGraphAsync().get();
+        }
+        catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+    
     public static ROSClient create(String uriString) {
         // if we ever implement other ROSClient types, we'll key off the URI protocol (e.g., ws://)
         // we'd also have to abstract out Topic and Service since they depend on the ROSBridge operations
@@ -40,17 +100,43 @@ public abstract class ROSClient {
     public abstract void disconnect();
     public abstract void send(Operation operation);
     public abstract void send(String json);
+    public abstract void sendLatest(String key, Operation operation, long minInterval);
+    public abstract void sendLatest(String key, String json, long minInterval);
+    // Drops the frame given to sendLatest for key, if it is still waiting,
+    //    and forgets the key
+    public abstract void removeLatest(String key);
     public abstract void register(Class<? extends Operation> c,
             String s,
             Class<? extends Message> m,
             FullMessageHandler h);
     public abstract void unregister(Class<? extends Operation> c, String s);
+    // Handlers added this way share their topic: each gets every message.
+    //    addHandler returns true for the first, removeHandler for the last.
+    //    A FrameHandler, which reads the body itself, can be added with a
+    //    null message class.
+    public abstract boolean addHandler(Class<? extends Operation> c,
+            String s,
+            Class<? extends Message> m,
+            FullMessageHandler h);
+    public abstract boolean removeHandler(Class<? extends Operation> c, String s, FullMessageHandler h);
     public abstract void setDebug(boolean debug);
+    // The rosapi helpers. The blocking ones return null when rosapi gives no
+    //    answer: the call timed out (see Service.setTimeout on the service
+    //    from getService), the service failed, or the link dropped with the
+    //    call pending. The async ones fail their future instead, with a
+    //    TimeoutException for a timeout and an IOException otherwise.
     public abstract String[] getNodes() throws InterruptedException;
     public abstract String[] getTopics() throws InterruptedException;
     public abstract String[] getServices() throws InterruptedException;
     public abstract TypeDef getTopicMessageDetails(String topic) throws InterruptedException;
     public abstract TypeDef[] getTopicMessageList(String topic) throws InterruptedException;
+    public abstract CallFuture<String[]> getNodesAsync();
+    public abstract CallFuture<String[]> getTopicsAsync();
+    public abstract CallFuture<String[]> getServicesAsync();
+    public abstract CallFuture<String> getTopicTypeAsync(String topic);
+    public abstract CallFuture<String> getServiceTypeAsync(String service);
+    public abstract CallFuture<TypeDef> getTypeDetailsAsync(String type);
+    public abstract CallFuture<TypeDef> getTopicMessageDetailsAsync(String topic);
     public abstract TypeDef getServiceRequestDetails(String service) throws InterruptedException;
     public abstract TypeDef[] getServiceRequestList(String service) throws InterruptedException;
     public abstract TypeDef getServiceResponseDetails(String service) throws InterruptedException;
@@ -21,19 +21,56 @@ package com.jilk.ros;
 
 import com.jilk.ros.message.Message;
 import com.jilk.ros.rosbridge.FullMessageHandler;
+import com.jilk.ros.rosbridge.implementation.TimerWheel;
 import com.jilk.ros.rosbridge.operation.CallService;
 import com.jilk.ros.rosbridge.operation.ServiceResponse;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Every Service for a service name is added to that name's handlers, so any
+//    number of them can be in use at once; each gets every response and
+//    takes only those to its own calls, by id.
+//
+//    Calls in flight are kept in a concurrent table by id, since calls are made
+//    on application threads and answered on the receive thread. Each call
+//    can have a deadline, after which it is answered with null, and can be
+//    cancelled; deadlines are kept on the shared TimerWheel. A response that
+//    is waiting to be collected with poll or take is dropped if it has not
+//    been collected after the result retention time, so that results from
+//    call() that nobody takes do not pile up.
 
 public class Service<CallType extends Message, ResponseType extends Message> extends Message implements FullMessageHandler {
+    public static final long NO_TIMEOUT = 0;
+    public static final long DEFAULT_RESULT_RETENTION = 60000;     // ms
+
+    private static final int PENDING = 0;
+    private static final int ANSWERED = 1;
+    private static final int TIMED_OUT = 2;
+    private static final int CANCELLED = 3;
+
     private String service;
     private Class<? extends ResponseType> responseType;
     private Class<? extends CallType> callType;
     private ROSClient client;
-    private Map<String, CallRecord> calls;
+    private ConcurrentMap<String, CallRecord> calls;
+    private final Map<String, Boolean> finished = new ConcurrentHashMap<String, Boolean>();
+    private volatile boolean registered;
+    private volatile long timeout = NO_TIMEOUT;
+    private volatile long resultRetention = DEFAULT_RESULT_RETENTION;
+    private final TimerWheel timers = TimerWheel.getShared();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong cancellations = new AtomicLong();
+    private final AtomicLong lateResponses = new AtomicLong();
     
     public Service(String service, Class<? extends CallType> callType,
             Class<? extends ResponseType> responseType, ROSClient client) {
@@ -41,7 +78,17 @@ public class Service<CallType extends Message, ResponseType extends Message> ext
         this.client = client;
         this.responseType = responseType;
         this.callType = callType;
-        calls = new HashMap<String, CallRecord>();
+        calls = new ConcurrentHashMap<String, CallRecord>();
+    }
+
+    // Deadline for calls made from now on, in ms; NO_TIMEOUT to wait forever
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    // How long an answered call waits for poll or take before it is dropped
+    public void setResultRetention(long resultRetention) {
+        this.resultRetention = resultRetention;
     }
 
     // A result can only be returned once; it is cleared from the hash before 
@@ -54,60 +101,202 @@ public class Service<CallType extends Message, ResponseType extends Message> ext
         //System.out.print("Service.onMessage: ");
         //response.print();
         CallRecord call = calls.get(id);
-        if(call == null) {
-            System.out.print("No caller service response");
+        if (call == null) {
+            if (finished.remove(id) != null)
+                lateResponses.incrementAndGet();
+            return;     // else another Service's call to the same service
+        }
+        if (!call.finish(ANSWERED)) {
+            lateResponses.incrementAndGet();    // timed out or cancelled
             return;
         }
-        if (call.handler != null) {
+        if (call.future != null) {
+            calls.remove(id);
+            call.future.complete((ResponseType) response);
+        }
+        else if (call.handler != null) {
             calls.remove(id);
             call.handler.onMessage((ResponseType) response);
         }
         else {
             call.result = (ResponseType) response;
             call.latch.countDown();
+            call.retain(id, resultRetention);
         }
     }
     
     public String call(CallType args) {
-        return callImpl(args, null);
+        return callImpl(args, null, timeout);
     }
     
     public void callWithHandler(CallType args, MessageHandler<ResponseType> responseHandler) {
-        callImpl(args, responseHandler);
+        callImpl(args, responseHandler, timeout);
+    }
+    
+    // The handler gets null if there is no response within timeout ms, on
+    //    the timer thread, so it should hand anything slow to another thread
+    public void callWithHandler(CallType args, MessageHandler<ResponseType> responseHandler, long timeout) {
+        callImpl(args, responseHandler, timeout);
     }
     
     public ResponseType callBlocking(CallType args) throws InterruptedException {
         return take(call(args));
     }
     
-    private String callImpl(CallType args, MessageHandler<ResponseType> responseHandler) {
-        client.register(ServiceResponse.class, service, responseType, this);  // do this once on creation?
+    // Returns null if there is no response within timeout ms; also, as
+    //    callBlocking(args) does, if the service fails or the link drops
+    //    with the call pending
+    public ResponseType callBlocking(CallType args, long timeout) throws InterruptedException {
+        return take(callImpl(args, null, timeout));
+    }
+    
+    /**
+     * Calls the service without waiting. Many calls can be in flight at once
+     * over the one connection, with no thread waiting on each.
+     * @return  a future for the response, which fails with a
+     *          TimeoutException if the call times out, and cancels the call
+     *          if it is cancelled
+     */
+    public CallFuture<ResponseType> callAsync(CallType args) {
+        return callAsync(args, timeout);
+    }
+    
+    public CallFuture<ResponseType> callAsync(CallType args, long timeout) {
+        final CallFuture<ResponseType> future = new CallFuture<ResponseType>();
+        final String id = callImpl(args, null, future, timeout);
+        future.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                cancel(id);
+            }
+        });
+        return future;
+    }
+    
+    // All the calls sent at once; the future has the responses in order
+    public CallFuture<List<ResponseType>> callAll(List<? extends CallType> args) {
+        List<CallFuture<ResponseType>> futures = new ArrayList<CallFuture<ResponseType>>(args.size());
+        for (CallType a : args)
+            futures.add(callAsync(a));
+        return CallFuture.all(futures);
+    }
+    
+    private String callImpl(CallType args, MessageHandler<ResponseType> responseHandler, long timeout) {
+        return callImpl(args, responseHandler, null, timeout);
+    }
+    
+    private String callImpl(CallType args, MessageHandler<ResponseType> responseHandler,
+            CallFuture<ResponseType> future, long timeout) {
+        if (!registered) {
+            client.addHandler(ServiceResponse.class, service, responseType, this);
+            registered = true;
+        }
         CallService messageCallService = new CallService(service, args);
         String id = messageCallService.id;
         CallRecord callRecord = new CallRecord(responseHandler);
+        callRecord.future = future;
+        inFlight.incrementAndGet();
+        if (timeout > 0)
+            callRecord.startDeadline(id, timeout);    // before the call can be answered
         calls.put(id, callRecord);
-        client.send(messageCallService);
+        if (callRecord.state.get() != PENDING)
+            calls.remove(id);       // the deadline has passed already
+        else client.send(messageCallService);
         return id;
     }
     
+    /**
+     * Gives up on a call: a response that comes later is ignored, its handler
+     * is not called, and a take waiting on it returns null.
+     * @return  false if the call had already been answered, timed out or
+     *          cancelled
+     */
+    public boolean cancel(String id) {
+        CallRecord call = calls.get(id);
+        if (call == null || !call.finish(CANCELLED))
+            return false;
+        calls.remove(id);
+        forget(id);
+        cancellations.incrementAndGet();
+        call.latch.countDown();
+        if (call.future != null)
+            call.future.cancel(true);
+        return true;
+    }
+    
+    // Returns null if there is no response yet, or no such call
     public ResponseType poll(String id) {
         CallRecord call = calls.get(id);
-        if (call.result != null)
-            calls.remove(id);
+        if (call == null)
+            return null;
+        if (call.latch.getCount() == 0)
+            remove(id, call);
         return call.result;
     }
     
+    // Returns null if the call timed out or was cancelled, or there is no
+    //    such call
     public ResponseType take(String id) throws InterruptedException {
         CallRecord call = calls.get(id);
+        if (call == null)
+            return null;
         call.latch.await();
-        calls.remove(id);
+        remove(id, call);
         return call.result;
     }
     
+    private void remove(String id, CallRecord call) {
+        calls.remove(id);
+        TimerWheel.Timeout t = call.retention;
+        if (t != null)
+            t.cancel();
+    }
+    
+    // Remember a call that timed out or was cancelled for the result
+    //    retention time, so that a response to it is counted as late
+    private void forget(final String id) {
+        finished.put(id, Boolean.TRUE);
+        timers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                finished.remove(id);
+            }
+        }, resultRetention);
+    }
+    
+    // *** Metrics *** //
+    
+    // Calls sent and not yet answered, timed out or cancelled
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+    
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+    
+    public long getCancelledCount() {
+        return cancellations.get();
+    }
+    
+    // Responses that came after their call had timed out or been cancelled
+    public long getLateResponseCount() {
+        return lateResponses.get();
+    }
+    
+    // Calls whose response has not been collected yet, as well as those in
+    //    flight
+    public int getPendingCount() {
+        return calls.size();
+    }
+    
     public void verify() throws InterruptedException {
 
+        String[] services = client.getServices();
+        if (services == null)
+            throw new RuntimeException("Service list not available.");
         boolean hasService = false;
-        for (String s : client.getServices()) {
+        for (String s : services) {
             if (s.equals(service)) {
                 hasService = true;
                 break;
@@ -124,11 +313,57 @@ public class Service<CallType extends Message, ResponseType extends Message> ext
         public ResponseType result;
         public CountDownLatch latch;
         public MessageHandler<ResponseType> handler;
+        public CallFuture<ResponseType> future;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private volatile TimerWheel.Timeout deadline;
+        private volatile TimerWheel.Timeout retention;
         
         public CallRecord(MessageHandler<ResponseType> handler) {
             this.result = null;
             this.latch = new CountDownLatch(1);
             this.handler = handler;
         }
+        
+        // Only the first of response, timeout and cancel counts
+        boolean finish(int how) {
+            if (!state.compareAndSet(PENDING, how))
+                return false;
+            inFlight.decrementAndGet();
+            TimerWheel.Timeout t = deadline;
+            if (t != null)
+                t.cancel();
+            return true;
+        }
+        
+        // After delay ms, the call times out if it is still pending. Once it
+        //    has been answered the deadline does nothing, even if it fires
+        //    before finish could cancel it: the answer is for retain to drop.
+        void startDeadline(final String id, long delay) {
+            deadline = timers.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (finish(TIMED_OUT)) {
+                        timeouts.incrementAndGet();
+                        calls.remove(id);
+                        forget(id);
+                        if (future != null)
+                            future.fail(new TimeoutException("No response from " + service + " in time"));
+                        else if (handler != null)
+                            handler.onMessage(null);
+                        else latch.countDown();
+                    }
+                }
+            }, delay);
+        }
+        
+        // After delay ms, an answered call that nobody has collected is dropped
+        void retain(final String id, long delay) {
+            retention = timers.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    calls.remove(id, CallRecord.this);
+                }
+            }, delay);
+        }
     }
 }
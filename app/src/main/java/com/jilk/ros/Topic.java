@@ -28,27 +28,105 @@ import com.jilk.ros.rosbridge.operation.Subscribe;
 import com.jilk.ros.rosbridge.operation.Unadvertise;
 import com.jilk.ros.rosbridge.operation.Unsubscribe;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+public class Topic<T extends Message> extends TopicBuffer<T> implements FullMessageHandler {
+    // Values for setCompression
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_PNG = "png";
+    public static final String COMPRESSION_CBOR = "cbor";
+
+    // Messages handled in one go before a topic gives up its pool thread
+    private static final int HANDLER_BATCH = 64;
+
+    private static Executor defaultExecutor;
 
-public class Topic<T extends Message> extends LinkedBlockingQueue<T> implements FullMessageHandler {
     protected String topic;
     private Class<? extends T> type;
     private String messageType;
     private ROSClient client;
-    private Thread handlerThread;
+    private Executor executor;
+    private volatile MessageHandler<T> handler;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final MessageRunner runner = new MessageRunner();
+    private String compression;
+    private boolean latestOnly;
+    private long minPublishInterval;
+    private volatile boolean advertised;
     
     public Topic(String topic, Class<? extends T> type, ROSClient client) {
         this.topic = topic;
         this.client = client;
         this.type = type;
         messageType = Message.getMessageType(type);
-        handlerThread = null;
     }
     
     @Override
     public void onMessage(String id, Message message) {
-        add((T) message);
+        if (enqueue((T) message) && handler != null)
+            schedule();
+    }
+    
+    // Handlers for all topics run on a shared Executor (virtual threads
+    //    where the runtime has them, otherwise a small pool), one message at
+    //    a time per topic and in order. A topic whose handler blocks for long
+    //    can be given its own thread with
+    //    setExecutor(Executors.newSingleThreadExecutor()), or topics can be
+    //    given any other Executor. Takes effect at the next subscribe.
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    // The Executor for topics not given their own
+    public static synchronized void setDefaultExecutor(Executor executor) {
+        defaultExecutor = executor;
+    }
+    
+    // Virtual threads where the runtime has them, otherwise a small pool
+    private static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null)
+            defaultExecutor = createVirtualThreadExecutor();
+        if (defaultExecutor == null)
+            defaultExecutor = createPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        return defaultExecutor;
+    }
+    
+    // An Executor that starts a virtual thread for each task, or null where
+    //    there are none (before Java 21, and on Android). Found by reflection,
+    //    since the library builds for Java 7.
+    public static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "Message handler ", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        }
+        catch (Exception ex) {
+            return null;
+        }
+    }
+    
+    public static ExecutorService createPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("Message handlers " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
     
     
@@ -60,45 +138,95 @@ public class Topic<T extends Message> extends LinkedBlockingQueue<T> implements
         subscribe();
     }
     
+    // Several Topics can subscribe to the same topic; each gets every message.
+    //    Only the first sends the subscribe, so its compression is the one
+    //    that applies, and only the last to unsubscribe sends the unsubscribe.
     public void subscribe() {
-        client.register(Publish.class, topic, type, this);
-        send(new Subscribe(topic, messageType));
+        if (client.addHandler(Publish.class, topic, type, this)) {
+            Subscribe subscribe = new Subscribe(topic, messageType);
+            subscribe.compression = compression;
+            send(subscribe);
+        }
+    }
+    
+    // Ask rosbridge to send this topic in a different encoding, e.g.
+    //    COMPRESSION_CBOR for topics with large numeric arrays (point clouds,
+    //    images, laser scans) or COMPRESSION_PNG for large, repetitive text
+    //    (occupancy grids). Takes effect at the next subscribe.
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+    
+    public String getCompression() {
+        return compression;
     }
     
     public void unsubscribe() {
         // need to handle race conditions in incoming message handler
         //    so that once unsubscribe has happened the handler gets no more
         //    messages
-        send(new Unsubscribe(topic));        
-        client.unregister(Publish.class, topic);
+        if (client.removeHandler(Publish.class, topic, this))
+            send(new Unsubscribe(topic));
+        if (!advertised)
+            client.removeLatest(topic);     // unadvertised, so no publish to keep
         stopRunner();
     }
     
     private void startRunner(MessageHandler<T> handler) {
         stopRunner();
-        handlerThread = new Thread(new MessageRunner(handler));
-        handlerThread.setName("Message handler for " + topic);
-        handlerThread.start();
+        if (executor == null)
+            executor = getDefaultExecutor();
+        this.handler = handler;
+        if (!isEmpty())
+            schedule();
     }
     
     private void stopRunner() {
-        if (handlerThread != null) {
-            handlerThread.interrupt();
+        if (handler != null) {
+            handler = null;
             clear();
-            handlerThread = null;
+        }
+    }
+    
+    // Hand the topic to the executor, unless it is there already
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(runner);
+            }
+            catch (RejectedExecutionException ex) {
+                scheduled.set(false);
+                ex.printStackTrace();
+            }
         }
     }
     
     
     public void advertise() {
+        advertised = true;
         send(new Advertise(topic, messageType));
     }
     
     public void publish(T message) {
-        send(new Publish(topic, message));
+        if (latestOnly)
+            client.sendLatest(topic, new Publish(topic, message), minPublishInterval);
+        else send(new Publish(topic, message));
+    }
+    
+    // For topics like /cmd_vel where only the newest value matters: a
+    //    publish replaces any earlier one that has not been sent yet, instead
+    //    of queueing behind it. maxRate (Hz) caps how often the topic is
+    //    sent; 0 sends as fast as the link allows.
+    public void setLatestOnly(boolean latestOnly, double maxRate) {
+        this.latestOnly = latestOnly;
+        this.minPublishInterval = (maxRate > 0) ? (long) (1000 / maxRate) : 0;
     }
     
+    // A latest-only publish not sent yet is dropped first, or it could go
+    //    out after the unadvertise
     public void unadvertise() {
+        advertised = false;
+        client.removeLatest(topic);
         send(new Unadvertise(topic));
     }
     
@@ -108,8 +236,11 @@ public class Topic<T extends Message> extends LinkedBlockingQueue<T> implements
     
     public void verify() throws InterruptedException {
 
+        String[] topics = client.getTopics();
+        if (topics == null)
+            throw new RuntimeException("Topic list not available.");
         boolean hasTopic = false;
-        for (String s : client.getTopics()) {
+        for (String s : topics) {
             if (s.equals(topic)) {
                 hasTopic = true;
                 break;
@@ -121,23 +252,30 @@ public class Topic<T extends Message> extends LinkedBlockingQueue<T> implements
         client.typeMatch(client.getTopicMessageDetails(topic), type);
     }
     
+    // Handles the messages waiting, up to a batch so that other topics get a
+    //    turn, then hands the topic back to the executor if more have come.
+    //    Only one runs for a topic at a time, which keeps its messages in
+    //    order and its handler single-threaded.
     private class MessageRunner implements Runnable {
-        private MessageHandler<T> handler;
-
-        public MessageRunner(MessageHandler<T> handler) {
-            this.handler = handler;
-        }             
-        
         @Override
         public void run() {
-            while (!Thread.interrupted()) {
+            for (int i = 0; i < HANDLER_BATCH; i++) {
+                MessageHandler<T> h = handler;
+                if (h == null)
+                    break;
+                T message = poll();
+                if (message == null)
+                    break;
                 try {
-                    handler.onMessage(take());
+                    h.onMessage(message);
                 }
-                catch (InterruptedException ex) {
-                    break;
+                catch (RuntimeException ex) {
+                    ex.printStackTrace();
                 }
             }
+            scheduled.set(false);
+            if (handler != null && !isEmpty())
+                schedule();
         }
     }
     
@@ -0,0 +1,249 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// The queue a Topic's messages wait in for its handler: a ring in an array,
+//    so that a message costs no allocation here, which grows as needed up to
+//    a capacity. What happens to a message that arrives when the buffer is
+//    full is set by the OverflowPolicy, and counted.
+//
+//    The policy applies to messages arriving from rosbridge (see enqueue).
+//    The BlockingQueue methods keep their usual meanings: offer refuses
+//    when full, put waits.
+
+public class TopicBuffer<T> extends AbstractQueue<T> implements BlockingQueue<T> {
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    public enum OverflowPolicy {
+        KEEP_LATEST,    // the oldest message is dropped to make room
+        DROP_NEWEST,    // the arriving message is dropped
+        BLOCK,          // the receive thread waits for room, holding up every topic
+        SAMPLE          // only every k-th message is kept, and then as KEEP_LATEST
+    }
+
+    private static final int INITIAL_SIZE = 16;
+
+    private Object[] ring = new Object[INITIAL_SIZE];
+    private int head;       // next to take
+    private int count;
+    private int capacity = UNBOUNDED;
+    private OverflowPolicy policy = OverflowPolicy.KEEP_LATEST;
+    private int sampleEvery = 1;
+    private long arrived;
+    private long dropped;
+
+    /**
+     * Bounds the buffer. Messages already beyond a smaller capacity stay.
+     * @param capacity     the most messages held, or UNBOUNDED
+     * @param policy       what to do with a message that does not fit
+     * @param sampleEvery  for SAMPLE, keep one message in this many
+     */
+    public synchronized void setBuffer(int capacity, OverflowPolicy policy, int sampleEvery) {
+        if (capacity < 1 || sampleEvery < 1)
+            throw new IllegalArgumentException("Capacity and sampling must be at least 1");
+        this.capacity = capacity;
+        this.policy = policy;
+        this.sampleEvery = (policy == OverflowPolicy.SAMPLE) ? sampleEvery : 1;
+        notifyAll();
+    }
+
+    public synchronized void setBuffer(int capacity, OverflowPolicy policy) {
+        setBuffer(capacity, policy, 1);
+    }
+
+    // Messages that arrived and were not kept, whether for room or by sampling
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Adds an arriving message under the overflow policy.
+     * @return  false if the message was dropped
+     */
+    protected boolean enqueue(T message) {
+        synchronized (this) {
+            if (arrived++ % sampleEvery != 0) {
+                dropped++;
+                return false;
+            }
+            while (count >= capacity) {
+                if (policy == OverflowPolicy.DROP_NEWEST) {
+                    dropped++;
+                    return false;
+                }
+                if (policy == OverflowPolicy.BLOCK) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        dropped++;
+                        return false;
+                    }
+                }
+                else {
+                    remove0();
+                    dropped++;
+                }
+            }
+            insert(message);
+            return true;
+        }
+    }
+
+    private void insert(T message) {
+        if (message == null)
+            throw new NullPointerException();
+        if (count == ring.length) {
+            Object[] bigger = new Object[(int) Math.min((long) ring.length * 2, Integer.MAX_VALUE - 8)];
+            for (int i = 0; i < count; i++)
+                bigger[i] = ring[(head + i) % ring.length];
+            ring = bigger;
+            head = 0;
+        }
+        ring[(head + count) % ring.length] = message;
+        count++;
+        notifyAll();
+    }
+
+    @SuppressWarnings("unchecked")
+    private T remove0() {
+        T message = (T) ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        notifyAll();
+        return message;
+    }
+
+    // *** BlockingQueue *** //
+
+    @Override
+    public synchronized boolean offer(T message) {
+        if (count >= capacity)
+            return false;
+        insert(message);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean offer(T message, long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (count >= capacity) {
+            long left = end - System.nanoTime();
+            if (left <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        insert(message);
+        return true;
+    }
+
+    @Override
+    public synchronized void put(T message) throws InterruptedException {
+        while (count >= capacity)
+            wait();
+        insert(message);
+    }
+
+    @Override
+    public synchronized T take() throws InterruptedException {
+        while (count == 0)
+            wait();
+        return remove0();
+    }
+
+    @Override
+    public synchronized T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (count == 0) {
+            long left = end - System.nanoTime();
+            if (left <= 0)
+                return null;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return remove0();
+    }
+
+    @Override
+    public synchronized T poll() {
+        return (count == 0) ? null : remove0();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized T peek() {
+        return (count == 0) ? null : (T) ring[head];
+    }
+
+    @Override
+    public synchronized int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized int remainingCapacity() {
+        return (capacity == UNBOUNDED) ? UNBOUNDED : Math.max(0, capacity - count);
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        while (count > 0 && n < maxElements) {
+            c.add(remove0());
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (int i = 0; i < count; i++)
+            ring[(head + i) % ring.length] = null;
+        head = 0;
+        count = 0;
+        notifyAll();
+    }
+
+    // Iterates over a copy of the messages waiting at the time of the call
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Iterator<T> iterator() {
+        List<T> copy = new ArrayList<T>(count);
+        for (int i = 0; i < count; i++)
+            copy.add((T) ring[(head + i) % ring.length]);
+        return copy.iterator();
+    }
+}
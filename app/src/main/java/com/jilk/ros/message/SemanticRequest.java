@@ -5,6 +5,8 @@ package com.jilk.ros.message;
  */
 @MessageType(string = "std_msgs/String")
 public class SemanticRequest extends Message {
+    public SemanticRequest() {}
+
     public  SemanticRequest(String args) {
         jsonStr = args;
     }
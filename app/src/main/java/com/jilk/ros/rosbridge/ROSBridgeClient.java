@@ -19,6 +19,7 @@
  */
 package com.jilk.ros.rosbridge;
 
+import com.jilk.ros.CallFuture;
 import com.jilk.ros.ROSClient;
 import com.jilk.ros.Service;
 import com.jilk.ros.message.Message;
@@ -31,14 +32,67 @@ import com.jilk.ros.rosapi.message.Topic;
 import com.jilk.ros.rosapi.message.Topics;
 import com.jilk.ros.rosapi.message.Type;
 import com.jilk.ros.rosapi.message.TypeDef;
+import com.jilk.ros.rosbridge.implementation.DeflateStats;
+import com.jilk.ros.rosbridge.implementation.Frame;
+import com.jilk.ros.rosbridge.implementation.PerMessageDeflate;
 import com.jilk.ros.rosbridge.implementation.ROSBridgeWebSocketClient;
+import com.jilk.ros.rosbridge.operation.Advertise;
+import com.jilk.ros.rosbridge.operation.CallService;
 import com.jilk.ros.rosbridge.operation.Operation;
+import com.jilk.ros.rosbridge.operation.ServiceResponse;
+import com.jilk.ros.rosbridge.operation.Subscribe;
+import com.jilk.ros.rosbridge.operation.Unadvertise;
+import com.jilk.ros.rosbridge.operation.Unsubscribe;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 public class ROSBridgeClient extends ROSClient {
+    // What happens to service calls still waiting for a response when the
+    //    connection drops: FAIL delivers a null response straight away, so
+    //    callBlocking returns null; RETRY sends them again after reconnecting.
+    public enum PendingCallPolicy { FAIL, RETRY }
+
+    public static final long DEFAULT_MIN_BACKOFF = 500;     // ms
+    public static final long DEFAULT_MAX_BACKOFF = 30000;   // ms
+
+    private static final String SUBSCRIBE = Message.getMessageType(Subscribe.class);
+    private static final String UNSUBSCRIBE = Message.getMessageType(Unsubscribe.class);
+    private static final String ADVERTISE = Message.getMessageType(Advertise.class);
+    private static final String UNADVERTISE = Message.getMessageType(Unadvertise.class);
+    private static final String CALL_SERVICE = Message.getMessageType(CallService.class);
+
     String uriString;
-    ROSBridgeWebSocketClient client;
+    volatile ROSBridgeWebSocketClient client;
+    private ROSClient.ConnectionStatusListener listener;
+    private boolean debug;
+
+    private boolean autoReconnect;
+    private PendingCallPolicy pendingCallPolicy = PendingCallPolicy.FAIL;
+    private long minBackoff = DEFAULT_MIN_BACKOFF;
+    private long maxBackoff = DEFAULT_MAX_BACKOFF;
+    private volatile boolean closing;
+    private Thread reconnector;
+    private final Random random = new Random();
+
+    private boolean deflate;
+    private boolean deflateContextTakeover = true;
+    private int deflateWindowBits = PerMessageDeflate.MAX_WINDOW_BITS;
+
+    // The subscribe and advertise operations in force, by topic, as sent,
+    //    for replay after a reconnect; and the calls awaiting a response
+    private final Map<String, String> subscriptions = new LinkedHashMap<String, String>();
+    private final Map<String, String> advertisements = new LinkedHashMap<String, String>();
+    private final Map<String, PendingCall> pendingCalls = new LinkedHashMap<String, PendingCall>();
+    private final TypeDefCache typeDefs = new TypeDefCache();
+    private final Map<FullMessageHandler, ResponseHandler> responseHandlers =
+            new IdentityHashMap<FullMessageHandler, ResponseHandler>();
     
     public ROSBridgeClient(String uriString) {
         this.uriString = uriString;
@@ -51,12 +105,24 @@ public class ROSBridgeClient extends ROSClient {
     
     @Override
     public boolean connect(ROSClient.ConnectionStatusListener listener) {
+        this.listener = listener;
+        closing = false;
+        return open(client);    // keeps registrations, such as the Services', from any earlier connection
+    }
+
+    private boolean open(ROSBridgeWebSocketClient previous) {
         boolean result = false;
-        client = ROSBridgeWebSocketClient.create(uriString);
-        if (client != null) {
-            client.setListener(listener);
+        typeDefs.clear();   // the types may have changed while we were away
+        ROSBridgeWebSocketClient newClient = ROSBridgeWebSocketClient.create(uriString,
+                deflate ? new PerMessageDeflate(deflateContextTakeover, deflateWindowBits) : null);
+        if (newClient != null) {
+            if (previous != null)
+                newClient.inherit(previous);
+            else newClient.setDebug(debug);
+            newClient.setListener(new Listener());
+            client = newClient;
             try {
-                result = client.connectBlocking();
+                result = newClient.connectBlocking();
             }
             catch (InterruptedException ex) {}
         }
@@ -65,27 +131,137 @@ public class ROSBridgeClient extends ROSClient {
 
     @Override
     public void disconnect() {
+        closing = true;
+        synchronized (this) {
+            if (reconnector != null)
+                reconnector.interrupt();
+        }
         try {
             client.closeBlocking();
         }
         catch (InterruptedException ex) {}
     }
 
+    // If on, a connection that drops without disconnect() being called is
+    //    reopened, waiting between attempts with jittered exponential backoff,
+    //    and the subscriptions and advertisements are sent again.
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    public void setPendingCallPolicy(PendingCallPolicy policy) {
+        pendingCallPolicy = policy;
+    }
+
+    public void setBackoff(long minBackoff, long maxBackoff) {
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    // If on, permessage-deflate compression is offered to rosbridge at the
+    //    next connect; it is used if rosbridge accepts it. Without context
+    //    takeover, or with a smaller window (8 to 15 bits), rosbridge uses
+    //    less memory per connection and compresses less well.
+    public void setDeflate(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    public void setDeflate(boolean deflate, boolean contextTakeover, int maxWindowBits) {
+        if (maxWindowBits < PerMessageDeflate.MIN_WINDOW_BITS || maxWindowBits > PerMessageDeflate.MAX_WINDOW_BITS)
+            throw new IllegalArgumentException("Window bits must be from " + PerMessageDeflate.MIN_WINDOW_BITS +
+                    " to " + PerMessageDeflate.MAX_WINDOW_BITS + ": " + maxWindowBits);
+        this.deflate = deflate;
+        deflateContextTakeover = contextTakeover;
+        deflateWindowBits = maxWindowBits;
+    }
+
+    // Compression ratio and CPU time for the current connection, or null if
+    //    deflate is off
+    public DeflateStats getDeflateStats() {
+        return client.getDeflateStats();
+    }
+
     @Override
     public void send(Operation operation) {
-        client.send(operation);
+        if (operation instanceof Subscribe || operation instanceof Unsubscribe ||
+                operation instanceof Advertise || operation instanceof Unadvertise ||
+                operation instanceof CallService) {
+            String json = operation.toJSON();
+            record(json);
+            client.send(json);
+        }
+        else client.send(operation);
     }
 
     @Override
     public void send(String json) {
+        record(json);
         client.send(json);
     }
 
+    // Keep the durable record up to date with an operation about to be sent
+    private void record(String json) {
+        Frame frame = Frame.scan(json, null);
+        if (frame == null || frame.getOp() == null)
+            return;
+        String op = frame.getOp();
+        synchronized (this) {
+            if (SUBSCRIBE.equals(op))
+                subscriptions.put(frame.getName(), json);
+            else if (UNSUBSCRIBE.equals(op))
+                subscriptions.remove(frame.getName());
+            else if (ADVERTISE.equals(op))
+                advertisements.put(frame.getName(), json);
+            else if (UNADVERTISE.equals(op))
+                advertisements.remove(frame.getName());
+            else if (CALL_SERVICE.equals(op) && frame.getId() != null &&
+                    client.getHandler(ServiceResponse.class, frame.getName()) != null)
+                pendingCalls.put(frame.getId(), new PendingCall(frame.getName(), json));   // otherwise nothing would clear it
+        }
+    }
+
+    @Override
+    public void sendLatest(String key, Operation operation, long minInterval) {
+        client.sendLatest(key, operation, minInterval);
+    }
+
+    @Override
+    public void sendLatest(String key, String json, long minInterval) {
+        client.sendLatest(key, json, minInterval);
+    }
+
+    @Override
+    public void removeLatest(String key) {
+        client.removeLatest(key);
+    }
+
+    // Operations given to sendLatest that were replaced before being sent
+    public long getSupersededCount() {
+        return client.getSendQueue().getSupersededMessages();
+    }
+
+    public long getSupersededCount(String key) {
+        return client.getSendQueue().getSupersededMessages(key);
+    }
+
+    // Traffic on the current connection, for balancing load across several
+    public long getReceivedBytes() {
+        ROSBridgeWebSocketClient c = client;
+        return (c == null) ? 0 : c.getReceivedBytes();
+    }
+
+    public long getSentBytes() {
+        ROSBridgeWebSocketClient c = client;
+        return (c == null) ? 0 : c.getSendQueue().getSentBytes();
+    }
+
     @Override
     public void register(Class<? extends Operation> c,
             String s,
             Class<? extends Message> m,
             FullMessageHandler h) {
+        if (c == ServiceResponse.class && h != null && !(h instanceof FrameHandler))
+            h = new ResponseHandler(h);
         client.register(c, s, m, h);
     }
 
@@ -94,60 +270,204 @@ public class ROSBridgeClient extends ROSClient {
         client.unregister(c, s);
     }
 
+    // Service response handlers are wrapped as they are for register, and
+    //    the wrapper is kept so that the same one can be removed again
+    @Override
+    public boolean addHandler(Class<? extends Operation> c,
+            String s,
+            Class<? extends Message> m,
+            FullMessageHandler h) {
+        if (c == ServiceResponse.class && h != null && !(h instanceof FrameHandler)) {
+            synchronized (responseHandlers) {
+                ResponseHandler wrapper = responseHandlers.get(h);
+                if (wrapper == null) {
+                    wrapper = new ResponseHandler(h);
+                    responseHandlers.put(h, wrapper);
+                }
+                h = wrapper;
+            }
+        }
+        return client.addHandler(c, s, m, h);
+    }
+
+    @Override
+    public boolean removeHandler(Class<? extends Operation> c, String s, FullMessageHandler h) {
+        if (c == ServiceResponse.class) {
+            synchronized (responseHandlers) {
+                ResponseHandler wrapper = responseHandlers.remove(h);
+                if (wrapper != null)
+                    h = wrapper;
+            }
+        }
+        return client.removeHandler(c, s, h);
+    }
+
     @Override
     public void setDebug(boolean debug) {
+        this.debug = debug;
         client.setDebug(debug);
     }
 
     @Override
     public String[] getNodes() throws InterruptedException {
         Service<Empty, Nodes> nodeService =
-                new Service<Empty, Nodes>("/rosapi/nodes", Empty.class, Nodes.class, this);
-        return nodeService.callBlocking(new Empty()).nodes;
+                getService("/rosapi/nodes", Empty.class, Nodes.class);
+        Nodes nodes = nodeService.callBlocking(new Empty());
+        return (nodes == null) ? null : nodes.nodes;
     }
 
     @Override
     public String[] getTopics() throws InterruptedException {
         Service<Empty, Topics> topicsService =
-                new Service<Empty, Topics>("/rosapi/topics", Empty.class, Topics.class, this);
-        return topicsService.callBlocking(new Empty()).topics;
+                getService("/rosapi/topics", Empty.class, Topics.class);
+        Topics topics = topicsService.callBlocking(new Empty());
+        return (topics == null) ? null : topics.topics;
     }
 
     @Override
     public String[] getServices() throws InterruptedException {
         Service<Empty, Services> servicesService =
-                new Service<Empty, Services>("/rosapi/services", Empty.class, Services.class, this);
-        return servicesService.callBlocking(new Empty()).services;
+                getService("/rosapi/services", Empty.class, Services.class);
+        Services services = servicesService.callBlocking(new Empty());
+        return (services == null) ? null : services.services;
+    }
+
+    @Override
+    public CallFuture<String[]> getNodesAsync() {
+        Service<Empty, Nodes> nodeService =
+                getService("/rosapi/nodes", Empty.class, Nodes.class);
+        return nodeService.callAsync(new Empty()).thenApply(new CallFuture.Function<Nodes, String[]>() {
+            @Override
+            public String[] apply(Nodes nodes) throws IOException {
+                if (nodes == null)
+                    throw noResponse("/rosapi/nodes");
+                return nodes.nodes;
+            }
+        });
+    }
+
+    @Override
+    public CallFuture<String[]> getTopicsAsync() {
+        Service<Empty, Topics> topicsService =
+                getService("/rosapi/topics", Empty.class, Topics.class);
+        return topicsService.callAsync(new Empty()).thenApply(new CallFuture.Function<Topics, String[]>() {
+            @Override
+            public String[] apply(Topics topics) throws IOException {
+                if (topics == null)
+                    throw noResponse("/rosapi/topics");
+                return topics.topics;
+            }
+        });
+    }
+
+    @Override
+    public CallFuture<String[]> getServicesAsync() {
+        Service<Empty, Services> servicesService =
+                getService("/rosapi/services", Empty.class, Services.class);
+        return servicesService.callAsync(new Empty()).thenApply(new CallFuture.Function<Services, String[]>() {
+            @Override
+            public String[] apply(Services services) throws IOException {
+                if (services == null)
+                    throw noResponse("/rosapi/services");
+                return services.services;
+            }
+        });
     }
 
     @Override
     public TypeDef getTopicMessageDetails(String topic) throws InterruptedException {
-        return getTypeDetails(getTopicType(topic));
+        String type = getTopicType(topic);
+        return (type == null) ? null : getTypeDetails(type);
+    }
+
+    // The two calls behind getTopicMessageDetails, chained without a thread
+    //    waiting on either
+
+    @Override
+    public CallFuture<TypeDef> getTopicMessageDetailsAsync(String topic) {
+        return getTopicTypeAsync(topic).thenCompose(new CallFuture.AsyncFunction<String, TypeDef>() {
+            @Override
+            public CallFuture<TypeDef> apply(String type) {
+                return getTypeDetailsAsync(type);
+            }
+        });
+    }
+
+    @Override
+    public CallFuture<String> getTopicTypeAsync(String topic) {
+        Service<Topic, Type> topicTypeService =
+                getService("/rosapi/topic_type", Topic.class, Type.class);
+        return topicTypeService.callAsync(new Topic(topic)).thenApply(new CallFuture.Function<Type, String>() {
+            @Override
+            public String apply(Type type) throws IOException {
+                if (type == null)
+                    throw noResponse("/rosapi/topic_type");
+                return type.type;
+            }
+        });
+    }
+
+    @Override
+    public CallFuture<String> getServiceTypeAsync(String service) {
+        Service<com.jilk.ros.rosapi.message.Service, Type> serviceTypeService =
+                getService("/rosapi/service_type", com.jilk.ros.rosapi.message.Service.class, Type.class);
+        return serviceTypeService.callAsync(new com.jilk.ros.rosapi.message.Service(service))
+                .thenApply(new CallFuture.Function<Type, String>() {
+            @Override
+            public String apply(Type type) throws IOException {
+                if (type == null)
+                    throw noResponse("/rosapi/service_type");
+                return type.type;
+            }
+        });
+    }
+
+    @Override
+    public CallFuture<TypeDef> getTypeDetailsAsync(final String type) {
+        TypeDef cached = typeDefs.get(type);
+        if (cached != null)
+            return CallFuture.completed(cached);
+        Service<Type, MessageDetails> messageDetailsService =
+                getService("/rosapi/message_details", Type.class, MessageDetails.class);
+        return messageDetailsService.callAsync(new Type(type)).thenApply(new CallFuture.Function<MessageDetails, TypeDef>() {
+            @Override
+            public TypeDef apply(MessageDetails details) throws IOException {
+                if (details == null)
+                    throw noResponse("/rosapi/message_details");
+                typeDefs.put("/rosapi/message_details", type, details.typedefs);
+                return findType(type, details.typedefs);
+            }
+        });
     }
 
     @Override
     public TypeDef[] getTopicMessageList(String topic) throws InterruptedException {
-        return getTypeList(getTopicType(topic));
+        String type = getTopicType(topic);
+        return (type == null) ? null : getTypeList(type);
     }
 
     @Override
     public TypeDef getServiceRequestDetails(String service) throws InterruptedException {
-        return getTypeDetails(getServiceType(service), "Request", "/rosapi/service_request_details");
+        String type = getServiceType(service);
+        return (type == null) ? null : getTypeDetails(type, "Request", "/rosapi/service_request_details");
     }
 
     @Override
     public TypeDef[] getServiceRequestList(String service) throws InterruptedException {
-        return getTypeList(getServiceType(service), "Request", "/rosapi/service_request_details");
+        String type = getServiceType(service);
+        return (type == null) ? null : getTypeList(type, "Request", "/rosapi/service_request_details");
     }
 
     @Override
     public TypeDef getServiceResponseDetails(String service) throws InterruptedException {
-        return getTypeDetails(getServiceType(service), "Response", "/rosapi/service_response_details");
+        String type = getServiceType(service);
+        return (type == null) ? null : getTypeDetails(type, "Response", "/rosapi/service_response_details");
     }
 
     @Override
     public TypeDef[] getServiceResponseList(String service) throws InterruptedException {
-        return getTypeList(getServiceType(service), "Response", "/rosapi/service_response_details");
+        String type = getServiceType(service);
+        return (type == null) ? null : getTypeList(type, "Response", "/rosapi/service_response_details");
     }
 
     @Override
@@ -160,32 +480,55 @@ public class ROSBridgeClient extends ROSClient {
         return getTypeDetails(type, "", "/rosapi/message_details");
     }
 
+    // One call returns the type and everything nested in it, all of which
+    //    go in the cache, so typeMatch on a deep message makes one call
     private TypeDef[] getTypeList(String type, String suffix, String serviceName) throws InterruptedException {
-        Service<Type, MessageDetails> messageDetailsService =
-                new Service<Type, MessageDetails>(serviceName,
-                        Type.class, MessageDetails.class, this);
-        return messageDetailsService.callBlocking(new Type(type)).typedefs;
+        TypeDef[] list = typeDefs.getList(serviceName, type);
+        if (list == null) {
+            Service<Type, MessageDetails> messageDetailsService =
+                    getService(serviceName, Type.class, MessageDetails.class);
+            MessageDetails details = messageDetailsService.callBlocking(new Type(type));
+            if (details == null)
+                return null;
+            list = details.typedefs;
+            typeDefs.put(serviceName, type, list);
+        }
+        return list;
     }
 
     private TypeDef getTypeDetails(String type, String suffix, String serviceName) throws InterruptedException {
-        Service<Type, MessageDetails> messageDetailsService =
-                new Service<Type, MessageDetails>(serviceName,
-                    Type.class, MessageDetails.class, this);
-        return findType(type + suffix, messageDetailsService.callBlocking(new Type(type)).typedefs);
+        TypeDef cached = typeDefs.get(type + suffix);
+        if (cached != null)
+            return cached;
+        TypeDef[] list = getTypeList(type, suffix, serviceName);
+        return (list == null) ? null : findType(type + suffix, list);
+    }
+
+    // The TypeDefs fetched on this connection, emptied at each reconnect.
+    //    Give it a directory to keep them across restarts as well.
+    public TypeDefCache getTypeDefCache() {
+        return typeDefs;
     }
 
     private String getTopicType(String topic) throws InterruptedException {
         Service<Topic, Type> topicTypeService =
-                new Service<Topic, Type>("/rosapi/topic_type",
-                    Topic.class, Type.class, this);
-        return topicTypeService.callBlocking(new Topic(topic)).type;
+                getService("/rosapi/topic_type", Topic.class, Type.class);
+        Type type = topicTypeService.callBlocking(new Topic(topic));
+        return (type == null) ? null : type.type;
     }
 
     private String getServiceType(String service) throws InterruptedException {
         Service<com.jilk.ros.rosapi.message.Service, Type> serviceTypeService =
-                new Service<com.jilk.ros.rosapi.message.Service, Type>("/rosapi/service_type",
-                        com.jilk.ros.rosapi.message.Service.class, Type.class, this);
-        return serviceTypeService.callBlocking(new com.jilk.ros.rosapi.message.Service(service)).type;
+                getService("/rosapi/service_type", com.jilk.ros.rosapi.message.Service.class, Type.class);
+        Type type = serviceTypeService.callBlocking(new com.jilk.ros.rosapi.message.Service(service));
+        return (type == null) ? null : type.type;
+    }
+
+    // What an async rosapi helper fails with when its call was answered
+    //    with null: the service failed, or the link dropped under
+    //    PendingCallPolicy.FAIL
+    private static IOException noResponse(String service) {
+        return new IOException("No response from " + service);
     }
         
     private TypeDef findType(String type, TypeDef[] types) {
@@ -203,6 +546,8 @@ public class ROSBridgeClient extends ROSClient {
     
     @Override
     public void typeMatch(TypeDef t, Class<? extends Message> c) throws InterruptedException {
+        if (t == null)
+            throw new RuntimeException("Type details not available.");
         if (c == null)
             throw new RuntimeException("No registered message type found for: " + t.type);
         Field[] fields = c.getFields();
@@ -252,6 +597,134 @@ public class ROSBridgeClient extends ROSClient {
                 error + ": \'" + tString + "\' does not match \'" + cString + "\'.");
     }
     
+    // *** Reconnection *** //
+
+    private class Listener implements ROSClient.ConnectionStatusListener {
+        @Override
+        public void onConnect() {
+            if (listener != null)
+                listener.onConnect();
+        }
+
+        @Override
+        public void onDisconnect(boolean normal, String reason, int code) {
+            failPendingCalls();
+            if (listener != null)
+                listener.onDisconnect(normal, reason, code);
+            if (autoReconnect && !closing)
+                startReconnecting();
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            if (listener != null)
+                listener.onError(ex);
+            else ex.printStackTrace();
+        }
+    }
+
+    private synchronized void startReconnecting() {
+        if (reconnector != null)
+            return;
+        final ROSBridgeWebSocketClient previous = client;
+        reconnector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reconnect(previous);
+            }
+        });
+        reconnector.setName("ROSBridge reconnect " + uriString);
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+
+    // Try until connected or disconnect() is called. The wait before each
+    //    attempt doubles up to maxBackoff, and is a random point between half
+    //    and all of that, so that many clients dropped together don't all
+    //    come back at the same moment.
+    private void reconnect(ROSBridgeWebSocketClient previous) {
+        long backoff = minBackoff;
+        try {
+            while (!closing) {
+                long delay = backoff / 2 + (long) (random.nextDouble() * (backoff - backoff / 2));
+                Thread.sleep(delay);
+                if (closing)
+                    break;
+                if (open(previous)) {
+                    replay();
+                    break;
+                }
+                backoff = Math.min(backoff * 2, maxBackoff);
+            }
+        }
+        catch (InterruptedException ex) {
+            // disconnect() was called
+        }
+        finally {
+            synchronized (this) {
+                reconnector = null;
+            }
+        }
+    }
+
+    // Advertisements, then subscriptions, then any calls being retried, all
+    //    queued together so the writer sends them as one batch
+    private void replay() {
+        List<String> frames = new ArrayList<String>();
+        synchronized (this) {
+            frames.addAll(advertisements.values());
+            frames.addAll(subscriptions.values());
+            for (PendingCall call : pendingCalls.values())
+                frames.add(call.json);
+        }
+        for (String json : frames)
+            client.send(json);
+    }
+
+    // Under the FAIL policy, answer every waiting call with a null response
+    private void failPendingCalls() {
+        if (pendingCallPolicy != PendingCallPolicy.FAIL)
+            return;
+        Map<String, PendingCall> failed;
+        synchronized (this) {
+            failed = new LinkedHashMap<String, PendingCall>(pendingCalls);
+            pendingCalls.clear();
+        }
+        for (Map.Entry<String, PendingCall> entry : failed.entrySet()) {
+            FullMessageHandler handler = client.getHandler(ServiceResponse.class, entry.getValue().service);
+            if (handler != null)
+                handler.onMessage(entry.getKey(), null);
+        }
+    }
+
+    private static class PendingCall {
+        final String service;
+        final String json;
+
+        PendingCall(String service, String json) {
+            this.service = service;
+            this.json = json;
+        }
+    }
+
+    // Stands in for the real handler of a service's responses, so that a
+    //    call is no longer pending once its response has arrived
+    private class ResponseHandler implements FullMessageHandler {
+        private final FullMessageHandler handler;
+
+        ResponseHandler(FullMessageHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void onMessage(String id, Message message) {
+            synchronized (ROSBridgeClient.this) {
+                pendingCalls.remove(id);
+            }
+            handler.onMessage(id, message);
+        }
+    }
+
     @Override
     public Object getUnderlyingClient() {
         return client;
@@ -0,0 +1,395 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros.rosbridge;
+
+import com.jilk.ros.CallFuture;
+import com.jilk.ros.ROSClient;
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosapi.message.TypeDef;
+import com.jilk.ros.rosbridge.implementation.Frame;
+import com.jilk.ros.rosbridge.operation.Advertise;
+import com.jilk.ros.rosbridge.operation.CallService;
+import com.jilk.ros.rosbridge.operation.Operation;
+import com.jilk.ros.rosbridge.operation.Publish;
+import com.jilk.ros.rosbridge.operation.ServiceResponse;
+import com.jilk.ros.rosbridge.operation.Subscribe;
+import com.jilk.ros.rosbridge.operation.Unadvertise;
+import com.jilk.ros.rosbridge.operation.Unsubscribe;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A ROSClient over several connections to the same rosbridge, so that one
+//    heavy topic, a map or an image say, does not hold up everything else
+//    behind it on a single TCP stream. Each topic or service is given to one
+//    connection the first time it is used, and stays there: its subscribe,
+//    its publishes, its handlers and its service calls and responses all go
+//    over that connection. Operations for no topic or service in particular
+//    (authenticate, set_level) go over every connection.
+//
+//    How names are given to connections is set by the ShardPolicy. Any name
+//    can also be pinned to a connection with assign(). A name keeps its
+//    connection once it has one; nothing is moved while in use.
+//
+//    Topic and Service work with this as they do with ROSBridgeClient.
+
+public class ShardedROSBridgeClient extends ROSClient {
+    public enum ShardPolicy {
+        HASH,       // by a hash of the name
+        PRIORITY,   // CONTROL names share the first connection, BULK names the rest
+        BANDWIDTH   // to the connection with the least traffic so far
+    }
+
+    public enum Priority { CONTROL, BULK }
+
+    private final ROSBridgeClient[] connections;
+    private final ShardPolicy policy;
+    private final Map<String, Integer> assignments = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Priority> priorities = new ConcurrentHashMap<String, Priority>();
+    private final int[] assigned;     // names per connection
+    private ROSClient.ConnectionStatusListener listener;
+    private int connected;
+
+    public ShardedROSBridgeClient(String uriString, int connections, ShardPolicy policy) {
+        if (connections < 1)
+            throw new IllegalArgumentException("At least one connection is needed: " + connections);
+        if (policy == ShardPolicy.PRIORITY && connections < 2)
+            throw new IllegalArgumentException("PRIORITY needs at least two connections");
+        this.connections = new ROSBridgeClient[connections];
+        for (int i = 0; i < connections; i++)
+            this.connections[i] = new ROSBridgeClient(uriString);
+        this.policy = policy;
+        assigned = new int[connections];
+    }
+
+    // The connections themselves, e.g. to set auto-reconnect or deflate on
+    //    each before connecting
+    public ROSBridgeClient getConnection(int i) {
+        return connections[i];
+    }
+
+    public int getConnectionCount() {
+        return connections.length;
+    }
+
+    // Pin a topic or service to a connection. Only takes effect if the name
+    //    has not been used yet.
+    public void assign(String name, int connection) {
+        if (connection < 0 || connection >= connections.length)
+            throw new IllegalArgumentException("No connection " + connection);
+        synchronized (assigned) {
+            if (!assignments.containsKey(name)) {
+                assignments.put(name, connection);
+                assigned[connection]++;
+            }
+        }
+    }
+
+    // The priority class of a name under PRIORITY; names not given one are
+    //    CONTROL. Only takes effect if the name has not been used yet.
+    public void setPriority(String name, Priority priority) {
+        priorities.put(name, priority);
+    }
+
+    // The connection that carries a topic or service, given one now if it
+    //    has none
+    public int getConnectionIndex(String name) {
+        Integer i = assignments.get(name);
+        if (i != null)
+            return i;
+        synchronized (assigned) {
+            i = assignments.get(name);
+            if (i == null) {
+                i = choose(name);
+                assignments.put(name, i);
+                assigned[i]++;
+            }
+        }
+        return i;
+    }
+
+    private int choose(String name) {
+        int n = connections.length;
+        switch (policy) {
+            case PRIORITY:
+                Priority priority = priorities.get(name);
+                if (priority != Priority.BULK)
+                    return 0;
+                return 1 + (name.hashCode() & 0x7fffffff) % (n - 1);
+            case BANDWIDTH:
+                // Before any traffic has flowed this spreads names evenly
+                int best = 0;
+                long bestBytes = Long.MAX_VALUE;
+                for (int i = 0; i < n; i++) {
+                    long bytes = connections[i].getReceivedBytes() + connections[i].getSentBytes();
+                    if (bytes < bestBytes || (bytes == bestBytes && assigned[i] < assigned[best])) {
+                        best = i;
+                        bestBytes = bytes;
+                    }
+                }
+                return best;
+            default:
+                return (name.hashCode() & 0x7fffffff) % n;
+        }
+    }
+
+    private ROSBridgeClient connectionFor(String name) {
+        return connections[getConnectionIndex(name)];
+    }
+
+    @Override
+    public boolean connect() {
+        return connect(null);
+    }
+
+    // True if every connection opened. The listener hears onConnect once all
+    //    of them are open, and every disconnect and error from any of them.
+    @Override
+    public boolean connect(ROSClient.ConnectionStatusListener listener) {
+        this.listener = listener;
+        synchronized (this) {
+            connected = 0;
+        }
+        boolean result = true;
+        for (ROSBridgeClient connection : connections)
+            result &= connection.connect(new Listener());
+        return result;
+    }
+
+    @Override
+    public void disconnect() {
+        for (ROSBridgeClient connection : connections)
+            connection.disconnect();
+    }
+
+    @Override
+    public void send(Operation operation) {
+        String name = getName(operation);
+        if (name != null)
+            connectionFor(name).send(operation);
+        else for (ROSBridgeClient connection : connections)
+            connection.send(operation);
+    }
+
+    @Override
+    public void send(String json) {
+        Frame frame = Frame.scan(json, null);
+        String name = (frame == null) ? null : frame.getName();
+        if (name != null)
+            connectionFor(name).send(json);
+        else for (ROSBridgeClient connection : connections)
+            connection.send(json);
+    }
+
+    private static String getName(Operation operation) {
+        if (operation instanceof Publish)
+            return ((Publish) operation).topic;
+        if (operation instanceof Subscribe)
+            return ((Subscribe) operation).topic;
+        if (operation instanceof Unsubscribe)
+            return ((Unsubscribe) operation).topic;
+        if (operation instanceof Advertise)
+            return ((Advertise) operation).topic;
+        if (operation instanceof Unadvertise)
+            return ((Unadvertise) operation).topic;
+        if (operation instanceof CallService)
+            return ((CallService) operation).service;
+        if (operation instanceof ServiceResponse)
+            return ((ServiceResponse) operation).service;
+        return null;
+    }
+
+    @Override
+    public void sendLatest(String key, Operation operation, long minInterval) {
+        connectionFor(key).sendLatest(key, operation, minInterval);
+    }
+
+    @Override
+    public void sendLatest(String key, String json, long minInterval) {
+        connectionFor(key).sendLatest(key, json, minInterval);
+    }
+
+    @Override
+    public void removeLatest(String key) {
+        connectionFor(key).removeLatest(key);
+    }
+
+    @Override
+    public void register(Class<? extends Operation> c,
+            String s,
+            Class<? extends Message> m,
+            FullMessageHandler h) {
+        connectionFor(s).register(c, s, m, h);
+    }
+
+    @Override
+    public void unregister(Class<? extends Operation> c, String s) {
+        connectionFor(s).unregister(c, s);
+    }
+
+    @Override
+    public boolean addHandler(Class<? extends Operation> c,
+            String s,
+            Class<? extends Message> m,
+            FullMessageHandler h) {
+        return connectionFor(s).addHandler(c, s, m, h);
+    }
+
+    @Override
+    public boolean removeHandler(Class<? extends Operation> c, String s, FullMessageHandler h) {
+        return connectionFor(s).removeHandler(c, s, h);
+    }
+
+    @Override
+    public void setDebug(boolean debug) {
+        for (ROSBridgeClient connection : connections)
+            connection.setDebug(debug);
+    }
+
+    // Each rosapi call goes over the connection its service is given to
+
+    @Override
+    public String[] getNodes() throws InterruptedException {
+        return connectionFor("/rosapi/nodes").getNodes();
+    }
+
+    @Override
+    public String[] getTopics() throws InterruptedException {
+        return connectionFor("/rosapi/topics").getTopics();
+    }
+
+    @Override
+    public String[] getServices() throws InterruptedException {
+        return connectionFor("/rosapi/services").getServices();
+    }
+
+    @Override
+    public CallFuture<String[]> getNodesAsync() {
+        return connectionFor("/rosapi/nodes").getNodesAsync();
+    }
+
+    @Override
+    public CallFuture<String[]> getTopicsAsync() {
+        return connectionFor("/rosapi/topics").getTopicsAsync();
+    }
+
+    @Override
+    public CallFuture<String[]> getServicesAsync() {
+        return connectionFor("/rosapi/services").getServicesAsync();
+    }
+
+    @Override
+    public TypeDef getTopicMessageDetails(String topic) throws InterruptedException {
+        return connectionFor("/rosapi/message_details").getTopicMessageDetails(topic);
+    }
+
+    @Override
+    public CallFuture<TypeDef> getTopicMessageDetailsAsync(String topic) {
+        return connectionFor("/rosapi/message_details").getTopicMessageDetailsAsync(topic);
+    }
+
+    @Override
+    public CallFuture<String> getTopicTypeAsync(String topic) {
+        return connectionFor("/rosapi/topic_type").getTopicTypeAsync(topic);
+    }
+
+    @Override
+    public CallFuture<String> getServiceTypeAsync(String service) {
+        return connectionFor("/rosapi/service_type").getServiceTypeAsync(service);
+    }
+
+    @Override
+    public CallFuture<TypeDef> getTypeDetailsAsync(String type) {
+        return connectionFor("/rosapi/message_details").getTypeDetailsAsync(type);
+    }
+
+    @Override
+    public TypeDef[] getTopicMessageList(String topic) throws InterruptedException {
+        return connectionFor("/rosapi/message_details").getTopicMessageList(topic);
+    }
+
+    @Override
+    public TypeDef getServiceRequestDetails(String service) throws InterruptedException {
+        return connectionFor("/rosapi/service_request_details").getServiceRequestDetails(service);
+    }
+
+    @Override
+    public TypeDef[] getServiceRequestList(String service) throws InterruptedException {
+        return connectionFor("/rosapi/service_request_details").getServiceRequestList(service);
+    }
+
+    @Override
+    public TypeDef getServiceResponseDetails(String service) throws InterruptedException {
+        return connectionFor("/rosapi/service_response_details").getServiceResponseDetails(service);
+    }
+
+    @Override
+    public TypeDef[] getServiceResponseList(String service) throws InterruptedException {
+        return connectionFor("/rosapi/service_response_details").getServiceResponseList(service);
+    }
+
+    @Override
+    public TypeDef getTypeDetails(String type) throws InterruptedException {
+        return connectionFor("/rosapi/message_details").getTypeDetails(type);
+    }
+
+    @Override
+    public TypeDef[] getTypeList(String type) throws InterruptedException {
+        return connectionFor("/rosapi/message_details").getTypeList(type);
+    }
+
+    @Override
+    public void typeMatch(TypeDef t, Class<? extends Message> c) throws InterruptedException {
+        connectionFor("/rosapi/message_details").typeMatch(t, c);
+    }
+
+    @Override
+    public Object getUnderlyingClient() {
+        return connections;
+    }
+
+    private class Listener implements ROSClient.ConnectionStatusListener {
+        @Override
+        public void onConnect() {
+            boolean all;
+            synchronized (ShardedROSBridgeClient.this) {
+                all = (++connected == connections.length);
+            }
+            if (all && listener != null)
+                listener.onConnect();
+        }
+
+        @Override
+        public void onDisconnect(boolean normal, String reason, int code) {
+            synchronized (ShardedROSBridgeClient.this) {
+                connected--;
+            }
+            if (listener != null)
+                listener.onDisconnect(normal, reason, code);
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            if (listener != null)
+                listener.onError(ex);
+            else ex.printStackTrace();
+        }
+    }
+}
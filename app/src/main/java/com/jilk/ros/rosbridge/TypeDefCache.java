@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros.rosbridge;
+
+import com.jilk.ros.rosapi.message.MessageDetails;
+import com.jilk.ros.rosapi.message.TypeDef;
+import com.jilk.ros.rosbridge.implementation.JSON;
+import com.jilk.ros.rosbridge.implementation.JSONDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// TypeDefs already fetched from rosapi, by type. One message_details call
+//    returns the TypeDef of a type and of every type nested in it, and all
+//    of them are kept, so checking a deep message against its class costs
+//    one round trip instead of one per nested type. The list each call
+//    returned is kept too, for getTypeList.
+//
+//    Optionally the lists are also kept on disk, one file per service and
+//    type, so they survive a restart of the app. Each file holds the MD5 of
+//    its contents, and one that does not match is ignored. rosapi gives no
+//    checksum of a type's definition to key on, so entries on disk are
+//    trusted until clearDisk is called; clear only empties memory, as a
+//    reconnect does.
+
+public class TypeDefCache {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".typedefs";
+
+    private final Map<String, TypeDef> types = new ConcurrentHashMap<String, TypeDef>();
+    private final Map<String, TypeDef[]> lists = new ConcurrentHashMap<String, TypeDef[]>();
+    private volatile File directory;
+    private long hits;
+    private long misses;
+
+    // Keep lists on disk in directory as well; null to stop
+    public void setDirectory(File directory) {
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+            throw new RuntimeException("Cannot create TypeDef cache directory " + directory);
+        this.directory = directory;
+    }
+
+    // A TypeDef from any list fetched so far, or null
+    public TypeDef get(String type) {
+        TypeDef t = types.get(type);
+        count(t != null);
+        return t;
+    }
+
+    /**
+     * The list a call to serviceName returned for type, from memory or disk.
+     * @return  the list, or null if it has not been fetched
+     */
+    public TypeDef[] getList(String serviceName, String type) {
+        String key = key(serviceName, type);
+        TypeDef[] list = lists.get(key);
+        if (list == null) {
+            list = load(key);
+            if (list != null)
+                fill(key, list);
+        }
+        count(list != null);
+        return list;
+    }
+
+    // Keep a list a call to serviceName returned for type
+    public void put(String serviceName, String type, TypeDef[] list) {
+        if (list == null)
+            return;
+        String key = key(serviceName, type);
+        fill(key, list);
+        store(key, list);
+    }
+
+    private void fill(String key, TypeDef[] list) {
+        lists.put(key, list);
+        for (TypeDef t : list)
+            if (t != null && t.type != null)
+                types.put(t.type, t);
+    }
+
+    // Empty memory, e.g. after a reconnect, when rosbridge may have changed
+    public void clear() {
+        types.clear();
+        lists.clear();
+    }
+
+    public void clearDisk() {
+        File dir = directory;
+        if (dir == null)
+            return;
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                if (f.getName().endsWith(SUFFIX))
+                    f.delete();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private synchronized void count(boolean hit) {
+        if (hit)
+            hits++;
+        else misses++;
+    }
+
+    private static String key(String serviceName, String type) {
+        return serviceName + " " + type;
+    }
+
+    // *** Disk *** //
+
+    private File file(String key) {
+        File dir = directory;
+        if (dir == null)
+            return null;
+        StringBuilder name = new StringBuilder();
+        for (char ch : key.toCharArray())
+            name.append(Character.isLetterOrDigit(ch) || ch == '.' || ch == '-' ? ch : '_');
+        return new File(dir, name + SUFFIX);
+    }
+
+    private TypeDef[] load(String key) {
+        File f = file(key);
+        if (f == null || !f.isFile())
+            return null;
+        try {
+            String text = new String(read(f), UTF8);
+            int newline = text.indexOf('\n');
+            if (newline < 0)
+                return null;
+            String json = text.substring(newline + 1);
+            if (!text.substring(0, newline).equals(md5(json)))
+                return null;
+            MessageDetails details = (MessageDetails) new JSONDecoder(json, null).decode(MessageDetails.class);
+            return (details == null) ? null : details.typedefs;
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+        catch (RuntimeException ex) {
+            return null;    // not a list we wrote
+        }
+    }
+
+    private void store(String key, TypeDef[] list) {
+        File f = file(key);
+        if (f == null)
+            return;
+        MessageDetails details = new MessageDetails();
+        details.typedefs = list;
+        String json = JSON.toJSON(details);
+        File temp = new File(f.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write((md5(json) + "\n" + json).getBytes(UTF8));
+            out.close();
+            out = null;
+            if (!temp.renameTo(f))
+                temp.delete();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        finally {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException ex) {}
+                temp.delete();
+            }
+        }
+    }
+
+    private static byte[] read(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) f.length());
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                bytes.write(buffer, 0, n);
+            return bytes.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static String md5(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes(UTF8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest)
+                hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
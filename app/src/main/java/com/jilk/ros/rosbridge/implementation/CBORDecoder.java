@@ -0,0 +1,696 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosbridge.operation.Wrapper;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+// Decodes a CBOR (RFC 7049) binary frame, as rosbridge sends for
+//    subscriptions made with compression "cbor", straight into Message
+//    objects. It follows the same CodecPlan-driven approach as JSONDecoder,
+//    including the deferred decode of an Indicated body that arrives before
+//    its Indicator.
+//
+//    rosbridge sends uint8[] as a byte string and other numeric arrays as
+//    RFC 8746 typed arrays (tags 64-87: a byte string of packed elements).
+//    When the element type matches the Java array, the bytes are copied in
+//    bulk through a typed view of the buffer; otherwise each element is
+//    converted.
+//
+//    Indefinite-length maps and arrays are accepted; indefinite-length
+//    strings are not, since rosbridge never sends them.
+
+public class CBORDecoder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+    private static final int SIMPLE = 7;
+
+    private static final int FALSE = 20;
+    private static final int TRUE = 21;
+    private static final int NULL = 22;
+    private static final int UNDEFINED = 23;
+    private static final int HALF = 25;
+    private static final int FLOAT = 26;
+    private static final int DOUBLE = 27;
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+
+    private static final int FIRST_TYPED_ARRAY_TAG = 64;
+    private static final int UNSIGNED_BYTE_TAG = 64;       // what a plain byte string means
+    private static final int LAST_TYPED_ARRAY_TAG = 87;
+
+    private final byte[] data;
+    private final int limit;
+    private final Registry<Class> registry;
+    private int pos;
+
+    private final DecodedNumber number = new DecodedNumber();
+
+    public CBORDecoder(ByteBuffer buffer, Registry<Class> registry) {
+        if (buffer.hasArray()) {
+            data = buffer.array();
+            pos = buffer.arrayOffset() + buffer.position();
+            limit = buffer.arrayOffset() + buffer.limit();
+        }
+        else {
+            data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            pos = 0;
+            limit = data.length;
+        }
+        this.registry = registry;
+    }
+
+    /**
+     * Decodes the frame into an instance of the given class, with the same
+     * @Wrapper handling as JSONDecoder.decode.
+     * @param c  the top level class of the frame. Normally @Wrapper
+     * @return   the decoded message, or null if the frame is not valid CBOR
+     */
+    public Message decode(Class c) {
+        try {
+            if (Wrapper.class.isAssignableFrom(c))
+                return decodeWrapped(c);
+            return (Message) decodeObject(c);
+        }
+        catch (RuntimeException ex) {
+            System.out.println(ex.getMessage());
+            return null;
+        }
+    }
+
+    // *** Objects *** //
+
+    private Message decodeWrapped(Class c) {
+        CodecPlan plan = CodecPlan.forClass(c);
+        String indicator = findTopLevelString(plan.indicatorName);
+        Class indicated = registry.lookup(c, indicator);
+        try {
+            Message result = (Message) plan.newInstance();
+            for (CodecPlan.FieldPlan fp : plan.fields) {
+                if (fp.name.equals(plan.indicatorName))
+                    fp.set(result, indicator);
+            }
+            Object body = decodeObject(indicated);
+            for (CodecPlan.FieldPlan fp : plan.fields) {
+                if (fp.name.equals(plan.indicatedName))
+                    fp.set(result, body);
+            }
+            return result;
+        }
+        catch (Exception ex) {
+            return null;
+        }
+    }
+
+    // Decode a map into a new instance of c. As in JSONDecoder, a class that
+    //    is null or can't be filled in still has its map consumed, and null
+    //    is returned in its place.
+    private Object decodeObject(Class c) {
+        long n = readLength(MAP);
+        CodecPlan plan = (c == null) ? null : CodecPlan.forClass(c);
+        Object result = null;
+        boolean failed = (plan == null);
+        if (!failed) {
+            try {
+                result = plan.newInstance();
+            }
+            catch (Exception ex) {
+                failed = true;
+            }
+        }
+
+        String indicator = null;
+        CodecPlan.FieldPlan deferredField = null;
+        int deferredPos = -1;
+
+        for (long i = 0; n < 0 || i < n; i++) {
+            if (n < 0 && atBreak())
+                break;
+            CodecPlan.FieldPlan fp = failed ? null : readKey(plan);
+            if (failed)
+                skipItem();
+
+            if (fp == null || atNull())
+                skipItem();
+            else if (fp.indicated && plan.indicatorName != null && indicator == null) {
+                deferredField = fp;
+                deferredPos = pos;
+                skipItem();
+            }
+            else {
+                Class fc = fp.indicated ? registry.lookup(plan.type, indicator) : fp.elementClass;
+                if (!readField(result, plan, fp, fc))
+                    failed = true;
+                else if (fp.name.equals(plan.indicatorName)) {
+                    Object value = fp.get(result);
+                    if (value instanceof String)
+                        indicator = (String) value;
+                }
+            }
+        }
+
+        if (deferredField != null && !failed) {
+            int end = pos;
+            pos = deferredPos;
+            if (!readField(result, plan, deferredField, registry.lookup(plan.type, indicator)))
+                failed = true;
+            pos = end;
+        }
+        return failed ? null : result;
+    }
+
+    // Decode an array into the fields of a new instance of c, in declared
+    //    order. This is the receive side of @AsArray.
+    private Object decodeArrayAsMessage(Class c) {
+        long n = readLength(ARRAY);
+        CodecPlan plan = (c == null) ? null : CodecPlan.forClass(c);
+        Object result = null;
+        boolean failed = (plan == null);
+        if (!failed) {
+            try {
+                result = plan.newInstance();
+            }
+            catch (Exception ex) {
+                failed = true;
+            }
+        }
+        for (long i = 0; n < 0 || i < n; i++) {
+            if (n < 0 && atBreak())
+                break;
+            if (failed || plan.fields.length <= i || atNull())
+                skipItem();
+            else {
+                CodecPlan.FieldPlan fp = plan.fields[(int) i];
+                if (!readField(result, plan, fp, fp.elementClass))
+                    failed = true;
+            }
+        }
+        return failed ? null : result;
+    }
+
+    // Find the plan entry whose name matches the text key at the current
+    //    position. Field names are ASCII, so the UTF-8 bytes can be compared
+    //    with the name's chars directly.
+    private CodecPlan.FieldPlan readKey(CodecPlan plan) {
+        int keyLength = (int) readLength(TEXT);
+        if (keyLength < 0)
+            throw error("a definite-length key");
+        int start = pos;
+        pos += keyLength;
+        checkAvailable(0);
+        for (CodecPlan.FieldPlan fp : plan.fields) {
+            if (fp.name.length() == keyLength && matches(start, fp.name))
+                return fp;
+        }
+        return null;
+    }
+
+    private boolean matches(int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (data[start + i] != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    // Read the item at the current position and store it in every field of
+    //    the plan with this name. Returns false if it could not be stored.
+    private boolean readField(Object target, CodecPlan plan, CodecPlan.FieldPlan fp, Class fc) {
+        try {
+            int major = peekMajor();
+            if (fp.field.getType().isPrimitive() && isNumber()) {
+                readNumber();
+                for (CodecPlan.FieldPlan f : plan.fields) {
+                    if (f.name.equals(fp.name))
+                        number.set(f.field, target);
+                }
+                return true;
+            }
+
+            Object value;
+            if (major == MAP)
+                value = decodeObject(fc);
+            else if (major == ARRAY) {
+                if (fp.asArray)
+                    value = decodeArrayAsMessage(fc);
+                else value = decodeArray(fc);
+            }
+            else if (major == BYTES || major == TAG)
+                value = decodeTypedArray(fc);
+            else if (major == TEXT) {
+                String s = readText();
+                if (fp.kind == CodecPlan.Kind.BASE64)
+                    value = Base64.decode(s);
+                else value = s;
+            }
+            else value = readPrimitive(fc);
+
+            for (CodecPlan.FieldPlan f : plan.fields) {
+                if (f.name.equals(fp.name))
+                    f.set(target, value);
+            }
+            return true;
+        }
+        catch (IllegalArgumentException ex) {
+            return false;
+        }
+        catch (IllegalAccessException ex) {
+            return false;
+        }
+    }
+
+    // *** Arrays *** //
+
+    // Decode a CBOR array of items into a Java array of component type c.
+    private Object decodeArray(Class c) {
+        if (c == null) {
+            skipItem();
+            return null;
+        }
+        int start = pos;
+        long n = readLength(ARRAY);
+        if (n < 0) {
+            pos = start;
+            n = countIndefinite();
+            readLength(ARRAY);
+        }
+        Object result = Array.newInstance(c, (int) n);
+        for (int i = 0; i < n; i++) {
+            if (atNull())
+                skipItem();                         // null elements are left at their default
+            else if (c.isPrimitive()) {
+                if (isNumber()) {
+                    readNumber();
+                    storeNumber(result, i, c);
+                }
+                else if (c == boolean.class && isBoolean())
+                    ((boolean[]) result)[i] = readBoolean();
+                else skipItem();
+            }
+            else {
+                int major = peekMajor();
+                Object value;
+                if (major == MAP)
+                    value = decodeObject(c);
+                else if (major == ARRAY)            // this is not actually allowed in ROS
+                    value = decodeArray(c.getComponentType());
+                else if (major == TEXT)
+                    value = readText();
+                else if (major == BYTES || major == TAG) {
+                    skipItem();
+                    value = null;
+                }
+                else value = readPrimitive(c);
+                if (value != null) {
+                    try {
+                        Array.set(result, i, value);
+                    }
+                    catch (IllegalArgumentException ex) {
+                        // leave the default
+                    }
+                }
+            }
+        }
+        if (start != pos && data[start] == (byte) ((ARRAY << 5) | INDEFINITE))
+            expectBreak();
+        return result;
+    }
+
+    // A byte string (uint8[]) or an RFC 8746 typed array, into a Java array
+    //    of component type c. Any other tag is ignored and its item decoded
+    //    as if untagged.
+    private Object decodeTypedArray(Class c) {
+        int tag = UNSIGNED_BYTE_TAG;
+        if (peekMajor() == TAG) {
+            long t = readHead(TAG);
+            if (t < FIRST_TYPED_ARRAY_TAG || t > LAST_TYPED_ARRAY_TAG || peekMajor() != BYTES)
+                return readUntagged(c);
+            tag = (int) t;
+        }
+        int length = (int) readLength(BYTES);
+        if (length < 0)
+            throw error("a definite-length byte string");
+        checkAvailable(length);
+        int start = pos;
+        pos += length;
+        if (c == null)
+            return null;
+
+        // Tag bits are 010fsell: float, signed, little-endian, log2 of size
+        boolean isFloat = (tag & 0x10) != 0;
+        boolean signed = (tag & 0x08) != 0;
+        boolean littleEndian = (tag & 0x04) != 0;
+        int size = isFloat ? (2 << (tag & 3)) : (1 << (tag & 3));
+        if (size == 1)
+            littleEndian = true;    // 68 is "clamped", not an endianness
+        if (isFloat && size == 16)
+            return null;            // float128 has no Java type
+        int n = length / size;
+        ByteBuffer bytes = ByteBuffer.wrap(data, start, length).slice()
+                .order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+        // Bulk copies where the element type is the Java type
+        if (size == 1 && !isFloat && c == byte.class) {
+            byte[] a = new byte[n];
+            System.arraycopy(data, start, a, 0, n);
+            return a;
+        }
+        if (isFloat && size == 4 && c == float.class) {
+            float[] a = new float[n];
+            bytes.asFloatBuffer().get(a);
+            return a;
+        }
+        if (isFloat && size == 8 && c == double.class) {
+            double[] a = new double[n];
+            bytes.asDoubleBuffer().get(a);
+            return a;
+        }
+        if (!isFloat && signed && size == 2 && c == short.class) {
+            short[] a = new short[n];
+            bytes.asShortBuffer().get(a);
+            return a;
+        }
+        if (!isFloat && signed && size == 4 && c == int.class) {
+            int[] a = new int[n];
+            bytes.asIntBuffer().get(a);
+            return a;
+        }
+        if (!isFloat && size == 8 && c == long.class) {
+            long[] a = new long[n];
+            bytes.asLongBuffer().get(a);
+            return a;
+        }
+
+        // Otherwise element by element, e.g. uint8 into short[] or uint16 into int[]
+        Object result = Array.newInstance(c, n);
+        for (int i = 0; i < n; i++) {
+            int offset = i * size;
+            if (isFloat) {
+                if (size == 2)
+                    number.setDouble(halfToFloat(bytes.getShort(offset)));
+                else if (size == 4)
+                    number.setDouble(bytes.getFloat(offset));
+                else number.setDouble(bytes.getDouble(offset));
+            }
+            else if (size == 1)
+                number.setLong(signed ? bytes.get(offset) : bytes.get(offset) & 0xff);
+            else if (size == 2)
+                number.setLong(signed ? bytes.getShort(offset) : bytes.getShort(offset) & 0xffff);
+            else if (size == 4)
+                number.setLong(signed ? bytes.getInt(offset) : bytes.getInt(offset) & 0xffffffffL);
+            else number.setLong(bytes.getLong(offset));
+            storeNumber(result, i, c);
+        }
+        return result;
+    }
+
+    private Object readUntagged(Class c) {
+        int major = peekMajor();
+        if (major == MAP)
+            return decodeObject(c);
+        if (major == ARRAY)
+            return decodeArray(c);
+        if (major == TEXT)
+            return readText();
+        if (major == BYTES || major == TAG)
+            return decodeTypedArray(c);
+        return readPrimitive(c);
+    }
+
+    private void storeNumber(Object array, int i, Class c) {
+        if (c == double.class)
+            ((double[]) array)[i] = number.doubleValue;
+        else if (c == float.class)
+            ((float[]) array)[i] = (float) number.doubleValue;
+        else if (c == long.class)
+            ((long[]) array)[i] = number.longValue;
+        else if (c == int.class)
+            ((int[]) array)[i] = number.intValue();
+        else if (c == short.class)
+            ((short[]) array)[i] = (short) number.intValue();
+        else if (c == byte.class)
+            ((byte[]) array)[i] = (byte) number.intValue();
+        else if (!c.isPrimitive()) {
+            try {
+                Array.set(array, i, number.box(c));
+            }
+            catch (IllegalArgumentException ex) {
+                // leave the default
+            }
+        }
+    }
+
+    // Number of items in the indefinite-length array at the current position
+    private int countIndefinite() {
+        int start = pos;
+        readLength(ARRAY);
+        int n = 0;
+        while (!atBreak()) {
+            skipItem();
+            n++;
+        }
+        pos = start;
+        return n;
+    }
+
+    // *** Primitives *** //
+
+    private Object readPrimitive(Class c) {
+        if (c == null)
+            c = Object.class;
+        if (isBoolean())
+            return Boolean.valueOf(readBoolean());
+        if (!isNumber())
+            throw error("a value");
+        readNumber();
+        return number.box(c);
+    }
+
+    private boolean isNumber() {
+        int initial = peek();
+        int major = initial >> 5;
+        int info = initial & 0x1f;
+        return major == UNSIGNED || major == NEGATIVE ||
+                (major == SIMPLE && (info == HALF || info == FLOAT || info == DOUBLE));
+    }
+
+    private boolean isBoolean() {
+        int initial = peek();
+        return initial == ((SIMPLE << 5) | FALSE) || initial == ((SIMPLE << 5) | TRUE);
+    }
+
+    private void readNumber() {
+        int initial = peek();
+        int major = initial >> 5;
+        int info = initial & 0x1f;
+        if (major == UNSIGNED)
+            number.setLong(readHead(UNSIGNED));     // uint64 above Long.MAX_VALUE wraps, as a Java long would
+        else if (major == NEGATIVE)
+            number.setLong(-1 - readHead(NEGATIVE));
+        else {
+            pos++;
+            if (info == HALF)
+                number.setDouble(halfToFloat((short) readBigEndian(2)));
+            else if (info == FLOAT)
+                number.setDouble(Float.intBitsToFloat((int) readBigEndian(4)));
+            else number.setDouble(Double.longBitsToDouble(readBigEndian(8)));
+        }
+    }
+
+    private boolean readBoolean() {
+        return (next() & 0x1f) == TRUE;
+    }
+
+    private String readText() {
+        int length = (int) readLength(TEXT);
+        if (length < 0)
+            throw error("a definite-length string");
+        checkAvailable(length);
+        String result = new String(data, pos, length, UTF8);
+        pos += length;
+        return result;
+    }
+
+    private static float halfToFloat(short half) {
+        int sign = (half >> 15) & 1;
+        int exponent = (half >> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        float value;
+        if (exponent == 0)
+            value = mantissa * (float) Math.pow(2, -24);
+        else if (exponent == 31)
+            value = (mantissa == 0) ? Float.POSITIVE_INFINITY : Float.NaN;
+        else value = (1 + mantissa / 1024f) * (float) Math.pow(2, exponent - 15);
+        return (sign == 0) ? value : -value;
+    }
+
+    // Find the value of a text field at the top level of the map that starts
+    //    at the current position, without moving the position.
+    private String findTopLevelString(String name) {
+        int start = pos;
+        String result = null;
+        long n = readLength(MAP);
+        for (long i = 0; n < 0 || i < n; i++) {
+            if (n < 0 && atBreak())
+                break;
+            boolean match = false;
+            if (peekMajor() == TEXT)
+                match = name.equals(readText());
+            else skipItem();
+            if (match && result == null && peekMajor() == TEXT)
+                result = readText();
+            else skipItem();
+        }
+        pos = start;
+        return result;
+    }
+
+    // *** Items *** //
+
+    // Move past one complete item of any type.
+    private void skipItem() {
+        int initial = peek();
+        int major = initial >> 5;
+        int info = initial & 0x1f;
+        if (major == SIMPLE) {
+            pos++;
+            if (info == 24)
+                pos += 1;
+            else if (info == HALF)
+                pos += 2;
+            else if (info == FLOAT)
+                pos += 4;
+            else if (info == DOUBLE)
+                pos += 8;
+            checkAvailable(0);
+            return;
+        }
+        long n = readHead(major);
+        if (n < 0) {
+            while (!atBreak())
+                skipItem();
+            pos++;
+        }
+        else if (major == BYTES || major == TEXT) {
+            checkAvailable(n);
+            pos += n;
+        }
+        else if (major == ARRAY) {
+            for (long i = 0; i < n; i++)
+                skipItem();
+        }
+        else if (major == MAP) {
+            for (long i = 0; i < 2 * n; i++)
+                skipItem();
+        }
+        else if (major == TAG)
+            skipItem();
+    }
+
+    private long readLength(int major) {
+        if (peekMajor() != major)
+            throw error("major type " + major);
+        return readHead(major);
+    }
+
+    // Read an item head and return its argument: the value for integers, the
+    //    length for strings, arrays and maps, the number for tags; -1 for an
+    //    indefinite length.
+    private long readHead(int major) {
+        int initial = next();
+        if ((initial >> 5) != major)
+            throw error("major type " + major);
+        int info = initial & 0x1f;
+        if (info < 24)
+            return info;
+        if (info == 24)
+            return readBigEndian(1);
+        if (info == 25)
+            return readBigEndian(2);
+        if (info == 26)
+            return readBigEndian(4);
+        if (info == 27)
+            return readBigEndian(8);
+        if (info == INDEFINITE && major >= BYTES && major <= MAP)
+            return -1;
+        throw error("a valid additional information value");
+    }
+
+    private long readBigEndian(int bytes) {
+        checkAvailable(bytes);
+        long result = 0;
+        for (int i = 0; i < bytes; i++)
+            result = (result << 8) | (data[pos++] & 0xff);
+        return result;
+    }
+
+    private boolean atNull() {
+        int initial = peek();
+        return initial == ((SIMPLE << 5) | NULL) || initial == ((SIMPLE << 5) | UNDEFINED);
+    }
+
+    private boolean atBreak() {
+        return peek() == BREAK;
+    }
+
+    private void expectBreak() {
+        if (next() != BREAK)
+            throw error("break");
+    }
+
+    private int peekMajor() {
+        return peek() >> 5;
+    }
+
+    private int peek() {
+        if (pos >= limit)
+            throw error("more input");
+        return data[pos] & 0xff;
+    }
+
+    private int next() {
+        int result = peek();
+        pos++;
+        return result;
+    }
+
+    private void checkAvailable(long bytes) {
+        if (pos + bytes > limit)
+            throw error("more input");
+    }
+
+    private RuntimeException error(String expected) {
+        return new RuntimeException("CBORDecoder: expected " + expected + " at position " + pos);
+    }
+}
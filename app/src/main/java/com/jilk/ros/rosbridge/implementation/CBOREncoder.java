@@ -0,0 +1,291 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import com.jilk.ros.message.Message;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+// Writes a Message as CBOR (RFC 7049), the binary counterpart of
+//    JSONEncoder. Fields go out in declared order following the CodecPlan
+//    of each class; generated MessageCodecs are JSON-only, so they are not
+//    used here.
+//
+//    Arrays of numbers are written the way rosbridge writes them: byte[] as
+//    a plain byte string, and other numeric arrays as little-endian RFC 8746
+//    typed arrays, filled in bulk through a typed view of the buffer.
+//    byte[] fields marked @Base64Encoded need no encoding in CBOR and are
+//    written as byte strings too.
+//
+//    As in JSONEncoder, each thread reuses its own buffer.
+
+public class CBOREncoder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int FLOAT = 0xfa;
+    private static final int DOUBLE = 0xfb;
+
+    // RFC 8746 typed array tags, little-endian
+    private static final int TAG_INT16 = 77;
+    private static final int TAG_INT32 = 78;
+    private static final int TAG_INT64 = 79;
+    private static final int TAG_FLOAT32 = 85;
+    private static final int TAG_FLOAT64 = 86;
+
+    private static final ThreadLocal<CBOREncoder> encoders = new ThreadLocal<CBOREncoder>() {
+        @Override
+        protected CBOREncoder initialValue() {
+            return new CBOREncoder();
+        }
+    };
+
+    private byte[] buffer = new byte[1024];
+    private int length;
+
+    /**
+     * Translates a Message recursively into CBOR, using the calling thread's
+     * reusable buffer.
+     * @param m  the @Message object to be recursively translated.
+     * @return   the complete CBOR frame.
+     */
+    public static byte[] encode(Message m) {
+        CBOREncoder encoder = encoders.get();
+        encoder.length = 0;
+        encoder.writeObject(m);
+        byte[] result = new byte[encoder.length];
+        System.arraycopy(encoder.buffer, 0, result, 0, encoder.length);
+        if (encoder.buffer.length > MAX_RETAINED_CAPACITY)
+            encoders.remove();
+        return result;
+    }
+
+    // *** Objects *** //
+
+    private void writeObject(Object o) {
+        CodecPlan plan = CodecPlan.forClass(o.getClass());
+        int count = 0;
+        for (CodecPlan.FieldPlan fp : plan.fields) {
+            if (fp.get(o) != null)
+                count++;
+        }
+        writeHead(MAP, count);
+        for (CodecPlan.FieldPlan fp : plan.fields) {
+            Object fieldObject = fp.get(o);
+            if (fieldObject != null) {
+                writeText(fp.name);
+                if (fp.kind == CodecPlan.Kind.AS_ARRAY)
+                    writeObjectAsArray(fieldObject);
+                else writeElement(fieldObject);
+            }
+        }
+    }
+
+    private void writeObjectAsArray(Object o) {
+        CodecPlan plan = CodecPlan.forClass(o.getClass());
+        int count = 0;
+        for (CodecPlan.FieldPlan fp : plan.fields) {
+            if (fp.get(o) != null)
+                count++;
+        }
+        writeHead(ARRAY, count);
+        for (CodecPlan.FieldPlan fp : plan.fields) {
+            Object fieldObject = fp.get(o);
+            if (fieldObject != null)
+                writeElement(fieldObject);
+        }
+    }
+
+    private void writeElement(Object elementObject) {
+        Class elementClass = elementObject.getClass();
+        if (Message.isPrimitive(elementClass))
+            writePrimitive(elementObject);
+        else if (elementClass.isArray())
+            writeArray(elementObject);
+        else writeObject(elementObject);
+    }
+
+    // *** Arrays *** //
+
+    private void writeArray(Object array) {
+        Class c = array.getClass().getComponentType();
+        if (c == byte.class) {
+            byte[] a = (byte[]) array;
+            writeHead(BYTES, a.length);
+            ensure(a.length);
+            System.arraycopy(a, 0, buffer, length, a.length);
+            length += a.length;
+        }
+        else if (c == double.class) {
+            double[] a = (double[]) array;
+            typedArray(TAG_FLOAT64, a.length * 8).asDoubleBuffer().put(a);
+            length += a.length * 8;
+        }
+        else if (c == float.class) {
+            float[] a = (float[]) array;
+            typedArray(TAG_FLOAT32, a.length * 4).asFloatBuffer().put(a);
+            length += a.length * 4;
+        }
+        else if (c == long.class) {
+            long[] a = (long[]) array;
+            typedArray(TAG_INT64, a.length * 8).asLongBuffer().put(a);
+            length += a.length * 8;
+        }
+        else if (c == int.class) {
+            int[] a = (int[]) array;
+            typedArray(TAG_INT32, a.length * 4).asIntBuffer().put(a);
+            length += a.length * 4;
+        }
+        else if (c == short.class) {
+            short[] a = (short[]) array;
+            typedArray(TAG_INT16, a.length * 2).asShortBuffer().put(a);
+            length += a.length * 2;
+        }
+        else if (c == boolean.class) {
+            boolean[] a = (boolean[]) array;
+            writeHead(ARRAY, a.length);
+            ensure(a.length);
+            for (boolean b : a)
+                buffer[length++] = (byte) (b ? TRUE : FALSE);
+        }
+        else {
+            int n = Array.getLength(array);
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (Array.get(array, i) != null)
+                    count++;
+            }
+            writeHead(ARRAY, count);
+            for (int i = 0; i < n; i++) {
+                Object elementObject = Array.get(array, i);
+                if (elementObject != null)
+                    writeElement(elementObject);
+            }
+        }
+    }
+
+    // Write the tag and byte string head of a typed array, and return a
+    //    little-endian view of the space for its elements. The caller fills
+    //    the view and advances length.
+    private ByteBuffer typedArray(int tag, int bytes) {
+        writeHead(TAG, tag);
+        writeHead(BYTES, bytes);
+        ensure(bytes);
+        return ByteBuffer.wrap(buffer, length, bytes).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // *** Primitives *** //
+
+    private void writePrimitive(Object o) {
+        if (o instanceof String)
+            writeText((String) o);
+        else if (o instanceof Boolean)
+            writeByte(((Boolean) o) ? TRUE : FALSE);
+        else if (o instanceof Double)
+            writeDouble((Double) o);
+        else if (o instanceof Float)
+            writeFloat((Float) o);
+        else if (o instanceof Number) {
+            long value = ((Number) o).longValue();
+            if (value >= 0)
+                writeHead(UNSIGNED, value);
+            else writeHead(NEGATIVE, -1 - value);
+        }
+        else writeByte(NULL);
+    }
+
+    private void writeDouble(double d) {
+        writeByte(DOUBLE);
+        writeBigEndian(Double.doubleToLongBits(d), 8);
+    }
+
+    private void writeFloat(float f) {
+        writeByte(FLOAT);
+        writeBigEndian(Float.floatToIntBits(f), 4);
+    }
+
+    private void writeText(String s) {
+        byte[] bytes = s.getBytes(UTF8);
+        writeHead(TEXT, bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    // *** Items *** //
+
+    // An item head in its shortest form
+    private void writeHead(int major, long argument) {
+        int type = major << 5;
+        if (argument < 24)
+            writeByte(type | (int) argument);
+        else if (argument < 0x100) {
+            writeByte(type | 24);
+            writeBigEndian(argument, 1);
+        }
+        else if (argument < 0x10000) {
+            writeByte(type | 25);
+            writeBigEndian(argument, 2);
+        }
+        else if (argument < 0x100000000L) {
+            writeByte(type | 26);
+            writeBigEndian(argument, 4);
+        }
+        else {
+            writeByte(type | 27);
+            writeBigEndian(argument, 8);
+        }
+    }
+
+    private void writeBigEndian(long value, int bytes) {
+        ensure(bytes);
+        for (int i = bytes - 1; i >= 0; i--)
+            buffer[length++] = (byte) (value >>> (8 * i));
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void ensure(int bytes) {
+        if (length + bytes > buffer.length) {
+            byte[] larger = new byte[Math.max(buffer.length * 2, length + bytes)];
+            System.arraycopy(buffer, 0, larger, 0, length);
+            buffer = larger;
+        }
+    }
+}
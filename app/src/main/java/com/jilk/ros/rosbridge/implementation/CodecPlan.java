@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosbridge.indication.Indication;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A CodecPlan is everything JSON needs to know about a class in order to
+//    encode or decode it, worked out once on first sight of the class:
+//    the fields in declared order, what kind of thing each field holds,
+//    the annotations that apply to it, and the nullary constructor.
+//    Plans are immutable after construction, so they can be shared between
+//    the socket thread and any thread that publishes.
+//
+//    If the processor module generated a MessageCodec for the class, the
+//    plan carries it and JSONEncoder/JSONDecoder use it instead of the
+//    reflective field list.
+
+public class CodecPlan {
+
+    public enum Kind {
+        PRIMITIVE,          // primitive, boxed primitive or String
+        PRIMITIVE_ARRAY,    // array of any of the above
+        MESSAGE,            // nested Message
+        MESSAGE_ARRAY,      // array of nested Messages
+        INDICATED,          // Message whose class comes from the Indicator field
+        AS_ARRAY,           // Message sent as a JSON array of its field values
+        BASE64              // byte[] sent as a Base64 string
+    }
+
+    public static final String CODEC_SUFFIX = "$$Codec";
+
+    private static final Map<Class, CodecPlan> plans = new ConcurrentHashMap<Class, CodecPlan>();
+
+    public final Class type;
+    public final FieldPlan[] fields;
+    public final String indicatorName;
+    public final String indicatedName;
+    public final MessageCodec codec;
+    private final Constructor constructor;
+
+    private CodecPlan(Class c) {
+        type = c;
+        Field[] classFields = c.getFields();
+        fields = new FieldPlan[classFields.length];
+        for (int i = 0; i < classFields.length; i++)
+            fields[i] = new FieldPlan(classFields[i]);
+        indicatorName = Indication.getIndicatorName(c);
+        indicatedName = Indication.getIndicatedName(c);
+        constructor = findConstructor(c);
+        codec = findCodec(c);
+    }
+
+    /**
+     * Returns the plan for a class, building and caching it the first time
+     * the class is seen. Two threads racing on a new class may both build a
+     * plan; they are identical, so whichever lands in the cache is fine.
+     * @param c  the class to be encoded or decoded
+     * @return   the shared, immutable plan for the class
+     */
+    public static CodecPlan forClass(Class c) {
+        CodecPlan plan = plans.get(c);
+        if (plan == null) {
+            plan = new CodecPlan(c);
+            plans.put(c, plan);
+        }
+        return plan;
+    }
+
+    public Object newInstance() throws Exception {
+        if (constructor == null)
+            throw new InstantiationException("No nullary constructor for " + type.getName());
+        return constructor.newInstance();
+    }
+
+    // Inner and non-public message classes need the accessible flag set
+    //    before the constructor can be called from here.
+    private static Constructor findConstructor(Class c) {
+        Constructor result = null;
+        try {
+            result = c.getDeclaredConstructor();
+            result.setAccessible(true);
+        }
+        catch (Exception ex) {
+            // leave it null; newInstance reports the problem when it is used
+        }
+        return result;
+    }
+
+    // Generated codecs are named after the binary name of the class, so
+    //    this is the only reflection involved in using one.
+    private static MessageCodec findCodec(Class c) {
+        MessageCodec result = null;
+        try {
+            Class codecClass = Class.forName(c.getName() + CODEC_SUFFIX, true, c.getClassLoader());
+            if (MessageCodec.class.isAssignableFrom(codecClass))
+                result = (MessageCodec) codecClass.newInstance();
+        }
+        catch (ClassNotFoundException ex) {
+            // no generated codec; use the plan
+        }
+        catch (Exception ex) {
+            System.out.println("Unable to use codec for " + c.getName() + ": " + ex.getMessage());
+        }
+        return result;
+    }
+
+    public static class FieldPlan {
+        public final Field field;
+        public final String name;
+        public final Kind kind;
+        public final Class elementClass;    // the field type, or its component type for arrays
+        public final boolean indicated;
+        public final boolean asArray;
+
+        public FieldPlan(Field f) {
+            field = f;
+            name = f.getName();
+            indicated = Indication.isIndicated(f);
+            asArray = Indication.asArray(f);
+            Class fc = f.getType();
+            elementClass = fc.isArray() ? fc.getComponentType() : fc;
+            if (Indication.isBase64Encoded(f))
+                kind = Kind.BASE64;
+            else if (asArray)
+                kind = Kind.AS_ARRAY;
+            else if (indicated)
+                kind = Kind.INDICATED;
+            else if (Message.isPrimitive(fc))
+                kind = Kind.PRIMITIVE;
+            else if (fc.isArray())
+                kind = Message.isPrimitive(elementClass) ? Kind.PRIMITIVE_ARRAY : Kind.MESSAGE_ARRAY;
+            else kind = Kind.MESSAGE;
+        }
+
+        // This is just to buffer the code from the exception. Better error
+        //    handling needed here.
+        public Object get(Object o) {
+            Object fo = null;
+            try {
+                fo = field.get(o);
+            }
+            catch (IllegalAccessException ex) {
+                ex.printStackTrace();
+            }
+            return fo;
+        }
+
+        public void set(Object o, Object value) throws IllegalAccessException {
+            field.set(o, value);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Running totals of bytes on the wire against bytes after decompression,
+//    kept per topic (or service), so that the value of a compression
+//    setting can be seen for each one. Safe to update and read from any
+//    thread, since decoding may run on a pool as well as the socket thread.
+
+public class CompressionStats {
+    private final ConcurrentMap<String, long[]> totals = new ConcurrentHashMap<String, long[]>();
+
+    public void record(String name, long compressedBytes, long uncompressedBytes) {
+        if (name == null)
+            return;
+        long[] t = totals.get(name);
+        if (t == null) {
+            // two first records for a name may race; both add to the winner
+            long[] fresh = new long[2];
+            t = totals.putIfAbsent(name, fresh);
+            if (t == null)
+                t = fresh;
+        }
+        synchronized (t) {
+            t[0] += compressedBytes;
+            t[1] += uncompressedBytes;
+        }
+    }
+
+    public long getCompressedBytes(String name) {
+        long[] t = totals.get(name);
+        if (t == null)
+            return 0;
+        synchronized (t) {
+            return t[0];
+        }
+    }
+
+    public long getUncompressedBytes(String name) {
+        long[] t = totals.get(name);
+        if (t == null)
+            return 0;
+        synchronized (t) {
+            return t[1];
+        }
+    }
+
+    // Uncompressed size over compressed size, e.g. 4.0 means a quarter of
+    //    the bytes went over the wire. 0 if nothing has been recorded.
+    public double getRatio(String name) {
+        long[] t = totals.get(name);
+        if (t == null)
+            return 0;
+        synchronized (t) {
+            return (t[0] == 0) ? 0 : (double) t[1] / t[0];
+        }
+    }
+
+    public String[] getNames() {
+        return totals.keySet().toArray(new String[0]);
+    }
+
+    public void clear() {
+        totals.clear();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+
+// The last number a decoder read, kept in the forms the field setters need
+//    so that numbers go into primitive fields and arrays without boxing.
+//    The narrowing conversions follow java.lang.Number: an integer that
+//    arrives as a decimal is truncated the same way Double.intValue() does.
+//    Shared by JSONDecoder and CBORDecoder; one per decoder instance.
+
+class DecodedNumber {
+    boolean integral;
+    long longValue;
+    double doubleValue;
+
+    void setLong(long value) {
+        integral = true;
+        longValue = value;
+        doubleValue = value;
+    }
+
+    void setDouble(double value) {
+        integral = false;
+        doubleValue = value;
+        longValue = (long) value;
+    }
+
+    int intValue() {
+        return integral ? (int) longValue : (int) doubleValue;
+    }
+
+    // Boxed value for a non-primitive (boxed or Object) target, converted to
+    //    the target type where there is one.
+    Object box(Class c) {
+        if (c.equals(Double.class) || c.equals(double.class))
+            return Double.valueOf(doubleValue);
+        if (c.equals(Float.class) || c.equals(float.class))
+            return Float.valueOf((float) doubleValue);
+        if (c.equals(Long.class) || c.equals(long.class))
+            return Long.valueOf(longValue);
+        if (c.equals(Integer.class) || c.equals(int.class))
+            return Integer.valueOf(intValue());
+        if (c.equals(Short.class) || c.equals(short.class))
+            return Short.valueOf((short) intValue());
+        if (c.equals(Byte.class) || c.equals(byte.class))
+            return Byte.valueOf((byte) intValue());
+        if (c.equals(BigInteger.class))
+            return BigInteger.valueOf(longValue);
+        return integral ? (Object) Long.valueOf(longValue) : (Object) Double.valueOf(doubleValue);
+    }
+
+    void set(Field f, Object target) throws IllegalAccessException {
+        Class c = f.getType();
+        if (c == double.class)
+            f.setDouble(target, doubleValue);
+        else if (c == float.class)
+            f.setFloat(target, (float) doubleValue);
+        else if (c == long.class)
+            f.setLong(target, longValue);
+        else if (c == int.class)
+            f.setInt(target, intValue());
+        else if (c == short.class)
+            f.setShort(target, (short) intValue());
+        else if (c == byte.class)
+            f.setByte(target, (byte) intValue());
+        else throw new IllegalArgumentException("Number for " + c.getName() + " field " + f.getName());
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+// Figures for permessage-deflate on one connection, in each direction:
+//    messages and bytes before and after compression, and the time spent
+//    compressing or decompressing them, which is the CPU the saving costs.
+
+public class DeflateStats {
+    private long inMessages;
+    private long inWireBytes;
+    private long inflatedBytes;
+    private long inflateNanos;
+
+    private long outMessages;
+    private long outWireBytes;
+    private long deflatedBytes;
+    private long deflateNanos;
+
+    synchronized void recordInflate(long wireBytes, long bytes, long nanos) {
+        inMessages++;
+        inWireBytes += wireBytes;
+        inflatedBytes += bytes;
+        inflateNanos += nanos;
+    }
+
+    // An outgoing message sent uncompressed, because it was too small or
+    //    would not shrink, has its time counted with wireBytes == bytes
+    synchronized void recordDeflate(long bytes, long wireBytes, long nanos) {
+        outMessages++;
+        deflatedBytes += bytes;
+        outWireBytes += wireBytes;
+        deflateNanos += nanos;
+    }
+
+    public synchronized long getInboundMessages() {
+        return inMessages;
+    }
+
+    public synchronized long getInboundWireBytes() {
+        return inWireBytes;
+    }
+
+    public synchronized long getInboundBytes() {
+        return inflatedBytes;
+    }
+
+    public synchronized long getOutboundMessages() {
+        return outMessages;
+    }
+
+    public synchronized long getOutboundWireBytes() {
+        return outWireBytes;
+    }
+
+    public synchronized long getOutboundBytes() {
+        return deflatedBytes;
+    }
+
+    // Bytes after decompression over bytes received compressed, e.g. 4.0
+    //    means a quarter of the bytes went over the wire. 0 if none yet.
+    public synchronized double getInboundRatio() {
+        return (inWireBytes == 0) ? 0 : (double) inflatedBytes / inWireBytes;
+    }
+
+    public synchronized double getOutboundRatio() {
+        return (outWireBytes == 0) ? 0 : (double) deflatedBytes / outWireBytes;
+    }
+
+    public synchronized double getInflateMillis() {
+        return inflateNanos / 1e6;
+    }
+
+    public synchronized double getDeflateMillis() {
+        return deflateNanos / 1e6;
+    }
+
+    // CPU cost per megabyte of decompressed data, to weigh against the saving
+    public synchronized double getInflateMillisPerMB() {
+        return (inflatedBytes == 0) ? 0 : inflateNanos / 1e6 / (inflatedBytes / 1048576.0);
+    }
+
+    public synchronized double getDeflateMillisPerMB() {
+        return (deflatedBytes == 0) ? 0 : deflateNanos / 1e6 / (deflatedBytes / 1048576.0);
+    }
+
+    public synchronized void reset() {
+        inMessages = 0;
+        inWireBytes = 0;
+        inflatedBytes = 0;
+        inflateNanos = 0;
+        outMessages = 0;
+        outWireBytes = 0;
+        deflatedBytes = 0;
+        deflateNanos = 0;
+    }
+}
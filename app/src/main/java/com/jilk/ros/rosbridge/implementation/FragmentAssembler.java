@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Puts messages that rosbridge split into numbered parts back together:
+//    "fragment" operations (from fragment_size) and multi-part "png"
+//    operations both carry pieces of one string, numbered num out of total
+//    and sharing an id. Parts of different messages may interleave.
+//
+//    Each message in progress appends its parts, in order, to a
+//    StringBuilder taken from a small pool, so a steady stream of large
+//    messages reuses the same few buffers. A part that arrives ahead of its
+//    turn is held until the gap is filled.
+//
+//    Memory is bounded per connection: when the parts held would go over
+//    the budget, the oldest incomplete messages are dropped to make room,
+//    and a message that alone exceeds it is dropped outright. A message
+//    that has had no new part within the timeout is dropped by a sweep on
+//    the shared TimerWheel, which runs only while messages are in
+//    progress, so a stream that stalls for good does not pin its parts.
+//    Parts normally arrive on the one dispatch thread; the sweep and a
+//    close also change the table, so all of them hold the lock, and the
+//    counters can be read from any thread.
+
+public class FragmentAssembler {
+
+    public static final int DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;   // bytes
+    public static final long DEFAULT_TIMEOUT = 30000;                   // ms
+
+    private static final int POOL_SIZE = 4;
+
+    private int memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private long timeout = DEFAULT_TIMEOUT;
+
+    // In order of first part, so the first entry is always the oldest
+    private final Map<String, Partial> partials = new LinkedHashMap<String, Partial>();
+    private final ArrayDeque<StringBuilder> pool = new ArrayDeque<StringBuilder>();
+    private long bytesHeld;
+    private final TimerWheel timers = TimerWheel.getShared();
+    private Sweep sweep;                // the one scheduled, if any
+
+    private volatile long completed;
+    private volatile long dropped;
+
+    /**
+     * Adds one part of a message.
+     * @param id     the id shared by all parts of the message
+     * @param num    this part's number, from 0
+     * @param total  the number of parts in the message
+     * @param data   this part's piece of the message
+     * @return       the whole message if this part completed it, else null
+     */
+    public synchronized String add(String id, int num, int total, String data) {
+        if (data == null || num < 0 || num >= total)
+            return null;
+        if (total == 1) {
+            completed++;
+            return data;
+        }
+
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        String key = (id == null) ? "" : id;
+        Partial partial = partials.get(key);
+        if (partial != null && partial.total != total) {
+            drop(key, partial);                 // a new message reusing the id
+            partial = null;
+        }
+        if (partial == null) {
+            partial = new Partial(total, take());
+            partials.put(key, partial);
+            if (sweep == null)
+                scheduleSweep(timeout);
+        }
+        partial.lastPart = now;
+
+        long size = 2L * data.length();
+        if (partial.bytes + size > memoryBudget) {
+            drop(key, partial);
+            return null;
+        }
+        makeRoom(key, size);
+        bytesHeld += size;
+        partial.bytes += size;
+
+        if (num == partial.next) {
+            partial.text.append(data);
+            partial.next++;
+            String early;
+            while ((early = partial.early.remove(partial.next)) != null) {
+                partial.text.append(early);
+                partial.next++;
+            }
+        }
+        else if (num > partial.next && !partial.early.containsKey(num))
+            partial.early.put(num, data);
+        else {
+            bytesHeld -= size;                  // a repeat of a part already in
+            partial.bytes -= size;
+        }
+
+        if (partial.next < total)
+            return null;
+        partials.remove(key);
+        bytesHeld -= partial.bytes;
+        String result = partial.text.toString();
+        give(partial.text);
+        completed++;
+        return result;
+    }
+
+    public void setMemoryBudget(int bytes) {
+        memoryBudget = bytes;
+    }
+
+    public void setTimeout(long millis) {
+        timeout = millis;
+    }
+
+    // Messages put back together since the connection was created
+    public long getCompletedCount() {
+        return completed;
+    }
+
+    // Incomplete messages dropped for the memory budget or the timeout
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    public synchronized long getBytesHeld() {
+        return bytesHeld;
+    }
+
+    // Drop everything in progress, e.g. when the connection closes
+    public synchronized void clear() {
+        for (Partial partial : partials.values())
+            give(partial.text);
+        partials.clear();
+        bytesHeld = 0;
+        if (sweep != null) {
+            sweep.timeout.cancel();
+            sweep = null;
+        }
+    }
+
+    private void scheduleSweep(long delay) {
+        sweep = new Sweep();
+        sweep.timeout = timers.schedule(sweep, delay);
+    }
+
+    // Drop what has timed out, then come back when the next message in
+    //    progress would time out, if there is one
+    private synchronized void sweep(Sweep s) {
+        if (s != sweep)
+            return;         // cancelled by a clear, or replaced
+        sweep = null;
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (partials.isEmpty())
+            return;
+        long oldest = now;
+        for (Partial partial : partials.values())
+            oldest = Math.min(oldest, partial.lastPart);
+        scheduleSweep(Math.max(1, oldest + timeout - now + 1));
+    }
+
+    // Drop the oldest incomplete messages, other than the one being added
+    //    to, until another part of this size fits.
+    private void makeRoom(String key, long size) {
+        Iterator<Map.Entry<String, Partial>> it = partials.entrySet().iterator();
+        while (bytesHeld + size > memoryBudget && it.hasNext()) {
+            Map.Entry<String, Partial> entry = it.next();
+            if (entry.getKey().equals(key))
+                continue;
+            it.remove();
+            release(entry.getValue());
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            Partial partial = it.next();
+            if (now - partial.lastPart > timeout) {
+                it.remove();
+                release(partial);
+            }
+        }
+    }
+
+    private void drop(String key, Partial partial) {
+        partials.remove(key);
+        release(partial);
+    }
+
+    private void release(Partial partial) {
+        bytesHeld -= partial.bytes;
+        give(partial.text);
+        dropped++;
+    }
+
+    private StringBuilder take() {
+        StringBuilder sb = pool.poll();
+        return (sb == null) ? new StringBuilder() : sb;
+    }
+
+    // Keep the buffer for the next message unless it would pin too much
+    private void give(StringBuilder sb) {
+        sb.setLength(0);
+        if (pool.size() < POOL_SIZE && 2L * sb.capacity() <= memoryBudget / POOL_SIZE)
+            pool.push(sb);
+    }
+
+    private class Sweep implements Runnable {
+        TimerWheel.Timeout timeout;
+
+        @Override
+        public void run() {
+            sweep(this);
+        }
+    }
+
+    private static class Partial {
+        final int total;
+        final StringBuilder text;
+        final Map<Integer, String> early = new HashMap<Integer, String>();
+        int next;
+        long bytes;
+        long lastPart;
+
+        Partial(int total, StringBuilder text) {
+            this.total = total;
+            this.text = text;
+        }
+    }
+}
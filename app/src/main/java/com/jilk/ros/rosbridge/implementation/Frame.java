@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosbridge.operation.Advertise;
+import com.jilk.ros.rosbridge.operation.Authenticate;
+import com.jilk.ros.rosbridge.operation.CallService;
+import com.jilk.ros.rosbridge.operation.Fragment;
+import com.jilk.ros.rosbridge.operation.PNG;
+import com.jilk.ros.rosbridge.operation.Publish;
+import com.jilk.ros.rosbridge.operation.ServiceResponse;
+import com.jilk.ros.rosbridge.operation.SetStatusLevel;
+import com.jilk.ros.rosbridge.operation.Status;
+import com.jilk.ros.rosbridge.operation.Subscribe;
+import com.jilk.ros.rosbridge.operation.Unadvertise;
+import com.jilk.ros.rosbridge.operation.Unsubscribe;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+// A text frame from rosbridge with only its header read: op, id, and the
+//    topic or service it is for. The body ("msg" of a publish, "values" of
+//    a service response) is only located, by its start and end in the
+//    text, and is decoded when someone asks for it, in the form they ask
+//    for: a typed Message, the raw JSON, or a JSON-simple tree. A frame that
+//    nobody asks about costs one pass over its text and no allocation
+//    beyond the header strings.
+//
+//    Even those are not made when they can be avoided: the op, and a topic
+//    or service in the registry's NameTable, are matched in the text and
+//    the table's own String is used, with its handle kept for lookups.
+
+public class Frame {
+    private static final String[] HEADER = {"op", "id", "topic", "service", "msg", "values"};
+    private static final NameTable OPS = new NameTable(
+            Message.getMessageType(Publish.class),
+            Message.getMessageType(ServiceResponse.class),
+            Message.getMessageType(Fragment.class),
+            Message.getMessageType(PNG.class),
+            Message.getMessageType(Status.class),
+            Message.getMessageType(Subscribe.class),
+            Message.getMessageType(Unsubscribe.class),
+            Message.getMessageType(Advertise.class),
+            Message.getMessageType(Unadvertise.class),
+            Message.getMessageType(CallService.class),
+            Message.getMessageType(SetStatusLevel.class),
+            Message.getMessageType(Authenticate.class));
+
+    private final String json;
+    private final Registry<Class> registry;
+    private String op;
+    private String id;
+    private String name;
+    private int handle = -1;
+    private int bodyStart = -1;
+    private int bodyEnd = -1;
+
+    private Class messageClass;
+    private Message message;
+
+    private Frame(String json, Registry<Class> registry) {
+        this.json = json;
+        this.registry = registry;
+    }
+
+    /**
+     * Reads the header of a frame and finds its body.
+     * @param json      the frame text
+     * @param registry  used to match the topic or service to a handle, and
+     *                  to decode Indicated fields in the body later; may be
+     *                  null if neither is wanted
+     * @return          the frame, or null if the header can't be read, in
+     *                  which case the frame should be decoded in full
+     */
+    public static Frame scan(String json, Registry<Class> registry) {
+        Frame frame = new Frame(json, registry);
+        try {
+            JSONDecoder decoder = new JSONDecoder(json, registry);
+            if (decoder.beginObject()) {
+                do {
+                    switch (decoder.nextKey(HEADER)) {
+                        case 0: frame.op = readName(decoder, OPS); break;
+                        case 1: frame.id = decoder.readString(); break;
+                        case 2:
+                        case 3:
+                            if (registry == null) {
+                                frame.name = decoder.readString();
+                                break;
+                            }
+                            NameTable names = registry.getNames();
+                            frame.handle = decoder.readName(names);
+                            if (frame.handle >= 0)
+                                frame.name = names.getName(frame.handle);
+                            else {
+                                frame.name = decoder.readString();     // unknown, or written with escapes
+                                frame.handle = names.find(frame.name);
+                            }
+                            break;
+                        case 4:
+                        case 5:
+                            frame.bodyStart = decoder.getPosition();
+                            decoder.skip();
+                            frame.bodyEnd = decoder.getPosition();
+                            break;
+                    }
+                } while (decoder.nextMember());
+            }
+        }
+        catch (RuntimeException ex) {
+            return null;
+        }
+        return frame;
+    }
+
+    private static String readName(JSONDecoder decoder, NameTable names) {
+        int h = decoder.readName(names);
+        return (h >= 0) ? names.getName(h) : decoder.readString();
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    // The topic of a publish, or the service of a service response
+    public String getName() {
+        return name;
+    }
+
+    // The handle of getName() in the registry's NameTable, or -1 if it has
+    //    none, in which case nothing is registered for it
+    public int getHandle() {
+        return handle;
+    }
+
+    public boolean hasBody() {
+        return bodyStart >= 0;
+    }
+
+    // The body exactly as it was sent
+    public String getBodyJSON() {
+        return hasBody() ? json.substring(bodyStart, bodyEnd) : null;
+    }
+
+    /**
+     * Decodes the body into a Message of the given class. The result is kept,
+     * so asking again for the same class does not decode again.
+     * @param c  the Message class of the body
+     * @return   the decoded body, or null if there is none or it does not fit c
+     */
+    public Message getMessage(Class c) {
+        if (c == null || !hasBody())
+            return null;
+        if (c != messageClass) {
+            message = new JSONDecoder(json, bodyStart, bodyEnd, registry).decode(c);
+            messageClass = c;
+        }
+        return message;
+    }
+
+    // The body as JSON-simple objects, for code that works with those
+    public Object getTree() {
+        if (!hasBody())
+            return null;
+        try {
+            return new JSONParser().parse(getBodyJSON());
+        }
+        catch (ParseException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    public String getJSON() {
+        return json;
+    }
+}
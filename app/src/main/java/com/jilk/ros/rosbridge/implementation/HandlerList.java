@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosbridge.FrameHandler;
+import com.jilk.ros.rosbridge.FullMessageHandler;
+
+import java.util.Arrays;
+
+// Several handlers registered for one topic, standing in the Registry as
+//    one. A frame is decoded once and the same Message goes to each of them,
+//    in the order they were added. The handlers are kept in an array that
+//    is replaced, never changed, when one is added or removed, so delivery
+//    takes no lock and allocates nothing.
+
+public class HandlerList implements FullMessageHandler {
+    private static final FullMessageHandler[] NONE = new FullMessageHandler[0];
+
+    private volatile FullMessageHandler[] handlers = NONE;
+    private volatile boolean wantsMessage;
+
+    // Returns the number of handlers after adding; adding one already
+    //    there changes nothing
+    public synchronized int add(FullMessageHandler handler) {
+        for (FullMessageHandler h : handlers)
+            if (h == handler)
+                return handlers.length;
+        FullMessageHandler[] newHandlers = Arrays.copyOf(handlers, handlers.length + 1);
+        newHandlers[handlers.length] = handler;
+        publish(newHandlers);
+        return newHandlers.length;
+    }
+
+    // Returns the number of handlers after removing
+    public synchronized int remove(FullMessageHandler handler) {
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i] == handler) {
+                FullMessageHandler[] newHandlers = new FullMessageHandler[handlers.length - 1];
+                System.arraycopy(handlers, 0, newHandlers, 0, i);
+                System.arraycopy(handlers, i + 1, newHandlers, i, newHandlers.length - i);
+                publish(newHandlers);
+                break;
+            }
+        }
+        return handlers.length;
+    }
+
+    private void publish(FullMessageHandler[] newHandlers) {
+        boolean wants = false;
+        for (FullMessageHandler h : newHandlers)
+            wants |= !(h instanceof FrameHandler);
+        wantsMessage = wants;
+        handlers = newHandlers;
+    }
+
+    public int size() {
+        return handlers.length;
+    }
+
+    // True if any handler takes a decoded Message rather than the Frame
+    public boolean wantsMessage() {
+        return wantsMessage;
+    }
+
+    @Override
+    public void onMessage(String id, Message message) {
+        for (FullMessageHandler h : handlers)
+            deliver(h, id, message);
+    }
+
+    // FrameHandlers get the frame, the rest the Message decoded from it
+    public void onFrame(Frame frame, Message message) {
+        for (FullMessageHandler h : handlers) {
+            if (h instanceof FrameHandler) {
+                try {
+                    ((FrameHandler) h).onFrame(frame);
+                }
+                catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            else deliver(h, frame.getId(), message);
+        }
+    }
+
+    // One handler that throws does not keep the message from the others
+    private static void deliver(FullMessageHandler h, String id, Message message) {
+        try {
+            h.onMessage(id, message);
+        }
+        catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,1062 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosbridge.operation.Wrapper;
+
+import java.lang.reflect.Array;
+import java.math.BigInteger;
+
+// A pull-style decoder that reads a rosbridge text frame once and writes
+//    the values straight into the target Message fields, guided by the
+//    CodecPlan of each class. There is no intermediate JSONObject tree and
+//    numbers are not boxed on their way into primitive fields or arrays.
+//
+//    Indicated fields (Publish.msg, ServiceResponse.values, ...) get their
+//    class from the Registry as soon as the Indicator field (topic, service)
+//    has been read. rosbridge does not promise any key order, so if the
+//    indicated body comes first its position is remembered, it is skipped,
+//    and it is decoded in place once the rest of the object has been read.
+//
+//    A decoder instance holds the parse position and is meant for a single
+//    frame on a single thread.
+
+public class JSONDecoder {
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final String json;
+    private final int length;
+    private final Registry<Class> registry;
+    private int pos;
+
+    // Result of the last scanNumber(), kept here so numbers need no boxing
+    private final DecodedNumber number = new DecodedNumber();
+
+    public JSONDecoder(String json, Registry<Class> registry) {
+        this.json = json;
+        this.length = json.length();
+        this.registry = registry;
+        this.pos = 0;
+    }
+
+    // Decode only json[start, end), such as the body located by a Frame,
+    //    without copying it out first.
+    public JSONDecoder(String json, int start, int end, Registry<Class> registry) {
+        this.json = json;
+        this.length = end;
+        this.registry = registry;
+        this.pos = start;
+    }
+
+    /**
+     * Decodes the frame into an instance of the given class. If the class is
+     * a @Wrapper, the concrete operation class is found through the registry
+     * from the top-level Indicator (the "op" field) and the whole frame is
+     * decoded into it, which gives the same hierarchy as JSON.toMessage
+     * always has.
+     * @param c  the top level class of the JSON. Normally @Wrapper
+     * @return   the decoded message, or null if the frame is not valid JSON
+     */
+    public Message decode(Class c) {
+        try {
+            skipWhitespace();
+            if (Wrapper.class.isAssignableFrom(c))
+                return decodeWrapped(c);
+            return (Message) decodeObject(c);
+        }
+        catch (RuntimeException ex) {
+            System.out.println(ex.getMessage());
+            return null;
+        }
+    }
+
+    // *** Objects *** //
+
+    private Message decodeWrapped(Class c) {
+        CodecPlan plan = CodecPlan.forClass(c);
+        String indicator = findTopLevelString(plan.indicatorName);
+        Class indicated = registry.lookup(c, indicator);
+        try {
+            Message result = (Message) plan.newInstance();
+            for (CodecPlan.FieldPlan fp : plan.fields) {
+                if (fp.name.equals(plan.indicatorName))
+                    fp.set(result, indicator);
+            }
+            Object body = decodeObject(indicated);
+            for (CodecPlan.FieldPlan fp : plan.fields) {
+                if (fp.name.equals(plan.indicatedName))
+                    fp.set(result, body);
+            }
+            return result;
+        }
+        catch (Exception ex) {
+            return null;
+        }
+    }
+
+    // Decode a JSON object into a new instance of c. If c is null or cannot
+    //    be instantiated or filled in, the object is still consumed so that
+    //    the parse can continue, and null is returned in its place.
+    private Object decodeObject(Class c) {
+        CodecPlan plan = (c == null) ? null : CodecPlan.forClass(c);
+        if (plan != null && plan.codec != null)
+            return plan.codec.decode(this);
+        expect('{');
+        Object result = null;
+        boolean failed = (plan == null);
+        if (!failed) {
+            try {
+                result = plan.newInstance();
+            }
+            catch (Exception ex) {
+                failed = true;
+            }
+        }
+
+        String indicator = null;
+        CodecPlan.FieldPlan deferredField = null;
+        int deferredPos = -1;
+
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return failed ? null : result;
+        }
+        while (true) {
+            skipWhitespace();
+            CodecPlan.FieldPlan fp = failed ? null : readKey(plan);
+            if (failed)
+                skipString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            if (fp == null || peek() == 'n')
+                skipValue();
+            else if (fp.indicated && plan.indicatorName != null && indicator == null) {
+                deferredField = fp;
+                deferredPos = pos;
+                skipValue();
+            }
+            else {
+                Class fc = fp.indicated ? registry.lookup(plan.type, indicator) : fp.elementClass;
+                if (!readField(result, plan, fp, fc))
+                    failed = true;
+                else if (fp.name.equals(plan.indicatorName)) {
+                    Object value = fp.get(result);
+                    if (value instanceof String)
+                        indicator = (String) value;
+                }
+            }
+
+            skipWhitespace();
+            char ch = next();
+            if (ch == '}')
+                break;
+            if (ch != ',')
+                throw error("',' or '}'");
+        }
+
+        if (deferredField != null && !failed) {
+            int end = pos;
+            pos = deferredPos;
+            if (!readField(result, plan, deferredField, registry.lookup(plan.type, indicator)))
+                failed = true;
+            pos = end;
+        }
+        return failed ? null : result;
+    }
+
+    // Decode a JSON array into the fields of a new instance of c, in
+    //    declared order. This is the receive side of @AsArray.
+    //    NOTE: This relies on later versions of the JDK providing
+    //          the fields in order.
+    private Object decodeArrayAsMessage(Class c) {
+        expect('[');
+        CodecPlan plan = (c == null) ? null : CodecPlan.forClass(c);
+        Object result = null;
+        boolean failed = (plan == null);
+        if (!failed) {
+            try {
+                result = plan.newInstance();
+            }
+            catch (Exception ex) {
+                failed = true;
+            }
+        }
+
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return failed ? null : result;
+        }
+        int index = 0;
+        while (true) {
+            skipWhitespace();
+            if (failed || plan.fields.length <= index || peek() == 'n')
+                skipValue();
+            else {
+                CodecPlan.FieldPlan fp = plan.fields[index];
+                if (!readField(result, plan, fp, fp.elementClass))
+                    failed = true;
+            }
+            index++;
+            skipWhitespace();
+            char ch = next();
+            if (ch == ']')
+                break;
+            if (ch != ',')
+                throw error("',' or ']'");
+        }
+        return failed ? null : result;
+    }
+
+    // Find the plan entry whose name matches the key at the current position,
+    //    without allocating a String for the key unless it contains escapes.
+    private CodecPlan.FieldPlan readKey(CodecPlan plan) {
+        expect('"');
+        int start = pos;
+        while (pos < length) {
+            char ch = json.charAt(pos);
+            if (ch == '"')
+                break;
+            if (ch == '\\') {
+                pos = start - 1;
+                return findField(plan, scanString());
+            }
+            pos++;
+        }
+        int keyLength = pos - start;
+        expect('"');
+        for (CodecPlan.FieldPlan fp : plan.fields) {
+            if (fp.name.length() == keyLength && json.regionMatches(start, fp.name, 0, keyLength))
+                return fp;
+        }
+        return null;
+    }
+
+    private static CodecPlan.FieldPlan findField(CodecPlan plan, String name) {
+        for (CodecPlan.FieldPlan fp : plan.fields) {
+            if (fp.name.equals(name))
+                return fp;
+        }
+        return null;
+    }
+
+    // Read the value at the current position and store it in every field of
+    //    the plan that has this name (a subclass may hide a superclass field
+    //    of the same name, as Wrapper does with "op"). Returns false if the
+    //    value could not be stored, which fails the enclosing message.
+    private boolean readField(Object target, CodecPlan plan, CodecPlan.FieldPlan fp, Class fc) {
+        char ch = peek();
+        try {
+            if (fp.field.getType().isPrimitive() && isNumberStart(ch)) {
+                scanNumber();
+                for (CodecPlan.FieldPlan f : plan.fields) {
+                    if (f.name.equals(fp.name))
+                        number.set(f.field, target);
+                }
+                return true;
+            }
+
+            // A nested object of a known class that could not be decoded
+            //    fails this one too, so a bad message is never delivered
+            //    with a hole in it. With no class (e.g. an unknown topic)
+            //    null is all there is to store.
+            Object value;
+            if (ch == '{') {
+                value = decodeObject(fc);
+                if (value == null && fc != null)
+                    return false;
+            }
+            else if (ch == '[') {
+                if (fp.asArray) {
+                    value = decodeArrayAsMessage(fc);
+                    if (value == null && fc != null)
+                        return false;
+                }
+                else value = decodeArray(fc);
+            }
+            else if (ch == '"') {
+                String s = scanString();
+                if (fp.kind == CodecPlan.Kind.BASE64)
+                    value = Base64.decode(s);
+                else value = s;
+            }
+            else value = readPrimitive(fc);
+
+            for (CodecPlan.FieldPlan f : plan.fields) {
+                if (f.name.equals(fp.name))
+                    f.set(target, value);
+            }
+            return true;
+        }
+        catch (IllegalArgumentException ex) {
+            return false;
+        }
+        catch (IllegalAccessException ex) {
+            return false;
+        }
+    }
+
+    // *** Arrays *** //
+
+    // Decode a JSON array into a Java array of component type c. The elements
+    //    are counted first so that the exact array can be allocated once.
+    //    Primitive component types have their own loops below.
+    private Object decodeArray(Class c) {
+        if (c == null) {
+            skipValue();
+            return null;
+        }
+        if (c.isPrimitive())
+            return decodePrimitiveArray(c);
+        int n = countElements();
+        expect('[');
+        Object result = Array.newInstance(c, n);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                skipWhitespace();
+                expect(',');
+            }
+            skipWhitespace();
+            char ch = peek();
+            if (ch == 'n')
+                skipValue();                        // null elements are left at their default
+            else if (ch == '{') {
+                Object value = decodeObject(c);
+                setElement(result, i, value);
+            }
+            else if (ch == '[')                     // this is not actually allowed in ROS
+                setElement(result, i, decodeArray(c.getComponentType()));
+            else if (ch == '"')
+                setElement(result, i, scanString());
+            else setElement(result, i, readPrimitive(c));
+        }
+        skipWhitespace();
+        expect(']');
+        return result;
+    }
+
+    // Elements of the wrong JSON type for the array are left out rather
+    //    than failing the whole message.
+    private static void setElement(Object array, int i, Object value) {
+        if (value != null) {
+            try {
+                Array.set(array, i, value);
+            }
+            catch (IllegalArgumentException ex) {
+                // leave the default
+            }
+        }
+    }
+
+    private int countElements() {
+        int start = pos;
+        expect('[');
+        skipWhitespace();
+        int n = 0;
+        if (peek() != ']') {
+            while (true) {
+                skipWhitespace();
+                skipValue();
+                n++;
+                skipWhitespace();
+                char ch = next();
+                if (ch == ']')
+                    break;
+                if (ch != ',')
+                    throw error("',' or ']'");
+            }
+        }
+        pos = start;
+        return n;
+    }
+
+    // *** Reading API for generated codecs *** //
+
+    // A MessageCodec generated for a @MessageType class decodes its fields
+    //    with straight-line calls to the methods below, in this pattern:
+    //
+    //        if (decoder.beginObject()) {
+    //            do {
+    //                switch (decoder.nextKey(NAMES)) {
+    //                    case 0: m.seq = decoder.readLong(); break;
+    //                    ...
+    //                }
+    //            } while (decoder.nextMember());
+    //        }
+    //
+    //    Nested messages go back through readMessage, which uses the nested
+    //    class's codec if it has one and its CodecPlan otherwise.
+
+    /**
+     * Consumes the opening brace of an object.
+     * @return  false if the object is empty (the closing brace is consumed too)
+     */
+    public boolean beginObject() {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next key and its colon, and returns the index of the key in
+     * names. Unknown keys and null values are skipped here and return -1,
+     * so the caller has nothing to read in that case.
+     * @param names  the field names of the class being decoded
+     * @return       the index into names, or -1
+     */
+    public int nextKey(String[] names) {
+        skipWhitespace();
+        expect('"');
+        int start = pos;
+        int index = -1;
+        boolean escaped = false;
+        while (peek() != '"') {
+            if (json.charAt(pos) == '\\') {
+                escaped = true;
+                break;
+            }
+            pos++;
+        }
+        if (escaped) {
+            pos = start - 1;
+            String key = scanString();
+            for (int i = 0; i < names.length && index < 0; i++) {
+                if (names[i].equals(key))
+                    index = i;
+            }
+        }
+        else {
+            int keyLength = pos - start;
+            pos++;
+            for (int i = 0; i < names.length && index < 0; i++) {
+                if (names[i].length() == keyLength && json.regionMatches(start, names[i], 0, keyLength))
+                    index = i;
+            }
+        }
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        if (index < 0 || peek() == 'n') {
+            skipValue();
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * Consumes the separator after a member.
+     * @return  true if another member follows, false at the closing brace
+     */
+    public boolean nextMember() {
+        skipWhitespace();
+        char ch = next();
+        if (ch == ',')
+            return true;
+        if (ch == '}')
+            return false;
+        throw error("',' or '}'");
+    }
+
+    public double readDouble() {
+        skipWhitespace();
+        scanNumber();
+        return number.doubleValue;
+    }
+
+    public float readFloat() {
+        skipWhitespace();
+        scanNumber();
+        return (float) number.doubleValue;
+    }
+
+    public long readLong() {
+        skipWhitespace();
+        scanNumber();
+        return number.longValue;
+    }
+
+    public int readInt() {
+        skipWhitespace();
+        scanNumber();
+        return number.intValue();
+    }
+
+    public short readShort() {
+        skipWhitespace();
+        scanNumber();
+        return (short) number.intValue();
+    }
+
+    public byte readByte() {
+        skipWhitespace();
+        scanNumber();
+        return (byte) number.intValue();
+    }
+
+    public boolean readBoolean() {
+        skipWhitespace();
+        return scanBoolean();
+    }
+
+    public BigInteger readBigInteger() {
+        skipWhitespace();
+        return (BigInteger) readPrimitive(BigInteger.class);
+    }
+
+    public String readString() {
+        skipWhitespace();
+        return scanString();
+    }
+
+    /**
+     * Reads a string that is one of the names in a table, matching it where
+     * it lies in the text rather than making a String of it.
+     * @param names  the table to match against
+     * @return       the handle of the name; or -1 if it is not in the table,
+     *               or has escapes, and then nothing is consumed
+     */
+    public int readName(NameTable names) {
+        skipWhitespace();
+        int quote = pos;
+        expect('"');
+        int hash = 0;
+        while (pos < length) {
+            char ch = json.charAt(pos);
+            if (ch == '"') {
+                int handle = names.find(json, quote + 1, pos, hash);
+                if (handle < 0)
+                    break;
+                pos++;
+                return handle;
+            }
+            if (ch == '\\')
+                break;
+            hash = 31 * hash + ch;
+            pos++;
+        }
+        pos = quote;
+        return -1;
+    }
+
+    // Move past the value at the current position, whatever it is
+    public void skip() {
+        skipWhitespace();
+        skipValue();
+    }
+
+    public int getPosition() {
+        return pos;
+    }
+
+    // @Base64Encoded byte[] fields normally arrive as a string, but a plain
+    //    array of numbers is accepted too.
+    public byte[] readBase64() {
+        skipWhitespace();
+        if (peek() == '"')
+            return Base64.decode(scanString());
+        return (byte[]) decodeArray(byte.class);
+    }
+
+    public double[] readDoubleArray() {
+        skipWhitespace();
+        return (double[]) decodeArray(double.class);
+    }
+
+    public float[] readFloatArray() {
+        skipWhitespace();
+        return (float[]) decodeArray(float.class);
+    }
+
+    public long[] readLongArray() {
+        skipWhitespace();
+        return (long[]) decodeArray(long.class);
+    }
+
+    public int[] readIntArray() {
+        skipWhitespace();
+        return (int[]) decodeArray(int.class);
+    }
+
+    public short[] readShortArray() {
+        skipWhitespace();
+        return (short[]) decodeArray(short.class);
+    }
+
+    public byte[] readByteArray() {
+        skipWhitespace();
+        return (byte[]) decodeArray(byte.class);
+    }
+
+    public boolean[] readBooleanArray() {
+        skipWhitespace();
+        return (boolean[]) decodeArray(boolean.class);
+    }
+
+    public String[] readStringArray() {
+        skipWhitespace();
+        return (String[]) decodeArray(String.class);
+    }
+
+    public Object readArray(Class c) {
+        skipWhitespace();
+        return decodeArray(c);
+    }
+
+    // A nested message that cannot be decoded rejects the whole message, as
+    //    it does on the reflective path (see readField).
+    public Object readMessage(Class c) {
+        skipWhitespace();
+        return required(decodeObject(c), c);
+    }
+
+    public Object readMessageAsArray(Class c) {
+        skipWhitespace();
+        return required(decodeArrayAsMessage(c), c);
+    }
+
+    private Object required(Object message, Class c) {
+        if (message == null)
+            throw error("a valid " + c.getName());
+        return message;
+    }
+
+    // *** Primitive arrays *** //
+
+    // One loop per component type, each writing straight into the typed
+    //    array, so no element is boxed and there is no java.lang.reflect.Array
+    //    call per element. Nulls, and elements that are not numbers, are
+    //    left at zero as before.
+    private Object decodePrimitiveArray(Class c) {
+        int n = countPrimitiveElements();
+        expect('[');
+        Object result;
+        if (c == double.class)
+            result = decodeDoubles(n);
+        else if (c == float.class)
+            result = decodeFloats(n);
+        else if (c == long.class)
+            result = decodeLongs(n);
+        else if (c == int.class)
+            result = decodeInts(n);
+        else if (c == short.class)
+            result = decodeShorts(n);
+        else if (c == byte.class)
+            result = decodeBytes(n);
+        else if (c == boolean.class)
+            result = decodeBooleans(n);
+        else {
+            for (int i = 0; i < n; i++)             // char[]: not a ROS type
+                nextElement(i, false);
+            result = Array.newInstance(c, n);
+        }
+        skipWhitespace();
+        expect(']');
+        return result;
+    }
+
+    private double[] decodeDoubles(int n) {
+        double[] a = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (nextElement(i, true)) {
+                scanNumber();
+                a[i] = number.doubleValue;
+            }
+        }
+        return a;
+    }
+
+    private float[] decodeFloats(int n) {
+        float[] a = new float[n];
+        for (int i = 0; i < n; i++) {
+            if (nextElement(i, true)) {
+                scanNumber();
+                a[i] = (float) number.doubleValue;
+            }
+        }
+        return a;
+    }
+
+    private long[] decodeLongs(int n) {
+        long[] a = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (nextElement(i, true)) {
+                scanNumber();
+                a[i] = number.longValue;
+            }
+        }
+        return a;
+    }
+
+    private int[] decodeInts(int n) {
+        int[] a = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (nextElement(i, true)) {
+                scanNumber();
+                a[i] = number.intValue();
+            }
+        }
+        return a;
+    }
+
+    private short[] decodeShorts(int n) {
+        short[] a = new short[n];
+        for (int i = 0; i < n; i++) {
+            if (nextElement(i, true)) {
+                scanNumber();
+                a[i] = (short) number.intValue();
+            }
+        }
+        return a;
+    }
+
+    private byte[] decodeBytes(int n) {
+        byte[] a = new byte[n];
+        for (int i = 0; i < n; i++) {
+            if (nextElement(i, true)) {
+                scanNumber();
+                a[i] = (byte) number.intValue();
+            }
+        }
+        return a;
+    }
+
+    private boolean[] decodeBooleans(int n) {
+        boolean[] a = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            if (nextElement(i, false))
+                a[i] = scanBoolean();
+        }
+        return a;
+    }
+
+    // Move to element i, past its comma. Returns true if the element is of
+    //    the wanted sort (a number, or a boolean if numbers is false) and is
+    //    ready to be scanned; anything else is skipped.
+    private boolean nextElement(int i, boolean numbers) {
+        if (i > 0) {
+            skipWhitespace();
+            expect(',');
+        }
+        skipWhitespace();
+        char ch = peek();
+        boolean wanted = numbers ? isNumberStart(ch) : (ch == 't' || ch == 'f');
+        if (!wanted)
+            skipValue();
+        return wanted;
+    }
+
+    // Count the elements of an array of numbers by counting commas, without
+    //    scanning the numbers themselves. Anything that could hide a comma
+    //    (a string or a nested value) sends it to the full countElements.
+    private int countPrimitiveElements() {
+        int start = pos;
+        expect('[');
+        int commas = 0;
+        boolean empty = true;
+        while (true) {
+            char ch = next();
+            if (ch == ']')
+                break;
+            if (ch == ',')
+                commas++;
+            else if (ch == '"' || ch == '[' || ch == '{') {
+                pos = start;
+                return countElements();
+            }
+            else if (ch != ' ' && ch != '\t' && ch != '\n' && ch != '\r')
+                empty = false;
+        }
+        pos = start;
+        return empty ? 0 : commas + 1;
+    }
+
+    // *** Primitives *** //
+
+    // Primitive value for a non-primitive (boxed, String or Object) target,
+    //    converted to the target type where there is one.
+    private Object readPrimitive(Class c) {
+        if (c == null)
+            c = Object.class;
+        char ch = peek();
+        if (ch == 't' || ch == 'f')
+            return Boolean.valueOf(scanBoolean());
+        if (!isNumberStart(ch))
+            throw error("a value");
+        int start = pos;
+        scanNumber();
+        if (c.equals(BigInteger.class) && number.integral)
+            return new BigInteger(json.substring(start, pos));
+        return number.box(c);
+    }
+
+    private static boolean isNumberStart(char ch) {
+        return (ch == '-' || (ch >= '0' && ch <= '9') || ch == 'N' || ch == 'I');
+    }
+
+    // Scan a number and leave it in the DecodedNumber. Integers
+    //    of up to 18 digits and decimals of up to 15 significant digits with
+    //    no exponent are converted directly (the division by an exact power
+    //    of ten is correctly rounded in that range); anything else goes to
+    //    Double.parseDouble. Python's NaN, Infinity and -Infinity, which
+    //    rosbridge emits for float fields, are accepted as well.
+    private void scanNumber() {
+        int start = pos;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            pos++;
+        }
+        if (pos < length && (json.charAt(pos) == 'N' || json.charAt(pos) == 'I')) {
+            double special;
+            if (json.startsWith("NaN", pos)) {
+                special = Double.NaN;
+                pos += 3;
+            }
+            else if (json.startsWith("Infinity", pos)) {
+                special = negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+                pos += 8;
+            }
+            else throw error("a number");
+            number.setDouble(special);
+            return;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = 0;
+        boolean dot = false;
+        boolean exponent = false;
+        while (pos < length && isDigit(json.charAt(pos))) {
+            mantissa = mantissa * 10 + (json.charAt(pos++) - '0');
+            digits++;
+        }
+        if (digits == 0)
+            throw error("a number");
+        if (pos < length && json.charAt(pos) == '.') {
+            dot = true;
+            pos++;
+            while (pos < length && isDigit(json.charAt(pos))) {
+                mantissa = mantissa * 10 + (json.charAt(pos++) - '0');
+                digits++;
+                fraction++;
+            }
+        }
+        if (pos < length && (json.charAt(pos) == 'e' || json.charAt(pos) == 'E')) {
+            exponent = true;
+            pos++;
+            if (pos < length && (json.charAt(pos) == '+' || json.charAt(pos) == '-'))
+                pos++;
+            while (pos < length && isDigit(json.charAt(pos)))
+                pos++;
+        }
+
+        if (!dot && !exponent) {
+            if (digits <= 18)
+                number.setLong(negative ? -mantissa : mantissa);
+            else {
+                try {
+                    number.setLong(Long.parseLong(json.substring(start, pos)));
+                }
+                catch (NumberFormatException ex) {
+                    number.setLong((long) Double.parseDouble(json.substring(start, pos)));
+                }
+            }
+        }
+        else if (!exponent && digits <= 15 && fraction < POWERS_OF_TEN.length) {
+            double d = mantissa / POWERS_OF_TEN[fraction];
+            number.setDouble(negative ? -d : d);
+        }
+        else number.setDouble(Double.parseDouble(json.substring(start, pos)));
+    }
+
+    private static boolean isDigit(char ch) {
+        return (ch >= '0' && ch <= '9');
+    }
+
+    private boolean scanBoolean() {
+        if (json.startsWith("true", pos)) {
+            pos += 4;
+            return true;
+        }
+        if (json.startsWith("false", pos)) {
+            pos += 5;
+            return false;
+        }
+        throw error("true or false");
+    }
+
+    // *** Strings *** //
+
+    private String scanString() {
+        expect('"');
+        int start = pos;
+        while (pos < length) {
+            char ch = json.charAt(pos);
+            if (ch == '"') {
+                String result = json.substring(start, pos);
+                pos++;
+                return result;
+            }
+            if (ch == '\\')
+                break;
+            pos++;
+        }
+        StringBuilder sb = new StringBuilder(json.substring(start, pos));
+        while (true) {
+            char ch = next();
+            if (ch == '"')
+                return sb.toString();
+            if (ch != '\\') {
+                sb.append(ch);
+                continue;
+            }
+            ch = next();
+            switch (ch) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > length)
+                        throw error("four hex digits");
+                    sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default: sb.append(ch);     // '"', '\\' and '/'
+            }
+        }
+    }
+
+    // Find the value of a string field at the top level of the object that
+    //    starts at the current position, without moving the position.
+    private String findTopLevelString(String name) {
+        int start = pos;
+        String result = null;
+        expect('{');
+        skipWhitespace();
+        if (peek() != '}') {
+            while (true) {
+                skipWhitespace();
+                String key = scanString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if (result == null && key.equals(name) && peek() == '"')
+                    result = scanString();
+                else skipValue();
+                skipWhitespace();
+                char ch = next();
+                if (ch == '}')
+                    break;
+                if (ch != ',')
+                    throw error("',' or '}'");
+            }
+        }
+        pos = start;
+        return result;
+    }
+
+    // *** Skipping *** //
+
+    // Move past one complete value of any type.
+    private void skipValue() {
+        char ch = peek();
+        if (ch == '"')
+            skipString();
+        else if (ch == '{' || ch == '[') {
+            int depth = 0;
+            do {
+                ch = next();
+                if (ch == '"') {
+                    pos--;
+                    skipString();
+                }
+                else if (ch == '{' || ch == '[')
+                    depth++;
+                else if (ch == '}' || ch == ']')
+                    depth--;
+            } while (depth > 0);
+        }
+        else if (isNumberStart(ch))
+            scanNumber();
+        else if (ch == 't' || ch == 'f')
+            scanBoolean();
+        else if (json.startsWith("null", pos))
+            pos += 4;
+        else throw error("a value");
+    }
+
+    private void skipString() {
+        expect('"');
+        while (true) {
+            char ch = next();
+            if (ch == '"')
+                return;
+            if (ch == '\\')
+                next();
+        }
+    }
+
+    // *** Characters *** //
+
+    private void skipWhitespace() {
+        while (pos < length) {
+            char ch = json.charAt(pos);
+            if (ch != ' ' && ch != '\t' && ch != '\n' && ch != '\r')
+                return;
+            pos++;
+        }
+    }
+
+    private char peek() {
+        if (pos >= length)
+            throw error("more input");
+        return json.charAt(pos);
+    }
+
+    private char next() {
+        char ch = peek();
+        pos++;
+        return ch;
+    }
+
+    private void expect(char ch) {
+        if (next() != ch)
+            throw error("'" + ch + "'");
+    }
+
+    private RuntimeException error(String expected) {
+        return new RuntimeException("JSONDecoder: expected " + expected + " at position " + pos);
+    }
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import com.jilk.ros.message.Message;
+
+import java.lang.reflect.Array;
+
+// Writes a Message as JSON text straight into a StringBuilder, in declared
+//    field order, following the CodecPlan of each class. Nothing is built
+//    in between: no JSONObject per nested message and no JSONArray per
+//    array. Each thread keeps its own StringBuilder and reuses it from one
+//    message to the next, so the only allocation per message is the final
+//    String handed to the socket.
+//
+//    The output is the same JSON that the JSON-simple path produced, apart
+//    from key order and '/' no longer being escaped.
+
+public class JSONEncoder {
+
+    // Don't let one huge message (a map, say) pin its buffer to the thread
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Translates a Message recursively into JSON, using the calling thread's
+     * reusable buffer.
+     * @param m  the @Message object to be recursively translated.
+     * @return   the complete JSON string.
+     */
+    public static String encode(Message m) {
+        StringBuilder sb = buffers.get();
+        sb.setLength(0);
+        writeObject(sb, m);
+        String result = sb.toString();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY)
+            buffers.remove();
+        return result;
+    }
+
+    /**
+     * Appends the JSON for a Message to a caller-supplied buffer.
+     * @param sb  the buffer to append to
+     * @param m   the @Message object to be recursively translated.
+     */
+    public static void encode(StringBuilder sb, Message m) {
+        writeObject(sb, m);
+    }
+
+    // *** Writing API for generated codecs *** //
+
+    // A MessageCodec generated for a @MessageType class writes its own
+    //    braces, keys and primitive fields, and uses these for the rest.
+
+    public static void writeMessage(StringBuilder sb, Object o) {
+        writeElement(sb, o);
+    }
+
+    public static void writeMessageAsArray(StringBuilder sb, Object o) {
+        writeObjectAsArray(sb, o);
+    }
+
+    public static void writeBase64(StringBuilder sb, byte[] bytes) {
+        sb.append('"').append(Base64.encodeToChar(bytes, false)).append('"');
+    }
+
+    // *** Objects *** //
+
+    private static void writeObject(StringBuilder sb, Object o) {
+        CodecPlan plan = CodecPlan.forClass(o.getClass());
+        if (plan.codec != null) {
+            plan.codec.encode(sb, (Message) o);
+            return;
+        }
+        sb.append('{');
+        boolean first = true;
+        for (CodecPlan.FieldPlan fp : plan.fields) {
+            if (fp.field.getType().isPrimitive()) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                writeString(sb, fp.name);
+                sb.append(':');
+                writePrimitiveField(sb, o, fp);
+                continue;
+            }
+            Object fieldObject = fp.get(o);
+            if (fieldObject != null) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                writeString(sb, fp.name);
+                sb.append(':');
+                writeField(sb, fieldObject, fp);
+            }
+        }
+        sb.append('}');
+    }
+
+    // For AsArray objects, write the field values as a JSON array
+    //     NOTE: This relies on later versions of the JDK providing
+    //           the fields in order.
+    private static void writeObjectAsArray(StringBuilder sb, Object o) {
+        sb.append('[');
+        boolean first = true;
+        for (CodecPlan.FieldPlan fp : CodecPlan.forClass(o.getClass()).fields) {
+            if (fp.field.getType().isPrimitive()) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                writePrimitiveField(sb, o, fp);
+                continue;
+            }
+            Object fieldObject = fp.get(o);
+            if (fieldObject != null) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                writeElement(sb, fieldObject);
+            }
+        }
+        sb.append(']');
+    }
+
+    private static void writeField(StringBuilder sb, Object fieldObject, CodecPlan.FieldPlan fp) {
+        switch (fp.kind) {
+            case PRIMITIVE:
+                writePrimitive(sb, fieldObject);
+                break;
+            case BASE64:
+                writeBase64(sb, (byte[]) fieldObject);
+                break;
+            case AS_ARRAY:
+                writeObjectAsArray(sb, fieldObject);
+                break;
+            case PRIMITIVE_ARRAY:
+            case MESSAGE_ARRAY:
+                writeArray(sb, fieldObject);
+                break;
+            default:
+                writeElement(sb, fieldObject);
+        }
+    }
+
+    // Write a field or array element whose kind is only known at runtime
+    private static void writeElement(StringBuilder sb, Object elementObject) {
+        Class elementClass = elementObject.getClass();
+        if (Message.isPrimitive(elementClass))
+            writePrimitive(sb, elementObject);
+        else if (elementClass.isArray())
+            writeArray(sb, elementObject);
+        else writeObject(sb, elementObject);
+    }
+
+    // *** Arrays *** //
+
+    // Primitive component types are written from the typed array directly;
+    //    only arrays of objects go element-by-element through writeElement.
+    public static void writeArray(StringBuilder sb, Object array) {
+        sb.append('[');
+        Class c = array.getClass().getComponentType();
+        if (c == double.class) {
+            double[] a = (double[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) sb.append(',');
+                writeDouble(sb, a[i]);
+            }
+        }
+        else if (c == float.class) {
+            float[] a = (float[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) sb.append(',');
+                writeFloat(sb, a[i]);
+            }
+        }
+        else if (c == long.class) {
+            long[] a = (long[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(a[i]);
+            }
+        }
+        else if (c == int.class) {
+            int[] a = (int[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(a[i]);
+            }
+        }
+        else if (c == short.class) {
+            short[] a = (short[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(a[i]);
+            }
+        }
+        else if (c == byte.class) {
+            byte[] a = (byte[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(a[i]);
+            }
+        }
+        else if (c == boolean.class) {
+            boolean[] a = (boolean[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(a[i]);
+            }
+        }
+        else {
+            boolean first = true;
+            for (int i = 0; i < Array.getLength(array); i++) {
+                Object elementObject = Array.get(array, i);
+                if (elementObject != null) {
+                    if (!first)
+                        sb.append(',');
+                    first = false;
+                    writeElement(sb, elementObject);
+                }
+            }
+        }
+        sb.append(']');
+    }
+
+    // *** Primitives *** //
+
+    // A primitive field is read with the Field getter for its type, so its
+    //    value goes to the buffer without being boxed on the way
+    private static void writePrimitiveField(StringBuilder sb, Object o, CodecPlan.FieldPlan fp) {
+        Class c = fp.field.getType();
+        try {
+            if (c == double.class)
+                writeDouble(sb, fp.field.getDouble(o));
+            else if (c == float.class)
+                writeFloat(sb, fp.field.getFloat(o));
+            else if (c == long.class)
+                sb.append(fp.field.getLong(o));
+            else if (c == int.class)
+                sb.append(fp.field.getInt(o));
+            else if (c == short.class)
+                sb.append(fp.field.getShort(o));
+            else if (c == byte.class)
+                sb.append(fp.field.getByte(o));
+            else if (c == boolean.class)
+                sb.append(fp.field.getBoolean(o));
+            else sb.append(fp.field.getChar(o));     // as writePrimitive does for a Character
+        }
+        catch (IllegalAccessException ex) {
+            ex.printStackTrace();
+            sb.append("null");
+        }
+    }
+
+    public static void writePrimitive(StringBuilder sb, Object o) {
+        if (o instanceof String)
+            writeString(sb, (String) o);
+        else if (o instanceof Double)
+            writeDouble(sb, (Double) o);
+        else if (o instanceof Float)
+            writeFloat(sb, (Float) o);
+        else sb.append(o);      // other Numbers and Boolean print as JSON
+    }
+
+    // JSON has no NaN or Infinity; like JSON-simple, send null instead
+    public static void writeDouble(StringBuilder sb, double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d))
+            sb.append("null");
+        else sb.append(d);
+    }
+
+    public static void writeFloat(StringBuilder sb, float f) {
+        if (Float.isNaN(f) || Float.isInfinite(f))
+            sb.append("null");
+        else sb.append(f);
+    }
+
+    public static void writeString(StringBuilder sb, String s) {
+        sb.append('"');
+        int length = s.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = s.charAt(i);
+            if (ch >= 0x20 && ch != '"' && ch != '\\')
+                continue;
+            sb.append(s, start, i);
+            start = i + 1;
+            switch (ch) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\b': sb.append("\\b"); break;
+                case '\f': sb.append("\\f"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    sb.append("\\u00").append(HEX[ch >> 4]).append(HEX[ch & 0xf]);
+            }
+        }
+        sb.append(s, start, length);
+        sb.append('"');
+    }
+}
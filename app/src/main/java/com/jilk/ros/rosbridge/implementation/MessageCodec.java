@@ -0,0 +1,32 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import com.jilk.ros.message.Message;
+
+// Straight-line encoder and decoder for one @MessageType class. These are
+//    generated at compile time by the processor module as <Class>$$Codec,
+//    in the same package as the message class, and picked up by CodecPlan.
+//    Classes without one are handled reflectively from their CodecPlan.
+
+public interface MessageCodec<T extends Message> {
+    public void encode(StringBuilder sb, T message);
+    public T decode(JSONDecoder decoder);
+}
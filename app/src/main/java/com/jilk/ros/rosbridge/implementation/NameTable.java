@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+// Topic and service names, each given a small integer handle the first time
+//    it is seen. A handle is never reused or changed, so arrays indexed by
+//    handle can stand in for maps keyed by name on the receive path.
+//
+//    find looks a name up straight from the text of a frame, by a hash
+//    computed over its characters where they lie, so a frame for a known
+//    topic is matched without making a String of the topic. The hash is the
+//    same as String.hashCode, so names being added cost nothing extra.
+//
+//    Like Registry, the table is copy-on-write: lookups take no lock.
+
+public class NameTable {
+    private static class Snapshot {
+        final String[] names;
+        final int[] slots;     // handle + 1, or 0 for empty; open addressing
+
+        Snapshot(String[] names, int[] slots) {
+            this.names = names;
+            this.slots = slots;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(new String[0], new int[16]);
+
+    public NameTable(String... names) {
+        for (String name : names)
+            intern(name);
+    }
+
+    // The handle for name, given one if it has none
+    public synchronized int intern(String name) {
+        int handle = find(name);
+        if (handle >= 0)
+            return handle;
+        Snapshot old = snapshot;
+        handle = old.names.length;
+        String[] names = new String[handle + 1];
+        System.arraycopy(old.names, 0, names, 0, handle);
+        names[handle] = name;
+        int size = old.slots.length;
+        while (size < names.length * 2)
+            size *= 2;
+        int[] slots = new int[size];
+        for (int i = 0; i < names.length; i++) {
+            int slot = names[i].hashCode() & (size - 1);
+            while (slots[slot] != 0)
+                slot = (slot + 1) & (size - 1);
+            slots[slot] = i + 1;
+        }
+        snapshot = new Snapshot(names, slots);
+        return handle;
+    }
+
+    // The handle for name, or -1 if it has none
+    public int find(String name) {
+        return find(name, 0, name.length(), name.hashCode());
+    }
+
+    /**
+     * Looks up the name that lies in text from start to end.
+     * @param hash  the String.hashCode of those characters
+     * @return      its handle, or -1 if it has none
+     */
+    public int find(String text, int start, int end, int hash) {
+        Snapshot s = snapshot;
+        int mask = s.slots.length - 1;
+        int length = end - start;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int h = s.slots[slot];
+            if (h == 0)
+                return -1;
+            String name = s.names[h - 1];
+            if (name.length() == length && text.regionMatches(start, name, 0, length))
+                return h - 1;
+        }
+    }
+
+    public String getName(int handle) {
+        return snapshot.names[handle];
+    }
+
+    public int size() {
+        return snapshot.names.length;
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.InflaterInputStream;
+
+// Recovers the JSON text from a rosbridge "png" operation. For compression
+//    "png", rosbridge writes the JSON bytes into the pixels of an 8-bit RGB
+//    image, three characters per pixel, pads the last row with newlines,
+//    saves it as a PNG and Base64-encodes that into the data field.
+//
+//    This is a minimal PNG reader for exactly that case, so that no image
+//    library is needed: it inflates the IDAT chunks as a stream and undoes
+//    the row filters one scanline at a time, keeping only the current and
+//    previous rows. The compressed image and the JSON text are the only
+//    whole copies held. Grayscale and RGBA images at 8 bits are accepted
+//    too (alpha is ignored, as roslibjs does); anything else is an error.
+
+public class PNGDecoder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    private static final int GRAY = 0;
+    private static final int RGB = 2;
+    private static final int RGBA = 6;
+
+    public static final int DEFAULT_MAX_TEXT_LENGTH = 64 * 1024 * 1024;
+
+    // Deflate cannot expand data more than this, so image data of n bytes
+    //    inflates to no more than n times this
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private static volatile int maxTextLength = DEFAULT_MAX_TEXT_LENGTH;
+
+    // The largest image accepted, in bytes of the text it carries. The
+    //    width and height are checked against this, and against what the
+    //    image data could inflate to, before anything is allocated.
+    public static void setMaxTextLength(int length) {
+        maxTextLength = length;
+    }
+
+    /**
+     * Decodes the Base64 data of a png operation into the JSON it carries.
+     * @param base64  the data field, or all the data fields of a multi-part
+     *                png operation concatenated in order
+     * @return        the embedded JSON text
+     * @throws IOException  if the data is not a PNG this can read
+     */
+    public static String decode(String base64) throws IOException {
+        byte[] png = Base64.decode(base64);
+        if (png == null)
+            throw new IOException("PNGDecoder: data is not valid Base64");
+        return decode(png);
+    }
+
+    public static String decode(byte[] png) throws IOException {
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (png.length <= i || png[i] != SIGNATURE[i])
+                throw new IOException("PNGDecoder: not a PNG image");
+        }
+        if (!isChunk(png, SIGNATURE.length, "IHDR"))
+            throw new IOException("PNGDecoder: missing IHDR");
+
+        int header = SIGNATURE.length + 8;
+        if (png.length < header + 13)
+            throw new IOException("PNGDecoder: truncated IHDR");
+        int width = readInt(png, header);
+        int height = readInt(png, header + 4);
+        int bitDepth = png[header + 8];
+        int colorType = png[header + 9];
+        int interlace = png[header + 12];
+        int channels;
+        if (colorType == GRAY)
+            channels = 1;
+        else if (colorType == RGB)
+            channels = 3;
+        else if (colorType == RGBA)
+            channels = 4;
+        else throw new IOException("PNGDecoder: unsupported color type " + colorType);
+        if (bitDepth != 8 || interlace != 0)
+            throw new IOException("PNGDecoder: only 8-bit, non-interlaced images are supported");
+
+        // Both come from the image, so are checked before they size
+        //    anything; bounding the width first keeps the products in range
+        int usable = (colorType == RGBA) ? 3 : channels;
+        if (width <= 0 || height <= 0)
+            throw new IOException("PNGDecoder: bad image size " + width + " x " + height);
+        int limit = maxTextLength;
+        long textLength = (long) width * height * usable;
+        if (width > limit / usable || textLength > limit)
+            throw new IOException("PNGDecoder: " + width + " x " + height + " image is over the limit of " +
+                    limit + " bytes");
+        long inflatedLength = ((long) width * channels + 1) * height;
+        if (inflatedLength > imageDataLength(png) * MAX_DEFLATE_RATIO)
+            throw new IOException("PNGDecoder: " + width + " x " + height +
+                    " image is larger than its data could hold");
+
+        int stride = width * channels;
+        byte[] previous = new byte[stride];
+        byte[] current = new byte[stride];
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) textLength);
+
+        InputStream in = new InflaterInputStream(new ImageDataInputStream(png));
+        try {
+            for (int row = 0; row < height; row++) {
+                int filter = in.read();
+                if (filter < 0)
+                    throw new IOException("PNGDecoder: image data ends at row " + row);
+                readFully(in, current, stride);
+                unfilter(filter, current, previous, channels);
+                if (usable == channels)
+                    out.write(current, 0, stride);
+                else {
+                    for (int i = 0; i < stride; i += channels)
+                        out.write(current, i, usable);
+                }
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        // Strip the padding rosbridge adds to fill out the last row
+        byte[] text = out.toByteArray();
+        int length = text.length;
+        while (length > 0 && (text[length - 1] == '\n' || text[length - 1] == 0))
+            length--;
+        return new String(text, 0, length, UTF8);
+    }
+
+    // Undo one of the five PNG row filters in place. bpp is the number of
+    //    bytes per pixel, which is where Sub, Average and Paeth look left.
+    private static void unfilter(int filter, byte[] row, byte[] prior, int bpp) throws IOException {
+        int n = row.length;
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < n; i++)
+                    row[i] += row[i - bpp];
+                break;
+            case 2:
+                for (int i = 0; i < n; i++)
+                    row[i] += prior[i];
+                break;
+            case 3:
+                for (int i = 0; i < n; i++) {
+                    int left = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+                    row[i] += (left + (prior[i] & 0xff)) >> 1;
+                }
+                break;
+            case 4:
+                for (int i = 0; i < n; i++) {
+                    int a = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+                    int b = prior[i] & 0xff;
+                    int c = (i >= bpp) ? prior[i - bpp] & 0xff : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    if (pa <= pb && pa <= pc)
+                        row[i] += a;
+                    else if (pb <= pc)
+                        row[i] += b;
+                    else row[i] += c;
+                }
+                break;
+            default:
+                throw new IOException("PNGDecoder: unknown row filter " + filter);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = in.read(b, offset, length - offset);
+            if (count < 0)
+                throw new IOException("PNGDecoder: image data ends mid-row");
+            offset += count;
+        }
+    }
+
+    // The total length of the IDAT chunks, as compressed
+    private static long imageDataLength(byte[] png) throws IOException {
+        long total = 0;
+        int chunk = SIGNATURE.length;
+        while (chunk + 8 <= png.length) {
+            int length = readInt(png, chunk);
+            if (length < 0 || chunk + 12L + length > png.length)
+                throw new IOException("PNGDecoder: truncated chunk");
+            if (isChunk(png, chunk, "IEND"))
+                break;
+            if (isChunk(png, chunk, "IDAT"))
+                total += length;
+            chunk += 12 + length;
+        }
+        return total;
+    }
+
+    private static boolean isChunk(byte[] png, int offset, String type) {
+        if (offset + 8 > png.length)
+            return false;
+        for (int i = 0; i < 4; i++) {
+            if (png[offset + 4 + i] != type.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16) |
+                ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    // The contents of all the IDAT chunks, back to back, read in place
+    //    from the image without copying them out first.
+    private static class ImageDataInputStream extends InputStream {
+        private final byte[] png;
+        private int chunk;          // offset of the current chunk
+        private int pos;            // next byte to read
+        private int end;            // end of the current chunk's data
+
+        ImageDataInputStream(byte[] png) {
+            this.png = png;
+            chunk = SIGNATURE.length;
+            pos = end = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!advance())
+                return -1;
+            return png[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!advance())
+                return -1;
+            int count = Math.min(len, end - pos);
+            System.arraycopy(png, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        // Move on to the next IDAT chunk if the current one is used up.
+        //    Returns false at the end of the image data.
+        private boolean advance() throws IOException {
+            while (pos >= end) {
+                if (chunk + 8 > png.length)
+                    return false;
+                int length = readInt(png, chunk);
+                if (length < 0 || chunk + 12L + length > png.length)
+                    throw new IOException("PNGDecoder: truncated chunk");
+                boolean data = isChunk(png, chunk, "IDAT");
+                boolean last = isChunk(png, chunk, "IEND");
+                int start = chunk + 8;
+                chunk = start + length + 4;     // skip the CRC
+                if (last)
+                    return false;
+                if (data) {
+                    pos = start;
+                    end = start + length;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.exceptions.InvalidFrameException;
+import org.java_websocket.exceptions.InvalidHandshakeException;
+import org.java_websocket.exceptions.LimitExedeedException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.CloseFrameBuilder;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ClientHandshakeBuilder;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// The permessage-deflate WebSocket extension (RFC 7692), for the version of
+//    the protocol rosbridge speaks. java_websocket 1.2 knows nothing of
+//    extensions, so this Draft offers it in the handshake and, if rosbridge
+//    accepts, does the framing itself: incoming frames with RSV1 set are
+//    inflated, and outgoing text and binary frames are deflated.
+//
+//    The trade-off between memory and ratio is set on the server's side,
+//    which does most of the compressing. With context takeover, rosbridge
+//    keeps its compressor between messages, so a message can refer back to
+//    the field names and topics of earlier ones; without it, each message
+//    is compressed alone, using less memory on both ends at some cost in
+//    ratio. maxWindowBits limits how far back rosbridge may refer, from
+//    256 bytes (8) to 32K (15); a smaller window means less memory there.
+//
+//    java.util.zip on Android before 4.4 cannot flush a compressor without
+//    ending its stream, so outgoing messages are each compressed on their
+//    own, which the RFC allows, and client_no_context_takeover is always
+//    offered. The inflater here always keeps a 32K window, whatever the
+//    server uses. Outgoing messages are mostly small commands, and a small
+//    one goes uncompressed, as does any that would not shrink.
+
+public class PerMessageDeflate extends Draft_17 {
+    public static final String EXTENSION = "permessage-deflate";
+    public static final int MIN_WINDOW_BITS = 8;
+    public static final int MAX_WINDOW_BITS = 15;
+    public static final int DEFAULT_MIN_SIZE = 128;     // bytes
+    public static final int DEFAULT_MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+    private static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+    private static final byte[] TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+    private static final int FIN = 0x80;
+    private static final int RSV1 = 0x40;
+    private static final int RSV23 = 0x30;
+
+    private final boolean contextTakeover;
+    private final int maxWindowBits;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int minSize = DEFAULT_MIN_SIZE;
+    private int maxInflatedSize = DEFAULT_MAX_INFLATED_SIZE;
+
+    private boolean negotiated;
+    private boolean serverContextTakeover;
+    private final DeflateStats stats = new DeflateStats();
+
+    // Incoming: bytes of a frame not yet complete, and the compressed
+    //    message being put together from its frames
+    private byte[] pending = new byte[0];
+    private int pendingLength;
+    private Framedata.Opcode messageOpcode;
+    private boolean messageCompressed;
+    private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+    private final Inflater inflater = new Inflater(true);
+    private final Deflater deflater;
+
+    /**
+     * @param contextTakeover  whether rosbridge may keep its compressor
+     *                         between messages, for a better ratio
+     * @param maxWindowBits    the largest window rosbridge may use, 8 to 15
+     */
+    public PerMessageDeflate(boolean contextTakeover, int maxWindowBits) {
+        if (maxWindowBits < MIN_WINDOW_BITS || maxWindowBits > MAX_WINDOW_BITS)
+            throw new IllegalArgumentException("Window bits must be from " +
+                    MIN_WINDOW_BITS + " to " + MAX_WINDOW_BITS + ": " + maxWindowBits);
+        this.contextTakeover = contextTakeover;
+        this.maxWindowBits = maxWindowBits;
+        deflater = new Deflater(level, true);
+    }
+
+    public PerMessageDeflate() {
+        this(true, MAX_WINDOW_BITS);
+    }
+
+    // Deflater level for outgoing messages, 0 to 9
+    public synchronized void setLevel(int level) {
+        this.level = level;
+        deflater.setLevel(level);
+    }
+
+    // Outgoing messages smaller than this are sent uncompressed
+    public synchronized void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+
+    // Incoming messages larger than this, compressed or inflated, close the
+    //    connection with TOO_BIG (1009), so a small frame that inflates to
+    //    gigabytes can't exhaust memory
+    public synchronized void setMaxInflatedSize(int maxInflatedSize) {
+        this.maxInflatedSize = maxInflatedSize;
+    }
+
+    // True once rosbridge has accepted the extension
+    public boolean isNegotiated() {
+        return negotiated;
+    }
+
+    public DeflateStats getStats() {
+        return stats;
+    }
+
+    // *** Handshake *** //
+
+    @Override
+    public ClientHandshakeBuilder postProcessHandshakeRequestAsClient(ClientHandshakeBuilder request) {
+        super.postProcessHandshakeRequestAsClient(request);
+        StringBuilder offer = new StringBuilder(EXTENSION);
+        offer.append("; client_no_context_takeover");
+        if (!contextTakeover)
+            offer.append("; server_no_context_takeover");
+        if (maxWindowBits < MAX_WINDOW_BITS)
+            offer.append("; server_max_window_bits=").append(maxWindowBits);
+        request.put(EXTENSIONS_HEADER, offer.toString());
+        return request;
+    }
+
+    @Override
+    public HandshakeState acceptHandshakeAsClient(ClientHandshake request, ServerHandshake response)
+            throws InvalidHandshakeException {
+        HandshakeState state = super.acceptHandshakeAsClient(request, response);
+        negotiated = false;
+        if (state == HandshakeState.MATCHED && response.hasFieldValue(EXTENSIONS_HEADER)) {
+            for (String extension : response.getFieldValue(EXTENSIONS_HEADER).split(",")) {
+                String[] params = extension.split(";");
+                if (!params[0].trim().equalsIgnoreCase(EXTENSION))
+                    continue;
+                negotiated = true;
+                serverContextTakeover = true;
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim();
+                    if (param.equalsIgnoreCase("server_no_context_takeover"))
+                        serverContextTakeover = false;
+                    else if (param.toLowerCase().startsWith("client_max_window_bits"))
+                        return HandshakeState.NOT_MATCHED;     // not offered, and can't be honoured
+                }
+                break;
+            }
+        }
+        return state;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        synchronized (this) {
+            pendingLength = 0;
+            messageOpcode = null;
+            message.reset();
+            inflater.reset();
+            deflater.reset();
+        }
+    }
+
+    // *** Incoming *** //
+
+    @Override
+    public List<Framedata> translateFrame(ByteBuffer buffer) throws InvalidDataException {
+        if (!negotiated)
+            return super.translateFrame(buffer);
+        List<Framedata> frames = new ArrayList<Framedata>();
+        synchronized (this) {
+            ByteBuffer in = buffer;
+            if (pendingLength > 0) {
+                append(buffer);
+                in = ByteBuffer.wrap(pending, 0, pendingLength);
+            }
+            int start;
+            while ((start = in.position()) < in.limit()) {
+                if (!readFrame(in, frames)) {
+                    in.position(start);
+                    break;
+                }
+            }
+            int left = in.remaining();
+            if (in == buffer) {
+                pendingLength = 0;
+                append(in);
+            }
+            else {
+                System.arraycopy(pending, in.position(), pending, 0, left);
+                pendingLength = left;
+            }
+        }
+        return frames;
+    }
+
+    private void append(ByteBuffer buffer) {
+        int n = buffer.remaining();
+        if (pendingLength + n > pending.length) {
+            byte[] bigger = new byte[Math.max(pendingLength + n, pending.length * 2)];
+            System.arraycopy(pending, 0, bigger, 0, pendingLength);
+            pending = bigger;
+        }
+        buffer.get(pending, pendingLength, n);
+        pendingLength += n;
+    }
+
+    // Reads one frame from the buffer and adds what it yields, if anything,
+    //    to frames. Returns false, with the buffer partly read, if the frame
+    //    is not all there yet.
+    private boolean readFrame(ByteBuffer in, List<Framedata> frames) throws InvalidDataException {
+        if (in.remaining() < 2)
+            return false;
+        int b0 = in.get() & 0xff;
+        int b1 = in.get() & 0xff;
+        boolean fin = (b0 & FIN) != 0;
+        boolean rsv1 = (b0 & RSV1) != 0;
+        boolean masked = (b1 & 0x80) != 0;
+        if ((b0 & RSV23) != 0)
+            throw new InvalidFrameException("bad rsv " + ((b0 & 0x70) >> 4));
+        Framedata.Opcode opcode = toOpcode(b0 & 0x0f);
+
+        long length = b1 & 0x7f;
+        if (length == 126) {
+            if (in.remaining() < 2)
+                return false;
+            length = in.getShort() & 0xffff;
+        }
+        else if (length == 127) {
+            if (in.remaining() < 8)
+                return false;
+            length = in.getLong();
+            if (length < 0 || length > Integer.MAX_VALUE)
+                throw new LimitExedeedException("Payloadsize is to big...");
+        }
+        int size = checkAlloc((int) length);
+        if (in.remaining() < (masked ? 4 : 0) + size)
+            return false;
+        byte[] mask = null;
+        if (masked) {
+            mask = new byte[4];
+            in.get(mask);
+        }
+        byte[] payload = new byte[size];
+        in.get(payload);
+        if (mask != null)
+            for (int i = 0; i < size; i++)
+                payload[i] ^= mask[i % 4];
+
+        boolean control = opcode == Framedata.Opcode.CLOSING ||
+                opcode == Framedata.Opcode.PING || opcode == Framedata.Opcode.PONG;
+        if (control) {
+            if (!fin || rsv1)
+                throw new InvalidFrameException("bad control frame");
+            frames.add(toFrame(opcode, true, payload, size));
+            return true;
+        }
+
+        if (opcode != Framedata.Opcode.CONTINUOUS) {
+            if (messageOpcode != null)
+                throw new InvalidFrameException("new message before the last one ended");
+            messageOpcode = opcode;
+            messageCompressed = rsv1;
+        }
+        else if (messageOpcode == null)
+            throw new InvalidFrameException("continuation with no message");
+        else if (rsv1)
+            throw new InvalidFrameException("rsv1 on a continuation frame");
+
+        if (!messageCompressed) {
+            frames.add(toFrame(opcode, fin, payload, size));
+            if (fin)
+                messageOpcode = null;
+            return true;
+        }
+        if ((long) message.size() + size > maxInflatedSize)
+            throw tooBig();
+        if (!fin) {
+            message.write(payload, 0, size);
+            return true;
+        }
+        byte[] data = payload;
+        if (message.size() > 0) {
+            message.write(payload, 0, size);
+            data = message.toByteArray();
+            message.reset();
+        }
+        frames.add(inflate(messageOpcode, data));
+        messageOpcode = null;
+        return true;
+    }
+
+    private Framedata inflate(Framedata.Opcode opcode, byte[] data) throws InvalidDataException {
+        long start = System.nanoTime();
+        long guess = Math.max(256, (long) data.length * 4);
+        byte[] out = new byte[checkAlloc((int) Math.min(guess, maxInflatedSize))];
+        int n = 0;
+        try {
+            for (byte[] input : new byte[][] {data, TAIL}) {
+                if (inflater.finished())
+                    break;
+                inflater.setInput(input);
+                while (!inflater.needsInput() && !inflater.finished()) {
+                    if (n == out.length) {
+                        if (n >= maxInflatedSize)
+                            throw tooBig();
+                        byte[] bigger = new byte[checkAlloc((int) Math.min((long) n * 2, maxInflatedSize))];
+                        System.arraycopy(out, 0, bigger, 0, n);
+                        out = bigger;
+                    }
+                    n += inflater.inflate(out, n, out.length - n);
+                }
+            }
+        }
+        catch (DataFormatException ex) {
+            throw new InvalidDataException(CloseFrame.NO_UTF8, ex);
+        }
+        // A message ended with a final block, as the RFC lets a sender do,
+        //    closes the stream, so the next one starts afresh either way
+        if (!serverContextTakeover || inflater.finished())
+            inflater.reset();
+        stats.recordInflate(data.length, n, System.nanoTime() - start);
+        return toFrame(opcode, true, out, n);
+    }
+
+    private LimitExedeedException tooBig() {
+        return new LimitExedeedException("Message is over " + maxInflatedSize + " bytes");
+    }
+
+    private static Framedata toFrame(Framedata.Opcode opcode, boolean fin, byte[] payload, int length)
+            throws InvalidDataException {
+        FramedataImpl1 frame = (opcode == Framedata.Opcode.CLOSING) ?
+                new CloseFrameBuilder() : new FramedataImpl1();
+        frame.setFin(fin);
+        frame.setOptcode(opcode);
+        frame.setPayload(ByteBuffer.wrap(payload, 0, length));
+        return frame;
+    }
+
+    private static Framedata.Opcode toOpcode(int opcode) throws InvalidFrameException {
+        switch (opcode) {
+            case 0: return Framedata.Opcode.CONTINUOUS;
+            case 1: return Framedata.Opcode.TEXT;
+            case 2: return Framedata.Opcode.BINARY;
+            case 8: return Framedata.Opcode.CLOSING;
+            case 9: return Framedata.Opcode.PING;
+            case 10: return Framedata.Opcode.PONG;
+            default: throw new InvalidFrameException("unknow optcode " + opcode);
+        }
+    }
+
+    // *** Outgoing *** //
+
+    @Override
+    public ByteBuffer createBinaryFrame(Framedata framedata) {
+        Framedata.Opcode opcode = framedata.getOpcode();
+        if (!negotiated || !framedata.isFin() ||
+                (opcode != Framedata.Opcode.TEXT && opcode != Framedata.Opcode.BINARY))
+            return super.createBinaryFrame(framedata);
+
+        ByteBuffer payload = framedata.getPayloadData();
+        int size = payload.remaining();
+        if (size < minSize)
+            return super.createBinaryFrame(framedata);
+
+        long start = System.nanoTime();
+        byte[] data = new byte[size];
+        payload.duplicate().get(data);
+        byte[] out;
+        int n;
+        synchronized (this) {
+            deflater.setInput(data);
+            deflater.finish();
+            out = new byte[size];
+            n = 0;
+            while (!deflater.finished() && n < out.length)
+                n += deflater.deflate(out, n, out.length - n);
+            boolean shrunk = deflater.finished();
+            deflater.reset();
+            if (!shrunk) {
+                stats.recordDeflate(size, size, System.nanoTime() - start);
+                return super.createBinaryFrame(framedata);
+            }
+        }
+
+        FramedataImpl1 frame = new FramedataImpl1(opcode);
+        frame.setFin(true);
+        frame.setTransferemasked(framedata.getTransfereMasked());
+        try {
+            frame.setPayload(ByteBuffer.wrap(out, 0, n));
+        }
+        catch (InvalidDataException ex) {
+            return super.createBinaryFrame(framedata);
+        }
+        ByteBuffer buffer = super.createBinaryFrame(frame);
+        buffer.put(0, (byte) (buffer.get(0) | RSV1));
+        stats.recordDeflate(size, n, System.nanoTime() - start);
+        return buffer;
+    }
+}
@@ -21,48 +21,132 @@ package com.jilk.ros.rosbridge.implementation;
 
 import com.jilk.ros.ROSClient;
 import com.jilk.ros.message.Message;
+import com.jilk.ros.rosbridge.FrameHandler;
 import com.jilk.ros.rosbridge.FullMessageHandler;
+import com.jilk.ros.rosbridge.operation.Fragment;
 import com.jilk.ros.rosbridge.operation.Operation;
+import com.jilk.ros.rosbridge.operation.PNG;
 import com.jilk.ros.rosbridge.operation.Publish;
 import com.jilk.ros.rosbridge.operation.ServiceResponse;
 
 import net.xxhong.rosclient.entity.PublishEvent;
 
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WrappedByteChannel;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_10;
 import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ServerHandshake;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import de.greenrobot.event.EventBus;
 
 
 public class ROSBridgeWebSocketClient extends WebSocketClient {
+    private static final String PUBLISH = Message.getMessageType(Publish.class);
+    private static final String SERVICE_RESPONSE = Message.getMessageType(ServiceResponse.class);
+    private static final String PNG_KEY_PREFIX = "png:";    // keeps png parts apart from fragments with the same id
+
     private Registry<Class> classes;
     private Registry<FullMessageHandler> handlers;
     private boolean debug;
     private ROSClient.ConnectionStatusListener listener;
+    private final FragmentAssembler fragments = new FragmentAssembler();
+    private final CompressionStats compressionStats = new CompressionStats();
+    private final ReceivePipeline pipeline;
+    private final SendQueue sendQueue;
+    private final PerMessageDeflate deflate;
+    private volatile long receivedBytes;   // written only on the read thread
     
     ROSBridgeWebSocketClient(URI serverURI) {
-        super(serverURI);
+        this(serverURI, null);
+    }
+    
+    ROSBridgeWebSocketClient(URI serverURI, PerMessageDeflate deflate) {
+        super(serverURI, (deflate != null) ? deflate : new Draft_10());
+        this.deflate = deflate;
         classes = new Registry<Class>();
-        handlers = new Registry<FullMessageHandler>();
+        handlers = new Registry<FullMessageHandler>(classes.getNames());    // so one handle serves both
         Operation.initialize(classes);  // note, this ensures that the Message Map is initialized too
         listener = null;
+        pipeline = new ReceivePipeline(new ReceivePipeline.Stages() {
+            @Override
+            public Object decode(Object frame) {
+                return ROSBridgeWebSocketClient.this.decode(frame);
+            }
+
+            @Override
+            public void dispatch(Object decoded) {
+                ROSBridgeWebSocketClient.this.dispatch(decoded);
+            }
+        });
+        sendQueue = new SendQueue(new SendQueue.Sink() {
+            @Override
+            public void write(List<Object> frames) {
+                writeBatch(frames);
+            }
+
+            @Override
+            public boolean isBusy() {
+                for (ByteBuffer buffer : ((WebSocketImpl) getConnection()).outQueue)
+                    if (buffer.hasRemaining())
+                        return true;
+                return false;
+            }
+
+            @Override
+            public void resume() {
+                onWriteDemand(getConnection());
+            }
+        });
+        final WebSocketClientFactory factory = (WebSocketClientFactory) getWebSocketFactory();
+        setWebSocketFactory(new WebSocketClientFactory() {
+            @Override
+            public WebSocket createWebSocket(WebSocketAdapter adapter, Draft draft, Socket socket) {
+                return factory.createWebSocket(adapter, draft, socket);
+            }
+
+            @Override
+            public WebSocket createWebSocket(WebSocketAdapter adapter, List<Draft> drafts, Socket socket) {
+                return factory.createWebSocket(adapter, drafts, socket);
+            }
+
+            // An SSL channel has its own buffering, so is left as it is; the
+            //    send queue then checks it on a timer instead
+            @Override
+            public ByteChannel wrapChannel(SelectionKey key, String host, int port) throws IOException {
+                ByteChannel channel = factory.wrapChannel(key, host, port);
+                return (channel instanceof WrappedByteChannel) ? channel : new DrainSignal(channel);
+            }
+        });
     }
     
     public static ROSBridgeWebSocketClient create(String URIString) {
+        return create(URIString, null);
+    }
+    
+    // With deflate, permessage-deflate is offered to rosbridge when connecting
+    public static ROSBridgeWebSocketClient create(String URIString, PerMessageDeflate deflate) {
         ROSBridgeWebSocketClient client = null;
         try {
             URI uri = new URI(URIString);
-            client = new ROSBridgeWebSocketClient(uri);
+            client = new ROSBridgeWebSocketClient(uri, deflate);
         }
         catch (URISyntaxException ex) {
             ex.printStackTrace();
@@ -70,12 +154,25 @@ public class ROSBridgeWebSocketClient extends WebSocketClient {
         return client;
     }
     
+    // Carry the registered classes and handlers, and the debug setting, over
+    //    from an earlier connection, so that a reconnect delivers to the
+    //    same Topics and Services
+    public void inherit(ROSBridgeWebSocketClient previous) {
+        classes = previous.classes;
+        handlers = previous.handlers;
+        debug = previous.debug;
+    }
+    
     public void setListener(ROSClient.ConnectionStatusListener listener) {
         this.listener = listener;
     }
 
     @Override
     public void onOpen(ServerHandshake handshakedata) {
+        if (debug && deflate != null)
+            System.out.println("ROSBridge permessage-deflate " + (deflate.isNegotiated() ? "on" : "refused"));
+        pipeline.start("ROSBridge " + getURI());
+        sendQueue.start("ROSBridge " + getURI());
         if (listener != null)
             listener.onConnect();
     }
@@ -83,64 +180,174 @@ public class ROSBridgeWebSocketClient extends WebSocketClient {
     @Override
     public void onMessage(String message) {
         if (debug) System.out.println("<ROS " + message);
+        receivedBytes += message.length();
         //System.out.println("ROSBridgeWebSocketClient.onMessage (message): " + message);
-        Operation operation = Operation.toOperation(message, classes);
+        pipeline.submit(message);
+    }
+
+    // Binary frames are CBOR, sent by rosbridge for subscriptions made with
+    //    compression "cbor". The buffer belongs to the socket, so it is
+    //    copied before being handed on.
+    @Override
+    public void onMessage(ByteBuffer bytes) {
+        if (debug) System.out.println("<ROS (cbor) " + bytes.remaining() + " bytes");
+        receivedBytes += bytes.remaining();
+        ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+        copy.put(bytes.duplicate());
+        copy.flip();
+        pipeline.submit(copy);
+    }
+
+    // *** Decode stage *** //
+
+    // Runs on a decode thread. Text publishes and service responses become
+    //    a Frame, with the body decoded here only if a handler will want it
+    //    as a Message; the body of anything else is never decoded at all.
+    //    Other frames become an Operation.
+    private Object decode(Object raw) {
+        if (raw instanceof ByteBuffer)
+            return Operation.toOperation((ByteBuffer) raw, classes);
+        String message = (String) raw;
+        Frame frame = Frame.scan(message, classes);
+        if (frame != null && (PUBLISH.equals(frame.getOp()) || SERVICE_RESPONSE.equals(frame.getOp()))) {
+            Class<? extends Operation> c = getOperationClass(frame);
+            FullMessageHandler handler = handlers.lookup(c, frame.getHandle());
+            if (wantsMessage(handler))
+                frame.getMessage(classes.lookup(c, frame.getHandle()));
+            return frame;
+        }
+        return Operation.toOperation(message, classes);
+    }
+
+    // *** Dispatch stage *** //
+
+    // Runs on the dispatch thread, in arrival order. Returns the topic or
+    //    service, if any.
+    private String dispatch(Object decoded) {
+        if (decoded instanceof Frame)
+            return dispatch((Frame) decoded);
+        if (!(decoded instanceof Operation))
+            return null;
+
+        Operation operation = (Operation) decoded;
         //System.out.println("ROSBridgeWebSocketClient.onMessage (operation): ");
         //operation.print();
         
-        FullMessageHandler handler = null;
-        Message msg = null;
-        if (operation instanceof Publish) {
-            Publish p = (Publish) operation;
-            handler = handlers.lookup(Publish.class, p.topic);
-            msg = p.msg;
+        if (operation instanceof PNG)
+            receivePNG((PNG) operation);
+        else if (operation instanceof Fragment) {
+            Fragment fragment = (Fragment) operation;
+            String json = fragments.add(fragment.id, fragment.num, fragment.total, fragment.data);
+            if (json != null)
+                return dispatch(decode(json));
         }
-        else if (operation instanceof ServiceResponse) {
-            ServiceResponse r = ((ServiceResponse) operation);
-            handler = handlers.lookup(ServiceResponse.class, r.service);
-            msg = r.values;
-        }
-        // later we will add clauses for Fragment, PNG, and Status. When rosbridge has it, we'll have one for service requests.
+        else if (operation instanceof Publish || operation instanceof ServiceResponse)
+            return dispatchOperation(operation);
+        // later we will add a clause for Status. When rosbridge has it, we'll have one for service requests.
+        return null;
+    }
+
+    // Publishes and service responses from text frames are dispatched from
+    //    their Frame, by the handle their topic or service was matched to
+    //    when the frame was read, and the body goes to EventBus as the JSON
+    //    it arrived as.
+    private String dispatch(Frame frame) {
+        Class<? extends Operation> c = getOperationClass(frame);
+        FullMessageHandler handler = handlers.lookup(c, frame.getHandle());
 
         // need to handle "result: null" possibility for ROSBridge service responses
         // this is probably some sort of call to the operation for "validation." Do it
         // as part of error handling.
 
-        if (handler != null && message.contains("\"id\":"))
+        if (handler != null && frame.getJSON().contains("\"id\":")) {
+            if (handler instanceof HandlerList) {
+                HandlerList list = (HandlerList) handler;
+                Message msg = list.wantsMessage() ? frame.getMessage(classes.lookup(c, frame.getHandle())) : null;
+                list.onFrame(frame, msg);
+            }
+            else if (handler instanceof FrameHandler)
+                ((FrameHandler) handler).onFrame(frame);
+            else handler.onMessage(frame.getId(), frame.getMessage(classes.lookup(c, frame.getHandle())));
+        }
+        else {
+            if (debug)
+                System.out.println("No handler: id# " + frame.getId() + ", op:" + frame.getOp() + " " + frame.getName());
+            if (frame.hasBody() && EventBus.getDefault().hasSubscriberForEvent(PublishEvent.class))
+                EventBus.getDefault().post(new PublishEvent(frame.getOp(), frame.getId(), frame.getName(), frame.getBodyJSON()));
+        }
+        return frame.getName();
+    }
+
+    // Publishes and service responses decoded in full, from CBOR. There is
+    //    no JSON text to hand to EventBus, so the body is re-encoded.
+    private String dispatchOperation(Operation operation) {
+        String name;
+        FullMessageHandler handler;
+        Message msg;
+        if (operation instanceof Publish) {
+            name = ((Publish) operation).topic;
+            handler = handlers.lookup(Publish.class, name);
+            msg = ((Publish) operation).msg;
+        }
+        else {
+            name = ((ServiceResponse) operation).service;
+            handler = handlers.lookup(ServiceResponse.class, name);
+            msg = ((ServiceResponse) operation).values;
+        }
+        if (handler != null)
             handler.onMessage(operation.id, msg);
         else {
             if (debug)
-                System.out.print("No handler: id# " + operation.id + ", op:" + operation.op);
-            if (operation instanceof Publish) {
-                Publish publish = ((Publish) operation);
-                JSONParser jsonParser = new JSONParser();
-                try {
-                    JSONObject jsonObject = (JSONObject)jsonParser.parse(message);
-                    String content = jsonObject.get("msg").toString();
-                    EventBus.getDefault().post(new PublishEvent(operation,publish.topic,content));
-                } catch (ParseException e) {
-                    e.printStackTrace();
-                }
-
-                System.out.println("Publish " + publish.topic);
-            } else if (operation instanceof ServiceResponse) {
-                ServiceResponse serviceResponse = ((ServiceResponse) operation);
-                JSONParser jsonParser = new JSONParser();
-                try {
-                    JSONObject jsonObject = (JSONObject)jsonParser.parse(message);
-                    String content = jsonObject.get("values").toString();
-                    EventBus.getDefault().post(new PublishEvent(operation,serviceResponse.service,content));
-                } catch (ParseException e) {
-                    e.printStackTrace();
-                }
-
-                System.out.println("Service Response " + serviceResponse.service);
-            }
+                System.out.println("No handler: id# " + operation.id + ", op:" + operation.op + " " + name);
+            if (msg != null && EventBus.getDefault().hasSubscriberForEvent(PublishEvent.class))
+                EventBus.getDefault().post(new PublishEvent(operation, name, JSON.toJSON(msg)));
+        }
+        return name;
+    }
+
+    // With compression "png", rosbridge sends the JSON for an operation inside
+    //    a PNG image. A large one is split into several png operations with
+    //    the same id, numbered by num out of total, whose data strings join
+    //    up into the Base64 of the one image; they are put back together
+    //    alongside fragments. Once the image is complete its JSON goes
+    //    through decode and dispatch like any other frame.
+    private void receivePNG(PNG png) {
+        String data = png.data;
+        if (png.total != null && png.total > 1) {
+            if (png.num == null)
+                return;
+            data = fragments.add(PNG_KEY_PREFIX + png.id, png.num, png.total, png.data);
+        }
+        if (data == null)
+            return;
+
+        String json;
+        try {
+            json = PNGDecoder.decode(data);
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            return;
         }
+        if (debug) System.out.println("<ROS (png) " + json);
+        compressionStats.record(dispatch(decode(json)), data.length(), json.length());
+    }
+
+    private static boolean wantsMessage(FullMessageHandler handler) {
+        if (handler instanceof HandlerList)
+            return ((HandlerList) handler).wantsMessage();
+        return handler != null && !(handler instanceof FrameHandler);
+    }
+
+    private static Class<? extends Operation> getOperationClass(Frame frame) {
+        return PUBLISH.equals(frame.getOp()) ? Publish.class : ServiceResponse.class;
     }
        
     @Override
     public void onClose(int code, String reason, boolean remote) {
+        pipeline.stop();
+        sendQueue.stop();
+        fragments.clear();
         if (listener != null) {
             boolean normal = (remote || (code == CloseFrame.NORMAL));
             listener.onDisconnect(normal, reason, code);
@@ -183,16 +390,176 @@ public class ROSBridgeWebSocketClient extends WebSocketClient {
         send(json);
     }
     
+    // A batch from the send queue goes to the socket as one buffer: one
+    //    wake-up of the socket thread and one write, instead of one of each
+    //    per frame. The frames are encoded just as WebSocketImpl.send would.
+    private void writeBatch(List<Object> frames) {
+        if (frames.size() == 1) {
+            Object frame = frames.get(0);
+            if (frame instanceof byte[])
+                super.send((byte[]) frame);
+            else super.send((String) frame);
+            return;
+        }
+        WebSocketImpl conn = (WebSocketImpl) getConnection();
+        if (!conn.isOpen())
+            throw new NotYetConnectedException();
+        Draft draft = conn.getDraft();
+        List<ByteBuffer> encoded = new ArrayList<ByteBuffer>(frames.size());
+        int length = 0;
+        for (Object frame : frames) {
+            List<Framedata> parts = (frame instanceof byte[]) ?
+                    draft.createFrames(ByteBuffer.wrap((byte[]) frame), true) :
+                    draft.createFrames((String) frame, true);
+            for (Framedata part : parts) {
+                ByteBuffer buffer = draft.createBinaryFrame(part);
+                encoded.add(buffer);
+                length += buffer.remaining();
+            }
+        }
+        ByteBuffer batch = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : encoded)
+            batch.put(buffer);
+        batch.flip();
+        conn.outQueue.add(batch);
+        onWriteDemand(conn);
+    }
+
+    // The socket's channel, telling the send queue each time a buffer has
+    //    been written out in full, so its writer waits for that rather
+    //    than polling
+    private class DrainSignal implements ByteChannel {
+        private final ByteChannel channel;
+
+        DrainSignal(ByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int count = channel.write(src);
+            if (!src.hasRemaining())
+                sendQueue.drained();
+            return count;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+    
+    // All text and binary frames go through the send queue, including
+    //    JSON that callers build themselves
+    @Override
+    public void send(String text) {
+        sendQueue.send(text);
+    }
+    
+    @Override
+    public void send(byte[] data) {
+        sendQueue.send(data);
+    }
+    
+    // Only the newest frame given for a key is sent; see SendQueue.sendLatest
+    public void sendLatest(String key, Operation operation, long minInterval) {
+        sendLatest(key, operation.toJSON(), minInterval);
+    }
+    
+    public void sendLatest(String key, String json, long minInterval) {
+        if (debug) System.out.println("ROS> (latest) " + json);
+        sendQueue.sendLatest(key, json, minInterval);
+    }
+    
+    public void removeLatest(String key) {
+        sendQueue.removeMailbox(key);
+    }
+    
+    public void sendCBOR(Operation operation) {
+        byte[] cbor = operation.toCBOR();
+        if (debug) System.out.println("ROS> (cbor) " + cbor.length + " bytes");
+        send(cbor);
+    }
+    
     public void register(Class<? extends Operation> c,
             String s,
             Class<? extends Message> m,
             FullMessageHandler h) {
-        Message.register(m, classes.get(Message.class));
+        Message.register(m, classes.table(Message.class));
         classes.register(c, s, m);
         if (h != null)
             handlers.register(c, s, h);
     }
     
+    /**
+     * Adds a handler alongside any others for the same operation and name,
+     * so that each gets every message, decoded once.
+     * @param m  the class to decode into; may be null for a FrameHandler,
+     *           which reads the body itself, so that it does not replace
+     *           the class another handler on the same name decodes into
+     * @return  true if it is the first, i.e. the caller should subscribe
+     */
+    public boolean addHandler(Class<? extends Operation> c,
+            String s,
+            Class<? extends Message> m,
+            FullMessageHandler h) {
+        if (m != null) {
+            Message.register(m, classes.table(Message.class));
+            classes.register(c, s, m);
+        }
+        synchronized (handlers) {
+            FullMessageHandler existing = handlers.lookup(c, s);
+            HandlerList list;
+            if (existing instanceof HandlerList)
+                list = (HandlerList) existing;
+            else {
+                list = new HandlerList();
+                if (existing != null)
+                    list.add(existing);     // registered on its own with register()
+            }
+            int before = list.size();
+            list.add(h);
+            handlers.register(c, s, list);
+            return before == 0 && list.size() == 1;
+        }
+    }
+    
+    /**
+     * Removes a handler added with addHandler.
+     * @return  true if it was the last, i.e. the caller should unsubscribe
+     */
+    public boolean removeHandler(Class<? extends Operation> c, String s, FullMessageHandler h) {
+        synchronized (handlers) {
+            FullMessageHandler existing = handlers.lookup(c, s);
+            if (existing == h) {
+                handlers.unregister(c, s);
+                return true;
+            }
+            if (!(existing instanceof HandlerList))
+                return false;
+            HandlerList list = (HandlerList) existing;
+            int before = list.size();
+            if (list.remove(h) > 0 || before == 0)
+                return false;
+            handlers.unregister(c, s);
+            return true;
+        }
+    }
+    
+    public FullMessageHandler getHandler(Class<? extends Operation> c, String s) {
+        return handlers.lookup(c, s);
+    }
+    
     public void unregister(Class<? extends Operation> c, String s) {
         handlers.unregister(c, s);
         // Note that there is no concept of unregistering a class - it can get replaced is all
@@ -202,6 +569,43 @@ public class ROSBridgeWebSocketClient extends WebSocketClient {
         return classes.lookup(Message.class, messageString);
     }
     
+    // Limits, overflow policy and counters for outgoing frames
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+    
+    // Decode threads, queue capacity, queue depths and latencies for
+    //    incoming frames. Handlers are called on its dispatch thread.
+    public ReceivePipeline getReceivePipeline() {
+        return pipeline;
+    }
+    
+    // Characters of text frames plus bytes of binary frames received
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+    
+    // Budget, timeout and counters for messages rosbridge sends in parts
+    public FragmentAssembler getFragmentAssembler() {
+        return fragments;
+    }
+    
+    // Wire bytes against decompressed bytes for each topic or service
+    //    received with compression
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+    
+    // Ratio and CPU cost of permessage-deflate on this connection; null if
+    //    it was not offered. See also PerMessageDeflate.isNegotiated.
+    public DeflateStats getDeflateStats() {
+        return (deflate == null) ? null : deflate.getStats();
+    }
+    
+    public PerMessageDeflate getDeflate() {
+        return deflate;
+    }
+    
     public void setDebug(boolean debug) {
         this.debug = debug;
     }
@@ -0,0 +1,261 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Moves the work for incoming frames off the socket's read thread, in two
+//    stages. The read thread only submits the raw frame. A pool of decode
+//    threads turns frames into something ready to deliver, in parallel, and
+//    a single dispatch thread delivers them to handlers.
+//
+//    Every frame goes into the dispatch queue in arrival order when it is
+//    submitted, and the dispatch thread waits for each one in turn to be
+//    decoded. So delivery is always in arrival order, which keeps each
+//    topic's messages in order, however many decode threads there are.
+//
+//    Both queues are bounded. When they are full, submit blocks the read
+//    thread, which stops reading the socket and lets TCP push back on
+//    rosbridge, rather than letting frames pile up in memory.
+//
+//    With no decode threads, submit decodes and delivers on the calling
+//    thread, as the client always did before.
+
+public class ReceivePipeline {
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int DEFAULT_DECODE_THREADS = 1;
+
+    public interface Stages {
+        // Called on a decode thread, possibly on several frames at once
+        public Object decode(Object frame);
+        // Called on the dispatch thread, in arrival order
+        public void dispatch(Object decoded);
+    }
+
+    private final Stages stages;
+    private int capacity = DEFAULT_CAPACITY;
+    private int decodeThreads = DEFAULT_DECODE_THREADS;
+
+    private BlockingQueue<Job> decodeQueue;
+    private BlockingQueue<Job> dispatchQueue;
+    private Thread[] decoders;
+    private Thread dispatcher;
+    private volatile boolean running;
+
+    private final StageStats decodeStats = new StageStats();
+    private final StageStats dispatchStats = new StageStats();
+
+    public ReceivePipeline(Stages stages) {
+        this.stages = stages;
+    }
+
+    // Takes effect at the next start
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Takes effect at the next start; 0 runs everything on the read thread
+    public synchronized void setDecodeThreads(int decodeThreads) {
+        this.decodeThreads = decodeThreads;
+    }
+
+    public synchronized void start(String name) {
+        stop();
+        if (decodeThreads <= 0)
+            return;
+        decodeQueue = new ArrayBlockingQueue<Job>(capacity);
+        dispatchQueue = new ArrayBlockingQueue<Job>(capacity);
+        running = true;
+        decoders = new Thread[decodeThreads];
+        for (int i = 0; i < decodeThreads; i++) {
+            decoders[i] = new Thread(new Decoder(decodeQueue));
+            decoders[i].setName(name + " decode " + i);
+            decoders[i].setDaemon(true);
+            decoders[i].start();
+        }
+        dispatcher = new Thread(new Dispatcher(dispatchQueue));
+        dispatcher.setName(name + " dispatch");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    // Frames not yet delivered are dropped
+    public synchronized void stop() {
+        running = false;
+        if (decoders != null) {
+            for (Thread t : decoders)
+                t.interrupt();
+            decoders = null;
+        }
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            dispatcher = null;
+        }
+        if (decodeQueue != null)
+            decodeQueue.clear();
+        if (dispatchQueue != null)
+            dispatchQueue.clear();
+    }
+
+    /**
+     * Hands a frame to the pipeline; called on the socket's read thread.
+     * Blocks while the pipeline is full.
+     * @param frame  the raw frame: a String, or a ByteBuffer the caller will
+     *               not reuse
+     */
+    public void submit(Object frame) {
+        BlockingQueue<Job> decodes = decodeQueue;
+        BlockingQueue<Job> dispatches = dispatchQueue;
+        if (!running || decodes == null) {
+            long start = System.nanoTime();
+            Object decoded = stages.decode(frame);
+            long decodedAt = System.nanoTime();
+            decodeStats.record(decodedAt - start);
+            if (decoded != null)
+                stages.dispatch(decoded);
+            dispatchStats.record(System.nanoTime() - decodedAt);
+            return;
+        }
+        Job job = new Job(frame);
+        try {
+            dispatches.put(job);
+            decodes.put(job);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getDecodeQueueDepth() {
+        BlockingQueue<Job> q = decodeQueue;
+        return (q == null) ? 0 : q.size();
+    }
+
+    // Frames submitted and not yet delivered, decoded or not
+    public int getDispatchQueueDepth() {
+        BlockingQueue<Job> q = dispatchQueue;
+        return (q == null) ? 0 : q.size();
+    }
+
+    // Time from submit to decoded
+    public StageStats getDecodeStats() {
+        return decodeStats;
+    }
+
+    // Time from decoded to delivered
+    public StageStats getDispatchStats() {
+        return dispatchStats;
+    }
+
+    private class Decoder implements Runnable {
+        private final BlockingQueue<Job> queue;
+
+        Decoder(BlockingQueue<Job> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.interrupted()) {
+                Job job;
+                try {
+                    job = queue.take();
+                }
+                catch (InterruptedException ex) {
+                    break;
+                }
+                // Anything thrown, Errors included (a stack overflow on a
+                //    deeply nested frame, say), only loses this frame: the
+                //    job is still marked decoded, or the dispatcher would
+                //    wait on it forever
+                Object decoded = null;
+                try {
+                    decoded = stages.decode(job.frame);
+                }
+                catch (Throwable ex) {
+                    ex.printStackTrace();
+                }
+                job.setDecoded(decoded);
+                decodeStats.record(job.decodedAt - job.submittedAt);
+            }
+        }
+    }
+
+    private class Dispatcher implements Runnable {
+        private final BlockingQueue<Job> queue;
+
+        Dispatcher(BlockingQueue<Job> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.interrupted()) {
+                Object decoded;
+                long decodedAt;
+                try {
+                    Job job = queue.take();
+                    decoded = job.awaitDecoded();
+                    decodedAt = job.decodedAt;
+                }
+                catch (InterruptedException ex) {
+                    break;
+                }
+                // A handler that throws, even an Error, must not stop
+                //    delivery on every other topic
+                try {
+                    if (decoded != null)
+                        stages.dispatch(decoded);
+                }
+                catch (Throwable ex) {
+                    ex.printStackTrace();
+                }
+                dispatchStats.record(System.nanoTime() - decodedAt);
+            }
+        }
+    }
+
+    private static class Job {
+        final Object frame;
+        final long submittedAt;
+        long decodedAt;
+        private Object decoded;
+        private boolean done;
+
+        Job(Object frame) {
+            this.frame = frame;
+            submittedAt = System.nanoTime();
+        }
+
+        synchronized void setDecoded(Object decoded) {
+            this.decoded = decoded;
+            decodedAt = System.nanoTime();
+            done = true;
+            notifyAll();
+        }
+
+        synchronized Object awaitDecoded() throws InterruptedException {
+            while (!done)
+                wait();
+            return decoded;
+        }
+    }
+}
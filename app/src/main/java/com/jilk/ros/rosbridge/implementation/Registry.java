@@ -19,31 +19,147 @@
  */
 package com.jilk.ros.rosbridge.implementation;
 
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
-public class Registry<T> extends HashMap<Class, Map<String, T>> {
-    
-    public void register(Class c, String s, T t) {
-        Map<String, T> table = get(c);
-        if (table == null) {
-            table = new HashMap<String, T>();
-            put(c, table);
+// Tables of T by Class and then by String: message classes and handlers by
+//    operation and topic, say. Lookups happen on the receive threads for
+//    every frame, while Topics and Services register and unregister from
+//    application threads, so the tables are copy-on-write. A lookup reads
+//    one volatile reference and two maps that are never changed once
+//    published, and takes no lock; a change copies the table it touches
+//    and publishes the result under a lock. Changes are rare next to
+//    lookups, and the tables are small.
+//
+//    Every String registered is also given a handle in a NameTable, which
+//    registries can share, and each table keeps its entries in an array by
+//    handle too. A frame whose topic was matched to a handle as it was read
+//    is then looked up by array index, with no String to hash.
+
+public class Registry<T> {
+    private static class Table<T> {
+        final Map<String, T> map;
+        final Object[] byHandle;
+
+        Table(Map<String, T> map, Object[] byHandle) {
+            this.map = map;
+            this.byHandle = byHandle;
         }
-        table.put(s, t);
+    }
+
+    private final NameTable names;
+    private volatile Map<Class, Table<T>> tables = Collections.emptyMap();
+
+    public Registry() {
+        this(new NameTable());
+    }
+
+    public Registry(NameTable names) {
+        this.names = names;
+    }
+
+    public NameTable getNames() {
+        return names;
+    }
+
+    public synchronized void register(Class c, String s, T t) {
+        Table<T> table = tables.get(c);
+        if (table != null && table.map.get(s) == t && table.map.containsKey(s))
+            return;     // the same thing again, as a Service does on every call
+        int handle = names.intern(s);
+        Map<String, T> map = (table == null) ? new HashMap<String, T>() : new HashMap<String, T>(table.map);
+        map.put(s, t);
+        Object[] byHandle = (table == null) ? new Object[0] : table.byHandle;
+        byHandle = Arrays.copyOf(byHandle, Math.max(byHandle.length, handle + 1));
+        byHandle[handle] = t;
+        publish(c, new Table<T>(map, byHandle));
     }
     
-    public void unregister(Class c, String s) {
-        Map<String, T> table = get(c);
-        if (table != null)
-            table.remove(s);
+    public synchronized void unregister(Class c, String s) {
+        Table<T> table = tables.get(c);
+        if (table != null && table.map.containsKey(s)) {
+            Map<String, T> map = new HashMap<String, T>(table.map);
+            map.remove(s);
+            Object[] byHandle = table.byHandle.clone();
+            byHandle[names.find(s)] = null;
+            publish(c, new Table<T>(map, byHandle));
+        }
+    }
+
+    private void publish(Class c, Table<T> table) {
+        Map<Class, Table<T>> newTables = new HashMap<Class, Table<T>>(tables);
+        newTables.put(c, table);
+        tables = newTables;
     }
     
     public T lookup(Class c, String s) {
-        T result = null;
-        Map<String, T> table = get(c);
-        if (table != null)
-            result = table.get(s);
-        return result;
+        Table<T> table = tables.get(c);
+        return (table == null) ? null : table.map.get(s);
+    }
+
+    // By a handle from getNames()
+    @SuppressWarnings("unchecked")
+    public T lookup(Class c, int handle) {
+        Table<T> table = tables.get(c);
+        if (table == null || handle < 0 || handle >= table.byHandle.length)
+            return null;
+        return (T) table.byHandle[handle];
+    }
+
+    // The table for c as a Map, for code that works with one, such as
+    //    Message.register. Reads see the latest table; writes go through
+    //    register and unregister.
+    public Map<String, T> table(Class c) {
+        return new TableView(c);
+    }
+
+    private class TableView extends AbstractMap<String, T> {
+        private final Class c;
+
+        TableView(Class c) {
+            this.c = c;
+        }
+
+        @Override
+        public T get(Object key) {
+            Table<T> table = tables.get(c);
+            return (table == null) ? null : table.map.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Table<T> table = tables.get(c);
+            return table != null && table.map.containsKey(key);
+        }
+
+        @Override
+        public T put(String key, T value) {
+            synchronized (Registry.this) {
+                T old = get(key);
+                register(c, key, value);
+                return old;
+            }
+        }
+
+        @Override
+        public T remove(Object key) {
+            synchronized (Registry.this) {
+                T old = get(key);
+                unregister(c, (String) key);
+                return old;
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<String, T>> entrySet() {
+            Table<T> table = tables.get(c);
+            if (table == null)
+                return Collections.emptySet();
+            return Collections.unmodifiableMap(table.map).entrySet();
+        }
     }
 }
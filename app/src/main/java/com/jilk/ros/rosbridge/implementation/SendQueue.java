@@ -0,0 +1,400 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Outgoing frames wait here for a single writer thread, instead of being
+//    written to the socket by whichever thread sends them. The queue is
+//    bounded by both frame count and bytes, and what happens to a frame
+//    that doesn't fit is set by the OverflowPolicy.
+//
+//    The writer takes everything queued at once and hands the batch to the
+//    sink in one write, then waits until the socket has sent it before
+//    taking the next batch; the sink says when with drained(). So frames
+//    wait here, where they are counted and bounded, and not in the
+//    socket's own buffer, which has no limit. A burst of small frames then
+//    goes out as one write instead of one wake-up per frame.
+//
+//    Sizes are in bytes as sent: UTF-8 for text frames, before framing
+//    and compression.
+//
+//    Frames sent with sendLatest skip the queue and go into a single-slot
+//    mailbox for their key (a topic, say). A newer frame replaces an unsent
+//    one, which is counted as superseded, so the writer only ever sends the
+//    latest. A mailbox can also have a minimum interval between sends, to
+//    hold a topic to a maximum rate.
+
+public class SendQueue {
+    public static final int DEFAULT_MAX_MESSAGES = 1024;
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    public enum OverflowPolicy {
+        BLOCK,          // the sender waits for room
+        DROP_OLDEST,    // the oldest queued frames are dropped to make room
+        DROP_NEWEST,    // the new frame is dropped
+        FAIL            // the sender gets an IllegalStateException
+    }
+
+    // Where the writer puts frames, a batch at a time, to be written to
+    //    the socket together where the sink can manage it. isBusy is true
+    //    while the socket still has earlier frames to send; the sink calls
+    //    drained() when that may have changed. resume asks the socket again
+    //    to write what it holds, for a sink that has stayed busy: the
+    //    socket's thread can miss a request to write made just as it
+    //    finishes the last one, and then the frames sit there for good.
+    public interface Sink {
+        public void write(List<Object> frames);
+        public boolean isBusy();
+        public void resume();
+    }
+
+    // How often the writer looks again at a busy sink that has not called
+    //    drained(), and asks it to resume, in case it never does
+    private static final long DRAIN_CHECK = 50;     // ms
+
+    private final Sink sink;
+    private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+    private final Map<String, Mailbox> mailboxes = new LinkedHashMap<String, Mailbox>();
+    private int pendingMailboxes;
+    private int maxMessages = DEFAULT_MAX_MESSAGES;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private OverflowPolicy policy = OverflowPolicy.BLOCK;
+
+    private long queuedBytes;
+    private long sentMessages;
+    private long sentBytes;
+    private long droppedMessages;
+    private long batches;
+    private long superseded;
+
+    private Thread writer;
+
+    public SendQueue(Sink sink) {
+        this.sink = sink;
+    }
+
+    public synchronized void setMaxMessages(int maxMessages) {
+        this.maxMessages = maxMessages;
+        notifyAll();
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        notifyAll();
+    }
+
+    public synchronized void setOverflowPolicy(OverflowPolicy policy) {
+        this.policy = policy;
+        notifyAll();
+    }
+
+    public synchronized void start(String name) {
+        if (writer != null)
+            return;
+        writer = new Thread(new Writer());
+        writer.setName(name + " writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Frames still queued are dropped
+    public synchronized void stop() {
+        if (writer != null) {
+            writer.interrupt();
+            writer = null;
+        }
+        droppedMessages += queue.size();
+        queue.clear();
+        queuedBytes = 0;
+        for (Mailbox mailbox : mailboxes.values())
+            mailbox.frame = null;
+        pendingMailboxes = 0;
+        notifyAll();
+    }
+
+    /**
+     * Queues a frame for the writer. If the writer is not running, the frame
+     * is written straight away on the calling thread.
+     * @param frame  a String for a text frame or a byte[] for a binary one
+     * @return       false if the frame was dropped under DROP_NEWEST, or
+     *               because the queue was stopped while it waited for room
+     * @throws IllegalStateException  if the queue is full under FAIL
+     */
+    public boolean send(Object frame) {
+        long size = sizeOf(frame);
+        synchronized (this) {
+            if (writer != null)
+                return enqueue(frame, size);
+        }
+        sink.write(Collections.singletonList(frame));
+        count(1, size);
+        return true;
+    }
+
+    // The socket has sent what it was given, or some of it; see Sink
+    public synchronized void drained() {
+        notifyAll();
+    }
+
+    /**
+     * Puts a frame in the mailbox for its key, replacing any frame there that
+     * has not been sent yet. If the writer is not running, the frame is
+     * written straight away on the calling thread.
+     * @param key          the mailbox, e.g. the topic
+     * @param frame        a String for a text frame or a byte[] for a binary one
+     * @param minInterval  least time between sends from this mailbox, in ms;
+     *                     0 to send as fast as the link allows
+     */
+    public void sendLatest(String key, Object frame, long minInterval) {
+        long size = sizeOf(frame);
+        synchronized (this) {
+            if (writer != null) {
+                Mailbox mailbox = mailboxes.get(key);
+                if (mailbox == null) {
+                    mailbox = new Mailbox();
+                    mailboxes.put(key, mailbox);
+                }
+                mailbox.minInterval = minInterval;
+                if (mailbox.frame != null) {
+                    mailbox.superseded++;
+                    superseded++;
+                }
+                else pendingMailboxes++;
+                mailbox.frame = frame;
+                mailbox.size = size;
+                notifyAll();
+                return;
+            }
+        }
+        sink.write(Collections.singletonList(frame));
+        count(1, size);
+    }
+
+    // Forget a mailbox, e.g. when its topic is unadvertised. Do this before
+    //    sending anything that must not be followed by the mailbox's frame:
+    //    queued frames go ahead of mailbox frames in a batch.
+    public synchronized void removeMailbox(String key) {
+        Mailbox mailbox = mailboxes.remove(key);
+        if (mailbox != null && mailbox.frame != null)
+            pendingMailboxes--;
+    }
+
+    private boolean enqueue(Object frame, long size) {
+        Thread current = writer;
+        while (!fits(size)) {
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                droppedMessages++;
+                return false;
+            }
+            if (policy == OverflowPolicy.FAIL)
+                throw new IllegalStateException("Send queue full: " + queue.size() + " frames, " + queuedBytes + " bytes");
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                if (queue.isEmpty())
+                    break;      // a frame bigger than maxBytes on its own still goes
+                queuedBytes -= sizeOf(queue.poll());
+                droppedMessages++;
+            }
+            else {
+                if (queue.isEmpty())
+                    break;
+                try {
+                    wait();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    droppedMessages++;
+                    return false;
+                }
+                if (writer != current) {
+                    droppedMessages++;      // stopped, and maybe started again for a new connection
+                    return false;
+                }
+            }
+        }
+        queue.add(frame);
+        queuedBytes += size;
+        notifyAll();
+        return true;
+    }
+
+    private boolean fits(long size) {
+        return queue.size() < maxMessages && queuedBytes + size <= maxBytes;
+    }
+
+    // *** Metrics *** //
+
+    public synchronized int getQueuedMessages() {
+        return queue.size();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized long getSentMessages() {
+        return sentMessages;
+    }
+
+    public synchronized long getSentBytes() {
+        return sentBytes;
+    }
+
+    public synchronized long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    // Frames per socket write is getSentMessages() / getBatches()
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    // Frames replaced in their mailbox before they were sent
+    public synchronized long getSupersededMessages() {
+        return superseded;
+    }
+
+    public synchronized long getSupersededMessages(String key) {
+        Mailbox mailbox = mailboxes.get(key);
+        return (mailbox == null) ? 0 : mailbox.superseded;
+    }
+
+    private synchronized void count(int messages, long bytes) {
+        sentMessages += messages;
+        sentBytes += bytes;
+    }
+
+    private static class Mailbox {
+        Object frame;
+        long size;
+        long minInterval;
+        long lastSent;
+        long superseded;
+    }
+
+    private static long sizeOf(Object frame) {
+        if (frame instanceof byte[])
+            return ((byte[]) frame).length;
+        return utf8Length((String) frame);
+    }
+
+    // The length of s in UTF-8, without encoding it
+    private static long utf8Length(String s) {
+        long length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800)
+                length += 2;        // a surrogate pair makes 4 together
+            else if (c >= 0x80)
+                length++;
+        }
+        return length;
+    }
+
+    private class Writer implements Runnable {
+        private long batchBytes;        // of the frames taken into the batch
+
+        @Override
+        public void run() {
+            List<Object> batch = new ArrayList<Object>();
+            try {
+                while (!Thread.interrupted()) {
+                    synchronized (SendQueue.this) {
+                        long wait;
+                        while ((wait = takeMailboxes(batch)) != 0 && queue.isEmpty()) {
+                            if (wait < 0)
+                                SendQueue.this.wait();
+                            else SendQueue.this.wait(wait);
+                        }
+                        batch.addAll(0, queue);     // queued frames go first, so an advertise precedes its publishes
+                        batchBytes += queuedBytes;
+                        queue.clear();
+                        queuedBytes = 0;
+                        batches++;
+                        SendQueue.this.notifyAll();
+                    }
+                    write(batch, batchBytes);
+                    batch.clear();
+                    batchBytes = 0;
+                    while (true) {
+                        synchronized (SendQueue.this) {
+                            if (!sink.isBusy())
+                                break;
+                            SendQueue.this.wait(DRAIN_CHECK);
+                            if (!sink.isBusy())
+                                break;
+                        }
+                        sink.resume();
+                    }
+                }
+            }
+            catch (InterruptedException ex) {
+                // stopped
+            }
+        }
+
+        // Move the frames from mailboxes that are due into the batch. Returns
+        //    0 if any were taken, else the ms until the next one is due, or
+        //    -1 if there are none waiting.
+        private long takeMailboxes(List<Object> batch) {
+            if (pendingMailboxes == 0)
+                return batch.isEmpty() ? -1 : 0;
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            for (Mailbox mailbox : mailboxes.values()) {
+                if (mailbox.frame == null)
+                    continue;
+                long due = mailbox.lastSent + mailbox.minInterval;
+                if (due <= now) {
+                    batch.add(mailbox.frame);
+                    batchBytes += mailbox.size;
+                    mailbox.frame = null;
+                    mailbox.lastSent = now;
+                    pendingMailboxes--;
+                }
+                else next = Math.min(next, due - now);
+            }
+            if (!batch.isEmpty())
+                return 0;
+            return next;
+        }
+
+        // A batch that can't be written, because the socket has just
+        //    closed say, is counted as dropped and the writer carries on;
+        //    the close will stop it.
+        private void write(List<Object> batch, long bytes) {
+            try {
+                sink.write(batch);
+                count(batch.size(), bytes);
+            }
+            catch (RuntimeException ex) {
+                ex.printStackTrace();
+                synchronized (SendQueue.this) {
+                    droppedMessages += batch.size();
+                }
+            }
+        }
+    }
+}
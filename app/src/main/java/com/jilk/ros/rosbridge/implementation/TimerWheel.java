@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+// A hashed timer wheel: many timeouts that are mostly cancelled before they
+//    fire, such as service call deadlines, for the cost of one thread. Each
+//    timeout goes in the slot for the tick it is due in, and the thread
+//    visits one slot per tick. Scheduling and cancelling are O(1) and
+//    allocate one Timeout; timeouts fire up to one tick late.
+
+public class TimerWheel {
+    public static final long DEFAULT_TICK = 50;     // ms
+    public static final int DEFAULT_SLOTS = 512;
+
+    private static TimerWheel shared;
+
+    private final long tick;
+    private final Timeout[] slots;      // each the head of a list, or null
+    private long now;                   // ticks since start
+    private int pending;
+    private Thread thread;
+
+    public class Timeout {
+        private final Runnable task;
+        private final long due;         // in ticks
+        private int slot = -1;          // -1 once off the wheel
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long due) {
+            this.task = task;
+            this.due = due;
+        }
+
+        // True if it had not fired and now never will
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (slot < 0)
+                    return false;
+                unlink(this);
+                return true;
+            }
+        }
+    }
+
+    public TimerWheel(long tick, int slots) {
+        this.tick = tick;
+        this.slots = new Timeout[slots];
+    }
+
+    // The wheel shared by everything that has no reason to have its own
+    public static synchronized TimerWheel getShared() {
+        if (shared == null)
+            shared = new TimerWheel(DEFAULT_TICK, DEFAULT_SLOTS);
+        return shared;
+    }
+
+    /**
+     * Runs task on the wheel's thread after delay ms, unless cancelled.
+     * The task should be quick; anything long belongs on another thread.
+     */
+    public synchronized Timeout schedule(Runnable task, long delay) {
+        long ticks = Math.max(1, (delay + tick - 1) / tick);
+        Timeout timeout = new Timeout(task, now + ticks);
+        link(timeout, (int) (timeout.due % slots.length));
+        if (thread == null) {
+            thread = new Thread(new Runner());
+            thread.setName("Timer wheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+        return timeout;
+    }
+
+    // Timeouts scheduled and not yet fired or cancelled
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    private void link(Timeout timeout, int slot) {
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null)
+            timeout.next.prev = timeout;
+        slots[slot] = timeout;
+        pending++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else slots[timeout.slot] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.slot = -1;
+        timeout.prev = null;
+        timeout.next = null;
+        pending--;
+    }
+
+    private class Runner implements Runnable {
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            while (true) {
+                Timeout expired = null;
+                synchronized (TimerWheel.this) {
+                    try {
+                        while (pending == 0) {
+                            TimerWheel.this.wait();
+                            start = System.currentTimeMillis() - now * tick;    // don't count idle time as ticks
+                        }
+                        long wait = start + (now + 1) * tick - System.currentTimeMillis();
+                        if (wait > 0) {
+                            TimerWheel.this.wait(wait);
+                            continue;
+                        }
+                    }
+                    catch (InterruptedException ex) {
+                        return;
+                    }
+                    now++;
+                    int slot = (int) (now % slots.length);
+                    Timeout t = slots[slot];
+                    while (t != null) {
+                        Timeout next = t.next;
+                        if (t.due <= now) {
+                            unlink(t);
+                            t.next = expired;
+                            expired = t;
+                        }
+                        t = next;
+                    }
+                }
+                for (Timeout t = expired; t != null; ) {
+                    Timeout next = t.next;
+                    t.next = null;
+                    try {
+                        t.task.run();
+                    }
+                    catch (RuntimeException ex) {
+                        ex.printStackTrace();
+                    }
+                    t = next;
+                }
+            }
+        }
+    }
+}
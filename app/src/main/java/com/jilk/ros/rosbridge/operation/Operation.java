@@ -21,9 +21,13 @@ package com.jilk.ros.rosbridge.operation;
 
 import com.jilk.ros.message.Message;
 import com.jilk.ros.message.MessageType;
+import com.jilk.ros.rosbridge.implementation.CBORDecoder;
+import com.jilk.ros.rosbridge.implementation.CBOREncoder;
 import com.jilk.ros.rosbridge.implementation.JSON;
 import com.jilk.ros.rosbridge.implementation.Registry;
 
+import java.nio.ByteBuffer;
+
 @MessageType(string = "operation")
 public class Operation extends Message {
     private static Long uid = 0L;
@@ -47,7 +51,17 @@ public class Operation extends Message {
     }
     
     public static Operation toOperation(String json, Registry<Class> registry) {
-        return ((Wrapper) JSON.toMessage(json, Wrapper.class, registry)).msg;
+        Wrapper wrapper = (Wrapper) JSON.toMessage(json, Wrapper.class, registry);
+        return (wrapper == null) ? null : wrapper.msg;
+    }
+    
+    public byte[] toCBOR() {
+        return CBOREncoder.encode(this);
+    }
+    
+    public static Operation toOperation(ByteBuffer cbor, Registry<Class> registry) {
+        Wrapper wrapper = (Wrapper) new CBORDecoder(cbor, registry).decode(Wrapper.class);
+        return (wrapper == null) ? null : wrapper.msg;
     }
     
     public static void initialize(Registry<Class> registry) {
@@ -21,4 +21,11 @@ public class PublishEvent {
         this.name = name;
         msg = content;
     }
+
+    public PublishEvent(String op, String id, String name, String content) {
+        this.op = op;
+        this.id = id;
+        this.name = name;
+        msg = content;
+    }
 }
@@ -14,14 +14,21 @@ import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.jilk.ros.message.Message;
 import com.jilk.ros.rosapi.message.TypeDef;
+import com.jilk.ros.rosbridge.FrameHandler;
+import com.jilk.ros.rosbridge.FullMessageHandler;
 import com.jilk.ros.rosbridge.ROSBridgeClient;
+import com.jilk.ros.rosbridge.implementation.Frame;
+import com.jilk.ros.rosbridge.implementation.JSON;
+import com.jilk.ros.rosbridge.operation.Publish;
+import com.jilk.ros.rosbridge.operation.Subscribe;
+import com.jilk.ros.rosbridge.operation.Unsubscribe;
 import com.unnamed.b.atv.model.TreeNode;
 import com.unnamed.b.atv.view.AndroidTreeView;
 
 import net.xxhong.rosclient.R;
 import net.xxhong.rosclient.RCApplication;
-import net.xxhong.rosclient.entity.PublishEvent;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -34,7 +41,6 @@ import java.util.TimerTask;
 import butterknife.Bind;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
-import de.greenrobot.event.EventBus;
 
 public class DetailActivity extends Activity {
 
@@ -56,6 +62,7 @@ public class DetailActivity extends Activity {
     TypeDef[] typeDef;
 
     private boolean isSubscribe = false;
+    private final TopicLog topicLog = new TopicLog();
 
     private Timer timer;
     public  boolean moving = false;
@@ -68,7 +75,6 @@ public class DetailActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_detail);
-        EventBus.getDefault().register(this);
         ButterKnife.bind(this);
 
         tvLog.setMovementMethod(new ScrollingMovementMethod());
@@ -87,12 +93,16 @@ public class DetailActivity extends Activity {
             }
 
             root = TreeNode.root();
-            genParamTree(root, typeDef[0]);
+            if (typeDef == null || typeDef.length == 0) {   //rosapi did not answer
+                tvLog.setText("No type details for " + detailName + "\n");
+            } else {
+                genParamTree(root, typeDef[0]);
 
-            AndroidTreeView tView = new AndroidTreeView(this, root);
-            paramContainer.addView(tView.getView());
+                AndroidTreeView tView = new AndroidTreeView(this, root);
+                paramContainer.addView(tView.getView());
 
-            tView.expandAll();
+                tView.expandAll();
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -145,10 +155,10 @@ public class DetailActivity extends Activity {
         switch (view.getId()) {
             case R.id.btn_topic_sub:
                 if(isSubscribe) {
-                    client.send("{\"op\":\"unsubscribe\",\"topic\":\"" + detailName + "\"}");
+                    unsubscribe();
                     btnSubTopic.setText("Subscribe");
                 } else {
-                    client.send("{\"op\":\"subscribe\",\"topic\":\"" + detailName + "\"}");
+                    subscribe();
                     btnSubTopic.setText("Unsubscribe");
                 }
                 isSubscribe = !isSubscribe;
@@ -171,10 +181,41 @@ public class DetailActivity extends Activity {
         }
     }
 
-    //Receive data from ROS server, send from ROSBridgeWebSocketClient onMessage()
-    public void onEvent(final PublishEvent event) {
-        if("/map".equals(event.name)) {
-            parseMapTopic(event);
+    //Subscribe by adding a handler to the client, as Topic.subscribe does, so
+    //that this screen shares one subscription with anything else on the
+    //topic: only the first handler sends subscribe, only the last unsubscribe.
+    //Topic itself needs a message class, and this screen takes any topic.
+    private void subscribe() {
+        if (client.addHandler(Publish.class, detailName, null, topicLog)) {
+            String type = (typeDef != null && typeDef.length > 0) ? typeDef[0].type : null;
+            client.send(new Subscribe(detailName, type));
+        }
+    }
+
+    private void unsubscribe() {
+        if (client.removeHandler(Publish.class, detailName, topicLog))
+            client.send(new Unsubscribe(detailName));
+    }
+
+    //Receive data from ROS server: the message JSON as it arrived, on the
+    //client's receive thread
+    private class TopicLog implements FullMessageHandler, FrameHandler {
+        @Override
+        public void onFrame(Frame frame) {
+            if (frame.hasBody())
+                show(frame.getName(), frame.getBodyJSON());
+        }
+
+        @Override //Messages that came as CBOR, with no JSON text
+        public void onMessage(String id, Message message) {
+            if (message != null)
+                show(detailName, JSON.toJSON(message));
+        }
+    }
+
+    private void show(String name, final String msg) {
+        if("/map".equals(name)) {
+            parseMapTopic(msg);
             return;
         }
 
@@ -186,7 +227,7 @@ public class DetailActivity extends Activity {
                     tvLog.setText("");
                 }
 
-                tvLog.setText(tvLog.getText() + "\ninfo:  " + event.msg + "\n");
+                tvLog.setText(tvLog.getText() + "\ninfo:  " + msg + "\n");
 
                 int offset=tvLog.getLineCount()*tvLog.getLineHeight();
                 if(offset>tvLog.getHeight()){
@@ -194,7 +235,7 @@ public class DetailActivity extends Activity {
                 }
             }
         });
-        Log.d(TAG, event.msg);
+        Log.d(TAG, msg);
     }
 
     //Add TouchListener on log TextView
@@ -205,7 +246,7 @@ public class DetailActivity extends Activity {
             @Override
             public void run() {
                 if (moving) {
-                    client.send("{\"op\":\"publish\",\"topic\":\"/cmd_vel\",\"msg\":{\"linear\":{\"x\":" + linearX + ",\"y\":0,\"z\":0},\"angular\":{\"x\":0,\"y\":0,\"z\":" + angularZ + "}}}");
+                    client.sendLatest("/cmd_vel", "{\"op\":\"publish\",\"topic\":\"/cmd_vel\",\"msg\":{\"linear\":{\"x\":" + linearX + ",\"y\":0,\"z\":0},\"angular\":{\"x\":0,\"y\":0,\"z\":" + angularZ + "}}}", 0);
                     Log.d(TAG,"send cmd_vel msg:x:" + linearX + " z:" + angularZ);
                 }
             }
@@ -251,10 +292,10 @@ public class DetailActivity extends Activity {
         });
     }
 
-    public void parseMapTopic(PublishEvent event) {
+    public void parseMapTopic(String msg) {
         try {
             JSONParser parser = new JSONParser();
-            JSONObject jsonObj = (JSONObject) parser.parse(event.msg);
+            JSONObject jsonObj = (JSONObject) parser.parse(msg);
             JSONArray dataArray = (JSONArray)jsonObj.get("data");
             JSONObject jsonInfo = (JSONObject)jsonObj.get("info");
             int width = (int)(long)jsonInfo.get("width");
@@ -297,13 +338,10 @@ public class DetailActivity extends Activity {
             timer.cancel();
             timer = null;
         }
-        client.send("{\"op\":\"unsubscribe\",\"topic\":\"" + detailName + "\"}");
+        if(isSubscribe) {
+            unsubscribe();
+            isSubscribe = false;
+        }
         btnSubTopic.setText("Subscribe");
     }
-
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        EventBus.getDefault().unregister(this);
-    }
 }
@@ -4,6 +4,8 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
@@ -12,6 +14,8 @@ import android.widget.BaseExpandableListAdapter;
 import android.widget.ExpandableListView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
+import com.jilk.ros.CallFuture;
+import com.jilk.ros.GraphSnapshot;
 import com.jilk.ros.rosbridge.ROSBridgeClient;
 import net.xxhong.rosclient.R;
 import net.xxhong.rosclient.RCApplication;
@@ -20,6 +24,8 @@ import butterknife.Bind;
 import butterknife.ButterKnife;
 
 public class NodesActivity extends Activity {
+    private static final String TAG = "NodesActivity";
+    private static final long MIN_REFRESH_INTERVAL = 5000;     // ms
 
     ROSBridgeClient client;
     @Bind(R.id.node_list)
@@ -27,6 +33,10 @@ public class NodesActivity extends Activity {
 
     private String[] nodeTypes = new String[] { "Node List", "Service List", "Topic List" };
     private String[][] nodeDataArray = new String[][] {{  },{ },{ }};
+    private NodeListAdapter adapter;
+    private GraphSnapshot graph;
+    private CallFuture<GraphSnapshot> refreshing;
+    private long lastRefresh;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -36,15 +46,60 @@ public class NodesActivity extends Activity {
 
         client = ((RCApplication)getApplication()).getRosClient();
 
-        try {
-            //Get list data
-            nodeDataArray[0] = client.getNodes();
-            nodeDataArray[1] = client.getServices();
-            nodeDataArray[2] = client.getTopics();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        nodeListView.setAdapter(new NodeListAdapter());
+        adapter = new NodeListAdapter();
+        nodeListView.setAdapter(adapter);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    //Get list data: the three rosapi list calls go out at once, off the UI
+    //thread. The screen shows no types, so none are asked for. A refresh is
+    //skipped while one is out, or if the last was under
+    //MIN_REFRESH_INTERVAL ago, so coming back to the screen often does not
+    //keep the link busy. The lists are only redrawn if they changed.
+    private void refresh() {
+        long now = SystemClock.elapsedRealtime();
+        if ((refreshing != null && !refreshing.isDone()) ||
+                (graph != null && now - lastRefresh < MIN_REFRESH_INTERVAL))
+            return;
+        lastRefresh = now;
+        refreshing = client.getGraphListsAsync(ROSBridgeClient.DEFAULT_GRAPH_TIMEOUT);
+        refreshing.addCallback(new CallFuture.Callback<GraphSnapshot>() {
+            @Override
+            public void onSuccess(final GraphSnapshot snapshot) {
+                Log.d(TAG, "ROS graph: first list " + snapshot.getFirstListMillis() + " ms, all lists " +
+                        snapshot.getListsMillis() + " ms");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        show(snapshot);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                Log.d(TAG, "ROS graph not available: " + error);
+            }
+        });
+    }
+
+    private void show(GraphSnapshot snapshot) {
+        if (isFinishing())
+            return;
+        GraphSnapshot.Diff diff = snapshot.diff(graph);
+        graph = snapshot;
+        if (diff.isEmpty())
+            return;
+        Log.d(TAG, "ROS graph changed: " + diff);
+        nodeDataArray[0] = snapshot.getNodes().toArray(new String[0]);
+        nodeDataArray[1] = snapshot.getServices().toArray(new String[0]);
+        nodeDataArray[2] = snapshot.getTopics().toArray(new String[0]);
+        adapter.notifyDataSetChanged();
     }
 
     class NodeListAdapter extends BaseExpandableListAdapter {
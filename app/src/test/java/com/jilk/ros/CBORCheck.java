@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosbridge.ROSBridgeClient;
+import com.jilk.ros.rosbridge.implementation.CBORDecoder;
+import com.jilk.ros.rosbridge.implementation.CBOREncoder;
+import com.jilk.ros.rosbridge.implementation.JSON;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Checks the CBOR encoder and decoder on their own, then end to end: a
+//    Topic subscribed with COMPRESSION_CBOR and one without, both fed by
+//    LocalROSBridge, must each get every message and the same values. Also
+//    times CBOR against JSON for the sample messages.
+
+public class CBORCheck {
+    private static final int ITERATIONS = 20000;
+    private static final int PUBLISHED = 200;
+    private static final int PORT = 9097;
+
+    public static void main(String[] args) throws Exception {
+        Message[] samples = new Message[] {
+                CodecBenchmark.odometry(), CodecBenchmark.laserScan(), CodecBenchmark.log() };
+
+        Harness.section("Round trips");
+        for (Message m : samples) {
+            String type = Message.getMessageType(m.getClass());
+            Message decoded = fromCBOR(CBOREncoder.encode(m), m.getClass());
+            Harness.check(decoded != null && JSON.toJSON(decoded).equals(JSON.toJSON(m)),
+                    type + " comes back the same");
+        }
+
+        Harness.section("Damaged frames");
+        byte[] scan = CBOREncoder.encode(CodecBenchmark.laserScan());
+        boolean rejected = true;
+        for (int length = 0; length < scan.length; length += scan.length / 8)
+            rejected &= (fromCBOR(Arrays.copyOf(scan, length), CodecBenchmark.LaserScan.class) == null);
+        Harness.check(rejected, "every truncated frame decodes to null");
+        Harness.check(fromCBOR(new byte[] { (byte) 0xbf, 0x61 }, CodecBenchmark.LaserScan.class) == null,
+                "a map cut off inside a key decodes to null");
+        Harness.check(fromCBOR(new byte[] { (byte) 0xbb, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff }, CodecBenchmark.LaserScan.class) == null,
+                "a map claiming 2^63 entries decodes to null");
+
+        for (Message m : samples)
+            compare(m);
+
+        checkTopics();
+    }
+
+    private static Message fromCBOR(byte[] cbor, Class c) {
+        return new CBORDecoder(ByteBuffer.wrap(cbor), null).decode(c);
+    }
+
+    private static void compare(final Message message) {
+        final Class c = message.getClass();
+        final String json = JSON.toJSON(message);
+        final byte[] cbor = CBOREncoder.encode(message);
+        Harness.section(Message.getMessageType(c) + ", " + json.length() + " chars of JSON, " +
+                cbor.length + " bytes of CBOR");
+        double jsonEncode = Harness.time("encode, JSON", ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                Harness.sink = JSON.toJSON(message);
+            }
+        });
+        double cborEncode = Harness.time("encode, CBOR", ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                Harness.sink = CBOREncoder.encode(message);
+            }
+        });
+        double jsonDecode = Harness.time("decode, JSON", ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                Harness.sink = JSON.toMessage(json, c, null);
+            }
+        });
+        double cborDecode = Harness.time("decode, CBOR", ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                Harness.sink = fromCBOR(cbor, c);
+            }
+        });
+        Harness.ratio("encode speed-up", jsonEncode, cborEncode);
+        Harness.ratio("decode speed-up", jsonDecode, cborDecode);
+    }
+
+    // One client subscribes with CBOR and another without, since only the
+    //    first subscribe on a client sets the compression
+    private static void checkTopics() throws Exception {
+        Harness.section("Subscriptions through LocalROSBridge");
+        LocalROSBridge server = new LocalROSBridge(PORT);
+        server.start();
+        Thread.sleep(300);
+        ROSBridgeClient cborClient = new ROSBridgeClient(server.getURI());
+        ROSBridgeClient jsonClient = new ROSBridgeClient(server.getURI());
+        try {
+            Harness.check(cborClient.connect() && jsonClient.connect(), "both clients connect");
+            Topic<CodecBenchmark.LaserScan> cborTopic =
+                    new Topic<CodecBenchmark.LaserScan>("/scan", CodecBenchmark.LaserScan.class, cborClient);
+            cborTopic.setCompression(Topic.COMPRESSION_CBOR);
+            cborTopic.subscribe();
+            Topic<CodecBenchmark.LaserScan> jsonTopic =
+                    new Topic<CodecBenchmark.LaserScan>("/scan", CodecBenchmark.LaserScan.class, jsonClient);
+            jsonTopic.subscribe();
+            for (int i = 0; i < 50 && server.getSubscriberCount("/scan") < 2; i++)
+                Thread.sleep(20);
+            Harness.check(server.getSubscriberCount("/scan") == 2, "both subscribes reach the server");
+
+            CodecBenchmark.LaserScan sent = CodecBenchmark.laserScan();
+            boolean same = true;
+            int received = 0;
+            for (int i = 0; i < PUBLISHED; i++) {
+                sent.header.seq = i;
+                sent.ranges[0] = i;
+                server.publish("/scan", sent);
+                CodecBenchmark.LaserScan viaCBOR = cborTopic.poll(2000, TimeUnit.MILLISECONDS);
+                CodecBenchmark.LaserScan viaJSON = jsonTopic.poll(2000, TimeUnit.MILLISECONDS);
+                if (viaCBOR == null || viaJSON == null)
+                    break;
+                received++;
+                same &= JSON.toJSON(viaCBOR).equals(JSON.toJSON(sent)) &&
+                        JSON.toJSON(viaJSON).equals(JSON.toJSON(sent));
+            }
+            Harness.check(received == PUBLISHED, "each topic gets all " + PUBLISHED + " messages");
+            Harness.check(same, "messages read from CBOR and from JSON match what was published");
+
+            cborTopic.unsubscribe();
+            jsonTopic.unsubscribe();
+        }
+        finally {
+            cborClient.disconnect();
+            jsonClient.disconnect();
+            server.shutdown();
+        }
+    }
+}
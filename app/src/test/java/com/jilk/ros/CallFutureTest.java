@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Composition of CallFutures: results, failures and cancels passing along
+//    thenApply, thenCompose and all.
+
+public class CallFutureTest {
+    private static final CallFuture.Function<Integer, String> NAME = new CallFuture.Function<Integer, String>() {
+        @Override
+        public String apply(Integer i) {
+            return "n" + i;
+        }
+    };
+
+    @Test
+    public void thenApplyMapsTheResult() throws Exception {
+        CallFuture<Integer> source = new CallFuture<Integer>();
+        CallFuture<String> mapped = source.thenApply(NAME);
+        assertFalse(mapped.isDone());
+        source.complete(7);
+        assertEquals("n7", mapped.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void thenApplyFailsWhenTheFunctionThrows() throws Exception {
+        final IllegalArgumentException thrown = new IllegalArgumentException();
+        CallFuture<String> mapped = CallFuture.completed(1).thenApply(new CallFuture.Function<Integer, String>() {
+            @Override
+            public String apply(Integer i) {
+                throw thrown;
+            }
+        });
+        assertSame(thrown, failure(mapped));
+    }
+
+    @Test
+    public void thenApplyPassesAFailureOn() throws Exception {
+        CallFuture<Integer> source = new CallFuture<Integer>();
+        CallFuture<String> mapped = source.thenApply(NAME);
+        TimeoutException timeout = new TimeoutException();
+        source.fail(timeout);
+        assertSame(timeout, failure(mapped));
+    }
+
+    @Test
+    public void cancellingThenApplyCancelsTheSource() {
+        CallFuture<Integer> source = new CallFuture<Integer>();
+        CallFuture<String> mapped = source.thenApply(NAME);
+        assertTrue(mapped.cancel(true));
+        assertTrue(mapped.isCancelled());
+        assertTrue(source.isCancelled());
+    }
+
+    @Test
+    public void cancellingTheSourceFailsThenApply() throws Exception {
+        CallFuture<Integer> source = new CallFuture<Integer>();
+        CallFuture<String> mapped = source.thenApply(NAME);
+        source.cancel(true);
+        assertTrue(failure(mapped) instanceof CancellationException);
+    }
+
+    @Test
+    public void thenComposeWaitsForTheInnerFuture() throws Exception {
+        final CallFuture<String> inner = new CallFuture<String>();
+        CallFuture<Integer> first = new CallFuture<Integer>();
+        CallFuture<String> composed = first.thenCompose(returning(inner));
+        first.complete(1);
+        assertFalse(composed.isDone());
+        inner.complete("done");
+        assertEquals("done", composed.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void thenComposePassesAFailureOfEitherStepOn() throws Exception {
+        CallFuture<Integer> first = new CallFuture<Integer>();
+        CallFuture<String> composed = first.thenCompose(returning(new CallFuture<String>()));
+        TimeoutException timeout = new TimeoutException();
+        first.fail(timeout);
+        assertSame(timeout, failure(composed));
+
+        CallFuture<String> inner = new CallFuture<String>();
+        composed = CallFuture.completed(1).thenCompose(returning(inner));
+        inner.fail(timeout);
+        assertSame(timeout, failure(composed));
+    }
+
+    @Test
+    public void thenComposeFailsWhenTheFunctionThrows() throws Exception {
+        final IllegalStateException thrown = new IllegalStateException();
+        CallFuture<String> composed = CallFuture.completed(1).thenCompose(new CallFuture.AsyncFunction<Integer, String>() {
+            @Override
+            public CallFuture<String> apply(Integer i) {
+                throw thrown;
+            }
+        });
+        assertSame(thrown, failure(composed));
+    }
+
+    @Test
+    public void cancellingThenComposeCancelsTheFirstCallBeforeItEnds() {
+        CallFuture<String> inner = new CallFuture<String>();
+        CallFuture<Integer> first = new CallFuture<Integer>();
+        CallFuture<String> composed = first.thenCompose(returning(inner));
+        composed.cancel(true);
+        assertTrue(first.isCancelled());
+        assertFalse(inner.isDone());
+    }
+
+    @Test
+    public void cancellingThenComposeCancelsTheInnerCallOnceStarted() {
+        CallFuture<String> inner = new CallFuture<String>();
+        CallFuture<Integer> first = new CallFuture<Integer>();
+        CallFuture<String> composed = first.thenCompose(returning(inner));
+        first.complete(1);
+        composed.cancel(true);
+        assertTrue(inner.isCancelled());
+        assertFalse(first.isCancelled());
+    }
+
+    @Test
+    public void allKeepsResultsInOrder() throws Exception {
+        List<CallFuture<Integer>> parts = futures(3);
+        CallFuture<List<Integer>> all = CallFuture.all(parts);
+        parts.get(2).complete(2);
+        parts.get(0).complete(0);
+        assertFalse(all.isDone());
+        parts.get(1).complete(1);
+        assertEquals(Arrays.asList(0, 1, 2), all.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void allOfNothingIsDoneAtOnce() throws Exception {
+        CallFuture<List<Integer>> all = CallFuture.all(Collections.<CallFuture<Integer>>emptyList());
+        assertTrue(all.get(1, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void allFailsWhenOneFails() throws Exception {
+        List<CallFuture<Integer>> parts = futures(3);
+        CallFuture<List<Integer>> all = CallFuture.all(parts);
+        parts.get(0).complete(0);
+        TimeoutException timeout = new TimeoutException();
+        parts.get(1).fail(timeout);
+        assertSame(timeout, failure(all));
+        assertFalse(parts.get(2).isDone());
+    }
+
+    @Test
+    public void allFailsWhenOneIsCancelled() throws Exception {
+        List<CallFuture<Integer>> parts = futures(3);
+        CallFuture<List<Integer>> all = CallFuture.all(parts);
+        parts.get(1).cancel(true);
+        assertTrue(failure(all) instanceof CancellationException);
+    }
+
+    @Test
+    public void cancellingAllCancelsEach() {
+        List<CallFuture<Integer>> parts = futures(3);
+        parts.get(0).complete(0);
+        CallFuture.all(parts).cancel(true);
+        assertFalse(parts.get(0).isCancelled());
+        assertTrue(parts.get(1).isCancelled());
+        assertTrue(parts.get(2).isCancelled());
+    }
+
+    private static CallFuture.AsyncFunction<Integer, String> returning(final CallFuture<String> inner) {
+        return new CallFuture.AsyncFunction<Integer, String>() {
+            @Override
+            public CallFuture<String> apply(Integer i) {
+                return inner;
+            }
+        };
+    }
+
+    private static List<CallFuture<Integer>> futures(int n) {
+        List<CallFuture<Integer>> futures = new ArrayList<CallFuture<Integer>>();
+        for (int i = 0; i < n; i++)
+            futures.add(new CallFuture<Integer>());
+        return futures;
+    }
+
+    // The cause a failed future reports
+    private static Throwable failure(CallFuture<?> future) throws InterruptedException, TimeoutException {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException ex) {
+            return ex.getCause();
+        }
+        fail("the future did not fail");
+        return null;
+    }
+}
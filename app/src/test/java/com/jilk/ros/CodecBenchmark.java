@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import com.jilk.ros.message.Header;
+import com.jilk.ros.message.Log;
+import com.jilk.ros.message.Message;
+import com.jilk.ros.message.MessageType;
+import com.jilk.ros.message.TimePrimitive;
+import com.jilk.ros.rosbridge.implementation.CodecPlan;
+import com.jilk.ros.rosbridge.implementation.JSON;
+
+// Encode and decode times for typical messages through the codec plans
+//    (and generated codecs, where the processor has run), against the
+//    reflective JSON-simple path they replaced. Each message is also
+//    checked to come back the same after a round trip, and to decode the
+//    same from the old encoder's text as from the new one's.
+
+public class CodecBenchmark {
+    private static final int ITERATIONS = 20000;
+
+    @MessageType(string = "geometry_msgs/Point")
+    public static class Point extends Message {
+        public double x;
+        public double y;
+        public double z;
+    }
+
+    @MessageType(string = "geometry_msgs/Quaternion")
+    public static class Quaternion extends Message {
+        public double x;
+        public double y;
+        public double z;
+        public double w;
+    }
+
+    @MessageType(string = "geometry_msgs/Pose")
+    public static class Pose extends Message {
+        public Point position;
+        public Quaternion orientation;
+    }
+
+    @MessageType(string = "geometry_msgs/PoseWithCovariance")
+    public static class PoseWithCovariance extends Message {
+        public Pose pose;
+        public double[] covariance;
+    }
+
+    @MessageType(string = "nav_msgs/Odometry")
+    public static class Odometry extends Message {
+        public Header header;
+        public String child_frame_id;
+        public PoseWithCovariance pose;
+    }
+
+    @MessageType(string = "sensor_msgs/LaserScan")
+    public static class LaserScan extends Message {
+        public Header header;
+        public float angle_min;
+        public float angle_max;
+        public float angle_increment;
+        public float time_increment;
+        public float scan_time;
+        public float range_min;
+        public float range_max;
+        public float[] ranges;
+        public float[] intensities;
+    }
+
+    public static void main(String[] args) {
+        Harness.section("Round trips");
+        Message[] samples = new Message[] { odometry(), laserScan(), log() };
+        for (Message m : samples)
+            checkRoundTrip(m);
+
+        for (Message m : samples) {
+            final Message message = m;
+            final Class c = m.getClass();
+            final String json = JSON.toJSON(m);
+            Harness.section(Message.getMessageType(c) + ", " + json.length() + " chars, generated codec " +
+                    (CodecPlan.forClass(c).codec != null ? "in use" : "not found"));
+            double oldEncode = Harness.time("encode, reflective", ITERATIONS, new Runnable() {
+                @Override
+                public void run() {
+                    Harness.sink = ReflectiveJSON.toJSON(message);
+                }
+            });
+            double newEncode = Harness.time("encode, codec plan", ITERATIONS, new Runnable() {
+                @Override
+                public void run() {
+                    Harness.sink = JSON.toJSON(message);
+                }
+            });
+            double oldDecode = Harness.time("decode, reflective", ITERATIONS, new Runnable() {
+                @Override
+                public void run() {
+                    Harness.sink = ReflectiveJSON.toMessage(json, c);
+                }
+            });
+            double newDecode = Harness.time("decode, codec plan", ITERATIONS, new Runnable() {
+                @Override
+                public void run() {
+                    Harness.sink = JSON.toMessage(json, c, null);
+                }
+            });
+            Harness.ratio("encode speed-up", oldEncode, newEncode);
+            Harness.ratio("decode speed-up", oldDecode, newDecode);
+        }
+    }
+
+    private static void checkRoundTrip(Message m) {
+        String type = Message.getMessageType(m.getClass());
+        String json = JSON.toJSON(m);
+        Message decoded = JSON.toMessage(json, m.getClass(), null);
+        Harness.check(decoded != null && JSON.toJSON(decoded).equals(json), type + " comes back the same");
+        Message fromOld = JSON.toMessage(ReflectiveJSON.toJSON(m), m.getClass(), null);
+        Harness.check(fromOld != null && JSON.toJSON(fromOld).equals(json), type + " decodes the same from the old encoder");
+        Message oldDecoded = ReflectiveJSON.toMessage(json, m.getClass());
+        Harness.check(oldDecoded != null && JSON.toJSON(oldDecoded).equals(json), type + " is read the same by the old decoder");
+    }
+
+    private static Header header(String frame) {
+        Header header = new Header();
+        header.seq = 123456;
+        header.stamp = new TimePrimitive();
+        header.stamp.secs = 1500000000;
+        header.stamp.nsecs = 987654321;
+        header.frame_id = frame;
+        return header;
+    }
+
+    static Odometry odometry() {
+        Odometry odom = new Odometry();
+        odom.header = header("odom");
+        odom.child_frame_id = "base_link";
+        odom.pose = new PoseWithCovariance();
+        odom.pose.pose = new Pose();
+        odom.pose.pose.position = new Point();
+        odom.pose.pose.position.x = 1.25;
+        odom.pose.pose.position.y = -3.5;
+        odom.pose.pose.orientation = new Quaternion();
+        odom.pose.pose.orientation.z = 0.38268343236508984;
+        odom.pose.pose.orientation.w = 0.9238795325112867;
+        odom.pose.covariance = new double[36];
+        for (int i = 0; i < 36; i += 7)
+            odom.pose.covariance[i] = 0.001 * (i + 1);
+        return odom;
+    }
+
+    static LaserScan laserScan() {
+        LaserScan scan = new LaserScan();
+        scan.header = header("laser");
+        scan.angle_min = -2.35619f;
+        scan.angle_max = 2.35619f;
+        scan.angle_increment = 0.00654f;
+        scan.scan_time = 0.1f;
+        scan.range_min = 0.05f;
+        scan.range_max = 30f;
+        scan.ranges = new float[720];
+        scan.intensities = new float[720];
+        for (int i = 0; i < 720; i++) {
+            scan.ranges[i] = 1.5f + (float) Math.sin(i * 0.01) * 0.75f;
+            scan.intensities[i] = i % 100;
+        }
+        return scan;
+    }
+
+    static Log log() {
+        Log log = new Log();
+        log.header = header("");
+        log.level = 2;
+        log.name = "/move_base";
+        log.msg = "Got new plan \"global\" with 42 poses";
+        log.file = "move_base.cpp";
+        log.function = "executeCycle";
+        log.line = 648;
+        log.topics = new String[] { "/rosout", "/move_base/status" };
+        return log;
+    }
+}
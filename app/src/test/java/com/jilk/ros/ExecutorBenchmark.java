@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.message.MessageType;
+import com.jilk.ros.rosbridge.ROSBridgeClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Topic handlers at 10, 100 and 1000 topics, each topic given its own
+//    thread as before, against the shared pool (and virtual threads, where
+//    the runtime has them). One thread hands messages to the topics in
+//    turn, as the receive thread does. Every handler checks that its
+//    messages come in order and that it is never run twice at once.
+
+public class ExecutorBenchmark {
+    private static final int[] TOPIC_COUNTS = { 10, 100, 1000 };
+    private static final int MESSAGES = 200000;
+    private static final int PORT = 9096;
+
+    @MessageType(string = "bench/Sequence")
+    public static class Sequence extends Message {
+        public int seq;
+    }
+
+    // Checks order and overlap for one topic
+    private static class Handler implements MessageHandler<Sequence> {
+        private final AtomicInteger running = new AtomicInteger();
+        private final CountDownLatch done;
+        private final AtomicLong faults;
+        private int expected;
+
+        Handler(CountDownLatch done, AtomicLong faults) {
+            this.done = done;
+            this.faults = faults;
+        }
+
+        @Override
+        public void onMessage(Sequence message) {
+            if (running.incrementAndGet() != 1)
+                faults.incrementAndGet();
+            if (message.seq != expected++)
+                faults.incrementAndGet();
+            running.decrementAndGet();
+            done.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LocalROSBridge server = new LocalROSBridge(PORT);
+        server.start();
+        Thread.sleep(300);
+        ROSBridgeClient client = new ROSBridgeClient(server.getURI());
+        try {
+            Harness.check(client.connect(), "client connects");
+            ExecutorService virtual = Topic.createVirtualThreadExecutor();
+            for (int topics : TOPIC_COUNTS) {
+                Harness.section(topics + " topics, " + MESSAGES + " messages");
+                double perTopic = run(client, topics, null, "thread per topic");
+                ExecutorService pool = Topic.createPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+                double pooled = run(client, topics, pool, "shared pool");
+                pool.shutdown();
+                Harness.ratio("shared pool speed-up", perTopic, pooled);
+                if (virtual != null)
+                    Harness.ratio("virtual threads speed-up", perTopic, run(client, topics, virtual, "virtual threads"));
+            }
+            if (virtual == null)
+                System.out.println("\nNo virtual threads on this runtime");
+            else virtual.shutdown();
+        }
+        finally {
+            client.disconnect();
+            server.shutdown();
+        }
+    }
+
+    // Runs MESSAGES through the topics on the shared executor, or on a
+    //    thread for each topic when executor is null, and returns the mean
+    //    time per message
+    private static double run(ROSBridgeClient client, int count, ExecutorService executor, String name)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(MESSAGES);
+        AtomicLong faults = new AtomicLong();
+        List<Topic<Sequence>> topics = new ArrayList<Topic<Sequence>>();
+        List<ExecutorService> own = new ArrayList<ExecutorService>();
+        int threadsBefore = Thread.activeCount();
+        for (int i = 0; i < count; i++) {
+            Topic<Sequence> topic = new Topic<Sequence>("/bench/" + i, Sequence.class, client);
+            if (executor == null) {
+                // started now, as the old per-topic threads were at subscribe
+                ExecutorService single = Executors.newSingleThreadExecutor();
+                single.execute(new Runnable() {
+                    @Override
+                    public void run() {}
+                });
+                own.add(single);
+                topic.setExecutor(single);
+            }
+            else topic.setExecutor(executor);
+            topic.subscribe(new Handler(done, faults));
+            topics.add(topic);
+        }
+
+        long start = System.nanoTime();
+        int[] next = new int[count];
+        for (int i = 0; i < MESSAGES; i++) {
+            int t = i % count;
+            Sequence message = new Sequence();
+            message.seq = next[t]++;
+            topics.get(t).onMessage(null, message);
+        }
+        boolean finished = done.await(60, TimeUnit.SECONDS);
+        double nanos = (double) (System.nanoTime() - start) / MESSAGES;
+        int threads = Thread.activeCount() - threadsBefore;
+
+        for (Topic<Sequence> topic : topics)
+            topic.unsubscribe();
+        for (ExecutorService single : own)
+            single.shutdown();
+        System.out.println(String.format("  %-44s %12.0f ns/msg  %5d threads", name, nanos, threads));
+        Harness.check(finished && faults.get() == 0, name + ": every message handled, in order, one at a time");
+        return nanos;
+    }
+}
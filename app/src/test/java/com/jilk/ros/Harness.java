@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+// Timing and checking for the benchmarks and checks in the test source
+//    set. Each of those is a main class run by hand with the test classes
+//    on the class path, e.g.
+//    java -cp <test classes, classes and libs> com.jilk.ros.CodecBenchmark
+//    A failed check throws, so the run ends with a stack trace and a
+//    non-zero exit status.
+
+final class Harness {
+    // Results are stored here so the JIT cannot discard the work
+    static volatile Object sink;
+
+    private Harness() {}
+
+    static void check(boolean ok, String what) {
+        if (!ok)
+            throw new IllegalStateException("FAILED: " + what);
+        System.out.println("  ok     " + what);
+    }
+
+    static void section(String title) {
+        System.out.println();
+        System.out.println(title);
+    }
+
+    // Runs task a tenth as many times to warm up, then iterations times,
+    //    and prints and returns the mean time per run
+    static double time(String name, int iterations, Runnable task) {
+        for (int i = 0; i < iterations / 10 + 1; i++)
+            task.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            task.run();
+        double nanos = (double) (System.nanoTime() - start) / iterations;
+        System.out.println(String.format("  %-44s %12.0f ns/op", name, nanos));
+        return nanos;
+    }
+
+    static void ratio(String name, double baseline, double nanos) {
+        System.out.println(String.format("  %-44s %12.2fx", name, baseline / nanos));
+    }
+}
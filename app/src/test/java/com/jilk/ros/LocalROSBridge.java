@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosbridge.operation.Publish;
+import com.jilk.ros.rosbridge.operation.ServiceResponse;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A stand-in for rosbridge on this machine, for the tests, benchmarks and
+//    checks in the test source set; it is never part of the app. It
+//    answers call_service from responses given to it, and publishes to
+//    whoever has subscribed, as CBOR to those that asked for compression
+//    "cbor" and as JSON to the rest. Only enough of the protocol is here
+//    for those programs.
+
+public class LocalROSBridge extends WebSocketServer {
+    // Makes the values of a response from the JSON args of a call; null
+    //    answers with result false
+    public interface Responder {
+        public Message respond(String args);
+    }
+
+    private final Map<String, Responder> responders = new ConcurrentHashMap<String, Responder>();
+    private final Set<String> dropped = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<WebSocket, Map<String, String>> subscriptions =
+            new ConcurrentHashMap<WebSocket, Map<String, String>>();
+    private final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor();
+    private volatile long responseDelay;
+    private final AtomicLong callCount = new AtomicLong();
+
+    public LocalROSBridge(int port) {
+        super(new InetSocketAddress("localhost", port));
+    }
+
+    public String getURI() {
+        return "ws://localhost:" + getPort();
+    }
+
+    public void respond(String service, Responder responder) {
+        responders.put(service, responder);
+    }
+
+    // Answers every call to service with the same values
+    public void respond(String service, final Message values) {
+        respond(service, new Responder() {
+            @Override
+            public Message respond(String args) {
+                return values;
+            }
+        });
+    }
+
+    // Calls to service get no response at all, as if it were lost
+    public void drop(String service) {
+        dropped.add(service);
+    }
+
+    // Time before each response is sent, in ms
+    public void setResponseDelay(long responseDelay) {
+        this.responseDelay = responseDelay;
+    }
+
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    public int getSubscriberCount(String topic) {
+        int count = 0;
+        for (Map<String, String> topics : subscriptions.values())
+            if (topics.containsKey(topic))
+                count++;
+        return count;
+    }
+
+    public void publish(String topic, Message msg) {
+        Publish publish = new Publish(topic, msg);
+        String json = null;
+        byte[] cbor = null;
+        for (Map.Entry<WebSocket, Map<String, String>> entry : subscriptions.entrySet()) {
+            String compression = entry.getValue().get(topic);
+            if (compression == null)
+                continue;
+            if (compression.equals(Topic.COMPRESSION_CBOR)) {
+                if (cbor == null)
+                    cbor = publish.toCBOR();
+                entry.getKey().send(cbor);
+            }
+            else {
+                if (json == null)
+                    json = publish.toJSON();
+                entry.getKey().send(json);
+            }
+        }
+    }
+
+    public void shutdown() {
+        delayer.shutdownNow();
+        try {
+            stop();
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        subscriptions.put(conn, new ConcurrentHashMap<String, String>());
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        subscriptions.remove(conn);
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        JSONObject op;
+        try {
+            op = (JSONObject) new JSONParser().parse(message);
+        }
+        catch (ParseException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        String name = (String) op.get("op");
+        Map<String, String> topics = subscriptions.get(conn);
+        if ("subscribe".equals(name) && topics != null) {
+            String compression = (String) op.get("compression");
+            topics.put((String) op.get("topic"), (compression == null) ? "none" : compression);
+        }
+        else if ("unsubscribe".equals(name) && topics != null)
+            topics.remove((String) op.get("topic"));
+        else if ("call_service".equals(name))
+            call(conn, (String) op.get("service"), (String) op.get("id"), op.get("args"));
+    }
+
+    private void call(final WebSocket conn, String service, String id, Object args) {
+        callCount.incrementAndGet();
+        if (dropped.contains(service))
+            return;
+        Responder responder = responders.get(service);
+        Message values = (responder == null) ? null :
+                responder.respond((args == null) ? null : args.toString());
+        ServiceResponse response = new ServiceResponse(service);
+        response.id = id;
+        response.result = (values != null);
+        response.values = values;
+        final String json = response.toJSON();
+        long delay = responseDelay;
+        if (delay <= 0)
+            conn.send(json);
+        else delayer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (conn.isOpen())
+                    conn.send(json);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        ex.printStackTrace();
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.message.MessageType;
+import com.jilk.ros.rosbridge.implementation.JSON;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Encode and decode times for one array of each primitive type, through
+//    the typed loops in JSONEncoder and JSONDecoder, against the old path
+//    that boxed every element through java.lang.reflect.Array. Each array
+//    is also checked to come back exactly as it went.
+
+public class PrimitiveArrayBenchmark {
+    private static final int LENGTH = 4096;
+    private static final int ITERATIONS = 2000;
+
+    @MessageType(string = "bench/Doubles")
+    public static class Doubles extends Message {
+        public double[] data;
+    }
+
+    @MessageType(string = "bench/Floats")
+    public static class Floats extends Message {
+        public float[] data;
+    }
+
+    @MessageType(string = "bench/Longs")
+    public static class Longs extends Message {
+        public long[] data;
+    }
+
+    @MessageType(string = "bench/Ints")
+    public static class Ints extends Message {
+        public int[] data;
+    }
+
+    @MessageType(string = "bench/Shorts")
+    public static class Shorts extends Message {
+        public short[] data;
+    }
+
+    @MessageType(string = "bench/Bytes")
+    public static class Bytes extends Message {
+        public byte[] data;
+    }
+
+    @MessageType(string = "bench/Booleans")
+    public static class Booleans extends Message {
+        public boolean[] data;
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        Doubles doubles = new Doubles();
+        doubles.data = new double[LENGTH];
+        Floats floats = new Floats();
+        floats.data = new float[LENGTH];
+        Longs longs = new Longs();
+        longs.data = new long[LENGTH];
+        Ints ints = new Ints();
+        ints.data = new int[LENGTH];
+        Shorts shorts = new Shorts();
+        shorts.data = new short[LENGTH];
+        Bytes bytes = new Bytes();
+        bytes.data = new byte[LENGTH];
+        Booleans booleans = new Booleans();
+        booleans.data = new boolean[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            doubles.data[i] = random.nextGaussian() * 100;
+            floats.data[i] = (float) (random.nextGaussian() * 10);
+            longs.data[i] = random.nextLong();
+            ints.data[i] = random.nextInt();
+            shorts.data[i] = (short) random.nextInt();
+            bytes.data[i] = (byte) random.nextInt();
+            booleans.data[i] = random.nextBoolean();
+        }
+
+        Harness.section("Round trips");
+        Harness.check(Arrays.equals(doubles.data, roundTrip(doubles).data), "double[] comes back the same");
+        Harness.check(Arrays.equals(floats.data, roundTrip(floats).data), "float[] comes back the same");
+        Harness.check(Arrays.equals(longs.data, roundTrip(longs).data), "long[] comes back the same");
+        Harness.check(Arrays.equals(ints.data, roundTrip(ints).data), "int[] comes back the same");
+        Harness.check(Arrays.equals(shorts.data, roundTrip(shorts).data), "short[] comes back the same");
+        Harness.check(Arrays.equals(bytes.data, roundTrip(bytes).data), "byte[] comes back the same");
+        Harness.check(Arrays.equals(booleans.data, roundTrip(booleans).data), "boolean[] comes back the same");
+
+        Message[] samples = new Message[] { doubles, floats, longs, ints, shorts, bytes, booleans };
+        for (Message m : samples)
+            compare(m);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Message> T roundTrip(T m) {
+        return (T) JSON.toMessage(JSON.toJSON(m), m.getClass(), null);
+    }
+
+    private static void compare(final Message message) {
+        final Class c = message.getClass();
+        final String json = JSON.toJSON(message);
+        Harness.section(c.getSimpleName() + ", " + LENGTH + " elements, " + json.length() + " chars");
+        double oldEncode = Harness.time("encode, boxing", ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                Harness.sink = ReflectiveJSON.toJSON(message);
+            }
+        });
+        double newEncode = Harness.time("encode, typed loop", ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                Harness.sink = JSON.toJSON(message);
+            }
+        });
+        double oldDecode = Harness.time("decode, boxing", ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                Harness.sink = ReflectiveJSON.toMessage(json, c);
+            }
+        });
+        double newDecode = Harness.time("decode, typed loop", ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                Harness.sink = JSON.toMessage(json, c, null);
+            }
+        });
+        Harness.ratio("encode speed-up", oldEncode, newEncode);
+        Harness.ratio("decode speed-up", oldDecode, newDecode);
+    }
+}
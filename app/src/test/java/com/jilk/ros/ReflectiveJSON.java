@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosbridge.implementation.Base64;
+import com.jilk.ros.rosbridge.indication.Indication;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+
+// The JSON conversion as it was before codec plans, kept only as the
+//    baseline for the benchmarks: every message goes through JSON-simple
+//    objects, fields and annotations are looked up by reflection on every
+//    call, and array elements are boxed one at a time through
+//    java.lang.reflect.Array. Indicated fields are not handled, as the
+//    benchmarks only use plain messages.
+
+final class ReflectiveJSON {
+    private ReflectiveJSON() {}
+
+    static String toJSON(Message m) {
+        return toJSONObject(m).toJSONString();
+    }
+
+    static Message toMessage(String json, Class c) {
+        try {
+            return toMessage((JSONObject) new JSONParser().parse(json), c);
+        }
+        catch (ParseException ex) {
+            return null;
+        }
+    }
+
+    // *** Encode *** //
+
+    private static JSONObject toJSONObject(Object o) {
+        JSONObject result = new JSONObject();
+        for (Field f : o.getClass().getFields()) {
+            Object value = get(f, o);
+            if (value != null) {
+                if (Indication.isBase64Encoded(f))
+                    result.put(f.getName(), Base64.encodeToString((byte[]) value, false));
+                else result.put(f.getName(), toJSONElement(value));
+            }
+        }
+        return result;
+    }
+
+    private static JSONArray toJSONArray(Object array) {
+        JSONArray result = new JSONArray();
+        for (int i = 0; i < Array.getLength(array); i++) {
+            Object element = Array.get(array, i);
+            if (element != null)
+                result.add(toJSONElement(element));
+        }
+        return result;
+    }
+
+    private static Object toJSONElement(Object element) {
+        Class c = element.getClass();
+        if (Message.isPrimitive(c))
+            return element;
+        if (c.isArray())
+            return toJSONArray(element);
+        return toJSONObject(element);
+    }
+
+    private static Object get(Field f, Object o) {
+        try {
+            return f.get(o);
+        }
+        catch (IllegalAccessException ex) {
+            return null;
+        }
+    }
+
+    // *** Decode *** //
+
+    private static Message toMessage(JSONObject jo, Class c) {
+        try {
+            Message result = (Message) c.newInstance();
+            for (Field f : c.getFields()) {
+                Class fc = f.getType().isArray() ? f.getType().getComponentType() : f.getType();
+                Object element = jo.get(f.getName());
+                if (element != null)
+                    f.set(result, toField(element, fc, f));
+            }
+            return result;
+        }
+        catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static Object toArray(JSONArray ja, Class c) {
+        Object result = Array.newInstance(c, ja.size());
+        for (int i = 0; i < ja.size(); i++) {
+            Object element = ja.get(i);
+            if (element instanceof JSONObject)
+                Array.set(result, i, toMessage((JSONObject) element, c));
+            else if (element != null)
+                Array.set(result, i, toPrimitive(element, c));
+        }
+        return result;
+    }
+
+    private static Object toField(Object element, Class fc, Field f) {
+        if (element instanceof JSONObject)
+            return toMessage((JSONObject) element, fc);
+        if (element instanceof JSONArray)
+            return toArray((JSONArray) element, fc);
+        if (Indication.isBase64Encoded(f))
+            return Base64.decode((String) element);
+        return toPrimitive(element, fc);
+    }
+
+    private static Object toPrimitive(Object o, Class c) {
+        if (c.equals(double.class) || c.equals(Double.class))
+            return new Double(((Number) o).doubleValue());
+        if (c.equals(float.class) || c.equals(Float.class))
+            return new Float(((Number) o).floatValue());
+        if (c.equals(long.class) || c.equals(Long.class))
+            return new Long(((Number) o).longValue());
+        if (c.equals(int.class) || c.equals(Integer.class))
+            return new Integer(((Number) o).intValue());
+        if (c.equals(short.class) || c.equals(Short.class))
+            return new Short(((Number) o).shortValue());
+        if (c.equals(byte.class) || c.equals(Byte.class))
+            return new Byte(((Number) o).byteValue());
+        return o;
+    }
+}
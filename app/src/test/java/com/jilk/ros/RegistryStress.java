@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosbridge.FullMessageHandler;
+import com.jilk.ros.rosbridge.implementation.HandlerList;
+import com.jilk.ros.rosbridge.implementation.Registry;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lookups and deliveries at full rate on several threads, while other
+//    threads register and unregister, and add and remove handlers, as fast
+//    as they can. Entries that stay registered throughout must be found
+//    on every lookup, by name and by handle, and a handler that stays in a
+//    HandlerList must get every message; an entry that comes and goes may
+//    be missing but must never be the wrong one.
+
+public class RegistryStress {
+    private static final int READERS = 4;
+    private static final int WRITERS = 2;
+    private static final int PERMANENT = 32;
+    private static final int TRANSIENT = 64;
+    private static final long RUN_MILLIS = 3000;
+
+    private static final Class KIND = Message.class;
+    private static final Class OTHER_KIND = String.class;
+
+    public static void main(String[] args) throws Exception {
+        checkRegistry();
+        checkHandlerList();
+    }
+
+    private static void checkRegistry() throws Exception {
+        Harness.section("Registry, " + READERS + " readers, " + WRITERS + " writers, " + RUN_MILLIS + " ms");
+        final Registry<String> registry = new Registry<String>();
+        final String[] permanent = new String[PERMANENT];
+        final int[] handles = new int[PERMANENT];
+        for (int i = 0; i < PERMANENT; i++) {
+            permanent[i] = "/permanent/" + i;
+            registry.register(KIND, permanent[i], permanent[i]);
+            handles[i] = registry.getNames().find(permanent[i]);
+        }
+        final String[] transients = new String[TRANSIENT];
+        for (int i = 0; i < TRANSIENT; i++)
+            transients[i] = "/transient/" + i;
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong lookups = new AtomicLong();
+        final AtomicLong changes = new AtomicLong();
+        final AtomicLong missing = new AtomicLong();
+        final AtomicLong wrong = new AtomicLong();
+        Runnable[] tasks = new Runnable[READERS + WRITERS];
+        for (int r = 0; r < READERS; r++) {
+            tasks[r] = new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    for (int i = 0; running.get(); i++) {
+                        int p = i % PERMANENT;
+                        String byName = registry.lookup(KIND, permanent[p]);
+                        String byHandle = registry.lookup(KIND, handles[p]);
+                        if (byName == null || byHandle == null)
+                            missing.incrementAndGet();
+                        else if (!byName.equals(permanent[p]) || !byHandle.equals(permanent[p]))
+                            wrong.incrementAndGet();
+                        String t = transients[i % TRANSIENT];
+                        String found = registry.lookup(KIND, t);
+                        if (found != null && !found.equals(t))
+                            wrong.incrementAndGet();
+                        count += 3;
+                    }
+                    lookups.addAndGet(count);
+                }
+            };
+        }
+        for (int w = 0; w < WRITERS; w++) {
+            final int offset = w;
+            tasks[READERS + w] = new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    for (int i = offset; running.get(); i += WRITERS) {
+                        String t = transients[i % TRANSIENT];
+                        Class kind = (i % 3 == 0) ? OTHER_KIND : KIND;
+                        registry.register(kind, t, t);
+                        registry.unregister(kind, t);
+                        count += 2;
+                    }
+                    changes.addAndGet(count);
+                }
+            };
+        }
+        run(tasks, running);
+        System.out.println(String.format("  %-44s %12d", "lookups", lookups.get()));
+        System.out.println(String.format("  %-44s %12d", "registers and unregisters", changes.get()));
+        Harness.check(missing.get() == 0, "permanent entries are found on every lookup");
+        Harness.check(wrong.get() == 0, "no lookup returns another name's entry");
+        boolean intact = true;
+        for (int i = 0; i < PERMANENT; i++)
+            intact &= permanent[i].equals(registry.lookup(KIND, permanent[i]));
+        Harness.check(intact, "permanent entries are all still there afterwards");
+    }
+
+    private static class Counter implements FullMessageHandler {
+        final AtomicLong count = new AtomicLong();
+
+        @Override
+        public void onMessage(String id, Message message) {
+            count.incrementAndGet();
+        }
+    }
+
+    private static void checkHandlerList() throws Exception {
+        Harness.section("HandlerList, " + READERS + " delivering, " + WRITERS + " adding and removing, " +
+                RUN_MILLIS + " ms");
+        final HandlerList list = new HandlerList();
+        final Counter permanent = new Counter();
+        list.add(permanent);
+        final Counter[] transients = new Counter[TRANSIENT];
+        for (int i = 0; i < TRANSIENT; i++)
+            transients[i] = new Counter();
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong changes = new AtomicLong();
+        final Message message = CodecBenchmark.log();
+        Runnable[] tasks = new Runnable[READERS + WRITERS];
+        for (int r = 0; r < READERS; r++) {
+            tasks[r] = new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    while (running.get()) {
+                        list.onMessage(null, message);
+                        count++;
+                    }
+                    delivered.addAndGet(count);
+                }
+            };
+        }
+        for (int w = 0; w < WRITERS; w++) {
+            final int offset = w;
+            tasks[READERS + w] = new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    for (int i = offset; running.get(); i += WRITERS) {
+                        Counter c = transients[i % TRANSIENT];
+                        list.add(c);
+                        list.remove(c);
+                        count += 2;
+                    }
+                    changes.addAndGet(count);
+                }
+            };
+        }
+        run(tasks, running);
+        System.out.println(String.format("  %-44s %12d", "deliveries", delivered.get()));
+        System.out.println(String.format("  %-44s %12d", "adds and removes", changes.get()));
+        Harness.check(permanent.count.get() == delivered.get(), "the permanent handler gets every message");
+        Harness.check(list.size() == 1, "only the permanent handler is left afterwards");
+    }
+
+    // Starts a thread for each task, all at once, lets them run for
+    //    RUN_MILLIS, and waits for them all to stop
+    private static void run(Runnable[] tasks, AtomicBoolean running) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            final Runnable body = tasks[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException ex) {
+                        return;
+                    }
+                    body.run();
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        for (Thread t : threads)
+            t.join();
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros;
+
+import com.jilk.ros.message.Message;
+import com.jilk.ros.rosapi.message.Type;
+import com.jilk.ros.rosbridge.ROSBridgeClient;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Service calls against LocalROSBridge: N calls at once, made blocking
+//    from a pool of threads and made async with callAll, with a delay on
+//    each response as a stand-in for the network and the service itself.
+//    Before that, checks of the call table (timeouts, late responses,
+//    cancelling, results kept past a deadline). CallFuture composition is
+//    covered by CallFutureTest.
+
+public class ServiceBenchmark {
+    private static final int PORT = 9095;
+    private static final String ECHO = "/bench/echo";
+    private static final String DROPPED = "/bench/dropped";
+    private static final int[] CALL_COUNTS = { 100, 1000 };
+    private static final long RESPONSE_DELAY = 5;   // ms
+    private static final int BLOCKING_THREADS = 16;
+
+    public static void main(String[] args) throws Exception {
+        LocalROSBridge server = new LocalROSBridge(PORT);
+        server.respond(ECHO, new LocalROSBridge.Responder() {
+            // args are the call's field values as a JSON array
+            @Override
+            public Message respond(String args) {
+                try {
+                    return new Type((String) ((JSONArray) new JSONParser().parse(args)).get(0));
+                }
+                catch (ParseException ex) {
+                    return null;
+                }
+            }
+        });
+        server.drop(DROPPED);
+        server.start();
+        Thread.sleep(300);
+        ROSBridgeClient client = new ROSBridgeClient(server.getURI());
+        try {
+            Harness.check(client.connect(), "client connects");
+            checkCallTable(server, client);
+            for (int n : CALL_COUNTS)
+                compare(server, client, n);
+        }
+        finally {
+            client.disconnect();
+            server.shutdown();
+        }
+    }
+
+    private static void checkCallTable(LocalROSBridge server, ROSBridgeClient client) throws Exception {
+        Harness.section("Call table");
+        Service<Type, Type> echo = new Service<Type, Type>(ECHO, Type.class, Type.class, client);
+        Service<Type, Type> dropped = new Service<Type, Type>(DROPPED, Type.class, Type.class, client);
+
+        Harness.check("a".equals(echo.callBlocking(new Type("a"), 2000).type), "a call is answered");
+        Harness.check(echo.getPendingCount() == 0 && echo.getInFlightCount() == 0, "and leaves nothing behind");
+
+        long start = System.nanoTime();
+        CallFuture<Type> lost = dropped.callAsync(new Type("lost"), 200);
+        Harness.check(failsWith(lost, TimeoutException.class), "an unanswered async call fails with a timeout");
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Harness.check(waited >= 150 && waited < 1000, "after about its timeout (" + waited + " ms)");
+        Harness.check(dropped.callBlocking(new Type("lost"), 200) == null, "an unanswered blocking call returns null");
+        Harness.check(dropped.getTimeoutCount() == 2, "both are counted as timeouts");
+        Harness.check(dropped.getPendingCount() == 0 && dropped.getInFlightCount() == 0,
+                "and neither is left in the table");
+
+        server.setResponseDelay(300);
+        Harness.check(echo.callBlocking(new Type("slow"), 100) == null, "a call answered after its timeout returns null");
+        CallFuture<Type> cancelledCall = echo.callAsync(new Type("cancelled"));
+        Harness.check(cancelledCall.cancel(true) && cancelledCall.isCancelled(), "an async call can be cancelled");
+        String id = echo.call(new Type("cancelled by id"));
+        Harness.check(echo.cancel(id) && !echo.cancel(id), "a call is cancelled by id only once");
+        Harness.check(echo.take(id) == null, "take on a cancelled call returns null");
+        Thread.sleep(500);
+        Harness.check(echo.getLateResponseCount() == 3, "responses to all three come later and are counted late");
+        Harness.check(echo.getCancelledCount() == 2 && echo.getTimeoutCount() == 1, "cancels and timeouts are counted");
+        Harness.check(echo.getPendingCount() == 0 && echo.getInFlightCount() == 0, "nothing is left in the table");
+        server.setResponseDelay(0);
+
+        echo.setTimeout(100);
+        id = echo.call(new Type("kept"));
+        Thread.sleep(300);
+        Type kept = echo.poll(id);
+        Harness.check(kept != null && "kept".equals(kept.type), "a result answered in time is kept past the deadline");
+        echo.setTimeout(Service.NO_TIMEOUT);
+    }
+
+    private static boolean failsWith(Future<?> future, Class<? extends Throwable> cause) throws InterruptedException {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            return false;
+        }
+        catch (ExecutionException ex) {
+            return cause.isInstance(ex.getCause());
+        }
+        catch (CancellationException ex) {
+            return cause.isInstance(ex);
+        }
+        catch (TimeoutException ex) {
+            return false;
+        }
+    }
+
+    private static void compare(LocalROSBridge server, ROSBridgeClient client, int n) throws Exception {
+        Harness.section(n + " calls, " + RESPONSE_DELAY + " ms per response");
+        server.setResponseDelay(RESPONSE_DELAY);
+        final Service<Type, Type> echo = new Service<Type, Type>(ECHO, Type.class, Type.class, client);
+        final List<Type> args = new ArrayList<Type>(n);
+        for (int i = 0; i < n; i++)
+            args.add(new Type("call " + i));
+
+        final Type[] blockingResults = new Type[n];
+        ExecutorService pool = Executors.newFixedThreadPool(BLOCKING_THREADS);
+        long start = System.nanoTime();
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int t = 0; t < BLOCKING_THREADS; t++) {
+            final int first = t;
+            workers.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = first; i < args.size(); i += BLOCKING_THREADS)
+                            blockingResults[i] = echo.callBlocking(args.get(i), 10000);
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }));
+        }
+        for (Future<?> worker : workers)
+            worker.get();
+        double blocking = (double) (System.nanoTime() - start) / 1000000;
+        pool.shutdown();
+        System.out.println(String.format("  %-44s %12.1f ms", "blocking, " + BLOCKING_THREADS + " threads", blocking));
+        Harness.check(answered(args, Arrays.asList(blockingResults)), "blocking calls all answered correctly");
+
+        start = System.nanoTime();
+        List<Type> asyncResults = echo.callAll(args).get(10, TimeUnit.SECONDS);
+        double async = (double) (System.nanoTime() - start) / 1000000;
+        System.out.println(String.format("  %-44s %12.1f ms", "async, callAll", async));
+        Harness.check(answered(args, asyncResults), "async calls all answered correctly, in order");
+        Harness.ratio("async speed-up", blocking, async);
+        server.setResponseDelay(0);
+    }
+
+    private static boolean answered(List<Type> args, List<Type> results) {
+        if (results.size() != args.size())
+            return false;
+        for (int i = 0; i < args.size(); i++)
+            if (results.get(i) == null || !args.get(i).type.equals(results.get(i).type))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros.rosbridge;
+
+import com.jilk.ros.LocalROSBridge;
+import com.jilk.ros.Topic;
+import com.jilk.ros.rosapi.message.Empty;
+import com.jilk.ros.rosapi.message.Topics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// The rosapi helpers against LocalROSBridge when rosapi does not answer in
+//    time: the blocking ones return null and the async ones fail with a
+//    TimeoutException, and neither throws a NullPointerException at the
+//    caller. Each test has its own server, on a port of its own.
+
+public class ROSBridgeClientTest {
+    private static final String TOPICS = "/rosapi/topics";
+    private static final long TIMEOUT = 200;    // ms
+    private static int nextPort = 9110;
+
+    private LocalROSBridge server;
+    private ROSBridgeClient client;
+
+    @Before
+    public void connect() throws InterruptedException {
+        server = new LocalROSBridge(nextPort++);
+        server.drop(TOPICS);
+        server.start();
+        Thread.sleep(300);
+        client = new ROSBridgeClient(server.getURI());
+        assertTrue("client connects", client.connect());
+        client.getService(TOPICS, Empty.class, Topics.class).setTimeout(TIMEOUT);
+    }
+
+    @After
+    public void disconnect() throws Exception {
+        client.disconnect();
+        server.shutdown();
+    }
+
+    @Test
+    public void timedOutGetTopicsReturnsNull() throws InterruptedException {
+        long start = System.nanoTime();
+        assertNull(client.getTopics());
+        assertTrue("waited for the timeout", (System.nanoTime() - start) / 1000000 >= TIMEOUT);
+        assertEquals(1, server.getCallCount());
+    }
+
+    @Test
+    public void timedOutGetTopicsAsyncFailsWithTimeout() throws InterruptedException {
+        try {
+            client.getTopicsAsync().get();
+            fail("answered");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause().toString(), ex.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void verifyOnATimedOutListSaysSo() throws InterruptedException {
+        Topic<Empty> topic = new Topic<Empty>("/chatter", Empty.class, client);
+        try {
+            topic.verify();
+            fail("verified");
+        }
+        catch (RuntimeException ex) {
+            assertEquals("Topic list not available.", ex.getMessage());
+        }
+    }
+}
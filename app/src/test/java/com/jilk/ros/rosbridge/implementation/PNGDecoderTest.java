@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// PNGDecoder on images made here the way rosbridge makes them (JSON in the
+//    pixels of a square image, the last row padded with newlines), with
+//    every row filter and the data split over several IDAT chunks; and on
+//    damaged and hostile images, each of which must be refused with an
+//    IOException, before any allocation their header asks for.
+
+public class PNGDecoderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int GRAY = 0;
+    private static final int RGB = 2;
+    private static final int RGBA = 6;
+
+    private final String text = sampleText(2000);
+
+    @After
+    public void restoreLimit() {
+        PNGDecoder.setMaxTextLength(PNGDecoder.DEFAULT_MAX_TEXT_LENGTH);
+    }
+
+    @Test
+    public void decodesEveryRowFilter() throws IOException {
+        for (int filter = 0; filter <= 4; filter++)
+            assertEquals("row filter " + filter, text, PNGDecoder.decode(encode(text, RGB, filter)));
+    }
+
+    @Test
+    public void decodesGrayscale() throws IOException {
+        assertEquals(text, PNGDecoder.decode(encode(text, GRAY, 4)));
+    }
+
+    @Test
+    public void decodesRGBAIgnoringAlpha() throws IOException {
+        for (int filter = 0; filter <= 4; filter++)
+            assertEquals("row filter " + filter, text, PNGDecoder.decode(encode(text, RGBA, filter)));
+    }
+
+    @Test
+    public void decodesBase64() throws IOException {
+        assertEquals(text, PNGDecoder.decode(Base64.encodeToString(encode(text, RGB, 4), false)));
+    }
+
+    @Test
+    public void removesTheNewlinePadding() throws IOException {
+        // 3 x 3 pixels hold 27 bytes: no padding, one byte and eight
+        for (int length : new int[] { 27, 26, 19 }) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < length; i++)
+                sb.append((char) ('a' + i % 26));
+            String small = sb.toString();
+            assertEquals(length + " chars", small, PNGDecoder.decode(encode(small, RGB, 0)));
+        }
+    }
+
+    @Test
+    public void refusesWhatIsNotAPNG() {
+        refused(Arrays.copyOf("GIF89a".getBytes(UTF8), 64));
+    }
+
+    @Test
+    public void refusesAnImageCutOff() throws IOException {
+        byte[] good = encode(text, RGB, 4);
+        refused(Arrays.copyOf(good, 20));
+        refused(Arrays.copyOf(good, good.length / 2));
+    }
+
+    @Test
+    public void refusesAnOversizedHeader() throws IOException {
+        byte[] good = encode(text, RGB, 4);
+        refused(withSize(good, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        refused(withSize(good, Integer.MAX_VALUE, 1));
+        refused(withSize(good, 20000, 20000));     // over the text limit
+        refused(withSize(good, 3000, 3000));       // under it, but more than the data could inflate to
+    }
+
+    @Test
+    public void refusesABadSize() throws IOException {
+        byte[] good = encode(text, RGB, 4);
+        refused(withSize(good, -1, 10));
+        refused(withSize(good, 10, 0));
+    }
+
+    @Test
+    public void refusesAnImageOverTheLimitSet() throws IOException {
+        byte[] good = encode(text, RGB, 4);
+        PNGDecoder.setMaxTextLength(1000);
+        refused(good);
+        PNGDecoder.setMaxTextLength(PNGDecoder.DEFAULT_MAX_TEXT_LENGTH);
+        assertEquals(text, PNGDecoder.decode(good));
+    }
+
+    @Test
+    public void refusesAHugeChunk() throws IOException {
+        refused(withInt(encode(text, RGB, 4), 8 + 25, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void refusesAnUnknownRowFilter() throws IOException {
+        refused(image(new byte[] { 9, 'a', 'b', 'c' }, 1, 1, RGB));
+    }
+
+    // Refused with an IOException, and nothing else
+    private static void refused(byte[] png) {
+        try {
+            PNGDecoder.decode(png);
+            fail("decoded");
+        }
+        catch (IOException ex) {
+            // as it should be
+        }
+    }
+
+    // JSON-ish text with some characters outside ASCII
+    private static String sampleText(int length) {
+        StringBuilder sb = new StringBuilder(length + 40);
+        sb.append('[');
+        for (int i = 0; sb.length() < length; i++)
+            sb.append("{\"seq\":").append(i).append(",\"frame\":\"caf\u00e9 \u2192 \u03c0\"},");
+        sb.append("{}]");
+        return sb.toString();
+    }
+
+    // As rosbridge does: the smallest square that holds the text, three
+    //    bytes to a pixel, padded out with newlines
+    private static byte[] encode(String text, int colorType, int filter) throws IOException {
+        byte[] bytes = text.getBytes(UTF8);
+        int usable = (colorType == GRAY) ? 1 : 3;
+        int channels = (colorType == RGBA) ? 4 : usable;
+        int side = (int) Math.ceil(Math.sqrt((double) bytes.length / usable));
+        int stride = side * channels;
+        byte[] raw = new byte[side * stride];
+        int from = 0;
+        for (int i = 0; i < raw.length; i += channels) {
+            for (int c = 0; c < usable; c++)
+                raw[i + c] = (from < bytes.length) ? bytes[from++] : (byte) '\n';
+            if (channels > usable)
+                raw[i + usable] = (byte) 0xff;
+        }
+        byte[] filtered = new byte[side * (stride + 1)];
+        byte[] prior = new byte[stride];
+        for (int row = 0; row < side; row++) {
+            byte[] current = Arrays.copyOfRange(raw, row * stride, (row + 1) * stride);
+            int out = row * (stride + 1);
+            filtered[out] = (byte) filter;
+            for (int i = 0; i < stride; i++) {
+                int a = (i >= channels) ? current[i - channels] & 0xff : 0;
+                int b = prior[i] & 0xff;
+                int c = (i >= channels) ? prior[i - channels] & 0xff : 0;
+                filtered[out + 1 + i] = (byte) (current[i] - predict(filter, a, b, c));
+            }
+            prior = current;
+        }
+        return image(filtered, side, side, colorType);
+    }
+
+    private static int predict(int filter, int a, int b, int c) {
+        switch (filter) {
+            case 1:
+                return a;
+            case 2:
+                return b;
+            case 3:
+                return (a + b) >> 1;
+            case 4:
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                return (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+            default:
+                return 0;
+        }
+    }
+
+    // A PNG of the given filtered scanlines, deflated and split over IDAT
+    //    chunks of at most 1000 bytes
+    private static byte[] image(byte[] scanlines, int width, int height, int colorType) throws IOException {
+        Deflater deflater = new Deflater();
+        deflater.setInput(scanlines);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished())
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        byte[] data = compressed.toByteArray();
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream(data.length + 100);
+        png.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) colorType;
+        chunk(png, "IHDR", header, 0, header.length);
+        for (int i = 0; i < data.length; i += 1000)
+            chunk(png, "IDAT", data, i, Math.min(1000, data.length - i));
+        chunk(png, "IEND", new byte[0], 0, 0);
+        return png.toByteArray();
+    }
+
+    private static void chunk(ByteArrayOutputStream png, String type, byte[] data, int offset, int length) {
+        byte[] b = new byte[12 + length];
+        putInt(b, 0, length);
+        for (int i = 0; i < 4; i++)
+            b[4 + i] = (byte) type.charAt(i);
+        System.arraycopy(data, offset, b, 8, length);
+        CRC32 crc = new CRC32();
+        crc.update(b, 4, 4 + length);
+        putInt(b, 8 + length, (int) crc.getValue());
+        png.write(b, 0, b.length);
+    }
+
+    private static byte[] withSize(byte[] png, int width, int height) {
+        return withInt(withInt(png, 16, width), 20, height);
+    }
+
+    private static byte[] withInt(byte[] png, int offset, int value) {
+        byte[] copy = png.clone();
+        putInt(copy, offset, value);
+        return copy;
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ * 
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ * 
+ */
+package com.jilk.ros.rosbridge.implementation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+// The order frames leave the writer in, with a sink that stays busy after
+//    the first frame until the test lets it go, so that what is sent while
+//    it is busy all goes in the next batch. Queued frames go ahead of
+//    mailbox frames, so a mailbox must be removed before an unadvertise is
+//    sent, or its publish follows the unadvertise.
+
+public class SendQueueTest {
+    private RecordingSink sink;
+    private SendQueue queue;
+
+    @Before
+    public void start() throws InterruptedException {
+        sink = new RecordingSink();
+        queue = new SendQueue(sink);
+        queue.start("SendQueueTest");
+        queue.send("advertise");
+        sink.awaitWritten(1);
+    }
+
+    @After
+    public void stop() {
+        queue.stop();
+    }
+
+    @Test
+    public void aQueuedFrameGoesAheadOfTheMailboxes() throws InterruptedException {
+        queue.sendLatest("/cmd_vel", "publish", 0);
+        queue.send("unadvertise");
+        sink.release(queue);
+        assertEquals(Arrays.<Object>asList("advertise", "unadvertise", "publish"), sink.awaitWritten(3));
+    }
+
+    @Test
+    public void aRemovedMailboxSendsNothingAfterTheUnadvertise() throws InterruptedException {
+        queue.sendLatest("/cmd_vel", "publish", 0);
+        queue.removeMailbox("/cmd_vel");
+        queue.send("unadvertise");
+        sink.release(queue);
+        assertEquals(Arrays.<Object>asList("advertise", "unadvertise"), sink.awaitWritten(2));
+        Thread.sleep(100);
+        assertEquals(2, sink.written().size());
+    }
+
+    @Test
+    public void aMailboxCanBeUsedAgainAfterItIsRemoved() throws InterruptedException {
+        queue.sendLatest("/cmd_vel", "old", 0);
+        queue.removeMailbox("/cmd_vel");
+        queue.send("advertise again");
+        queue.sendLatest("/cmd_vel", "new", 0);
+        sink.release(queue);
+        assertEquals(Arrays.<Object>asList("advertise", "advertise again", "new"), sink.awaitWritten(3));
+    }
+
+    // Busy from the first write until released
+    private static class RecordingSink implements SendQueue.Sink {
+        private final List<Object> written = new ArrayList<Object>();
+        private boolean released;
+
+        @Override
+        public synchronized void write(List<Object> frames) {
+            written.addAll(frames);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized boolean isBusy() {
+            return !released;
+        }
+
+        @Override
+        public void resume() {
+        }
+
+        void release(SendQueue queue) {
+            synchronized (this) {
+                released = true;
+            }
+            queue.drained();
+        }
+
+        synchronized List<Object> written() {
+            return new ArrayList<Object>(written);
+        }
+
+        synchronized List<Object> awaitWritten(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            long left;
+            while (written.size() < count && (left = end - System.currentTimeMillis()) > 0)
+                wait(left);
+            return new ArrayList<Object>(written);
+        }
+    }
+}
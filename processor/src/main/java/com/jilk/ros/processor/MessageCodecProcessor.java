@@ -0,0 +1,386 @@
+/**
+ * Copyright (c) 2014 Jilk Systems, Inc.
+ *
+ * This file is part of the Java ROSBridge Client.
+ *
+ * The Java ROSBridge Client is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Java ROSBridge Client is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Java ROSBridge Client.  If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package com.jilk.ros.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+// Generates a MessageCodec for every @MessageType class, named
+//    <binary class name>$$Codec in the same package, which CodecPlan picks up
+//    at runtime. The generated code reads and writes each public field with
+//    straight-line calls into JSONEncoder and JSONDecoder, so encoding and
+//    decoding such a class involves no reflection.
+//
+//    Classes the generated code can't handle the same way as the reflective
+//    path are skipped and keep using their CodecPlan: abstract and generic
+//    classes, classes with an @Indicated field (the operations, whose field
+//    class depends on another field), classes that hide an inherited field,
+//    non-static inner classes and classes without a nullary constructor.
+//    The first three are meant for reflection and are skipped silently; the
+//    rest could be changed to get a codec, so each gets a warning.
+//
+//    The annotations are matched by name so that this module does not
+//    depend on the app.
+
+@SupportedAnnotationTypes(MessageCodecProcessor.MESSAGE_TYPE)
+public class MessageCodecProcessor extends AbstractProcessor {
+    static final String MESSAGE_TYPE = "com.jilk.ros.message.MessageType";
+    static final String MESSAGE = "com.jilk.ros.message.Message";
+    static final String INDICATED = "com.jilk.ros.rosbridge.indication.Indicated";
+    static final String AS_ARRAY = "com.jilk.ros.rosbridge.indication.AsArray";
+    static final String BASE64_ENCODED = "com.jilk.ros.rosbridge.indication.Base64Encoded";
+    static final String CODEC = "com.jilk.ros.rosbridge.implementation.MessageCodec";
+    static final String ENCODER = "com.jilk.ros.rosbridge.implementation.JSONEncoder";
+    static final String DECODER = "com.jilk.ros.rosbridge.implementation.JSONDecoder";
+    static final String CODEC_SUFFIX = "$$Codec";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+        TypeElement messageType = processingEnv.getElementUtils().getTypeElement(MESSAGE_TYPE);
+        if (messageType == null)
+            return false;
+        for (Element e : env.getElementsAnnotatedWith(messageType)) {
+            if (e.getKind() != ElementKind.CLASS)
+                continue;
+            TypeElement type = (TypeElement) e;
+            List<VariableElement> fields = collectFields(type);
+            if (leftToReflection(type, fields))
+                continue;
+            String reason = unsupported(type, fields);
+            if (reason != null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                        "No codec generated for " + type.getQualifiedName() + ": " + reason, type);
+                continue;
+            }
+            try {
+                writeCodec(type, fields);
+            }
+            catch (IOException ex) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Unable to write codec for " + type.getQualifiedName() + ": " + ex.getMessage(), type);
+            }
+        }
+        return false;
+    }
+
+    // *** Class analysis *** //
+
+    // Public instance fields in the order Class.getFields() gives them:
+    //    the class's own fields first, then those of each superclass.
+    private List<VariableElement> collectFields(TypeElement type) {
+        List<VariableElement> result = new ArrayList<VariableElement>();
+        TypeElement t = type;
+        while (t != null) {
+            for (Element e : t.getEnclosedElements()) {
+                if (e.getKind() == ElementKind.FIELD &&
+                        e.getModifiers().contains(Modifier.PUBLIC) &&
+                        !e.getModifiers().contains(Modifier.STATIC))
+                    result.add((VariableElement) e);
+            }
+            TypeMirror superclass = t.getSuperclass();
+            t = (superclass.getKind() == TypeKind.DECLARED) ?
+                    (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        return result;
+    }
+
+    // Classes that are meant to go through reflection, and are skipped
+    //    without a word: abstract and generic classes, and those with an
+    //    @Indicated field, whose type is only known at run time
+    private boolean leftToReflection(TypeElement type, List<VariableElement> fields) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT) || !type.getTypeParameters().isEmpty())
+            return true;
+        for (VariableElement f : fields) {
+            if (hasAnnotation(f, INDICATED))
+                return true;
+        }
+        return false;
+    }
+
+    // Why a codec can't be generated, in a way the class could be changed
+    //    to allow, or null if it can
+    private String unsupported(TypeElement type, List<VariableElement> fields) {
+        if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC))
+            return "inner class";
+        if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS)
+            return "local class";
+        if (type.getModifiers().contains(Modifier.PRIVATE))
+            return "private class";
+        if (!isSubtype(type.asType(), MESSAGE))
+            return "does not extend Message";
+        if (!hasNullaryConstructor(type))
+            return "no nullary constructor";
+        Set<String> names = new HashSet<String>();
+        for (VariableElement f : fields) {
+            if (!names.add(f.getSimpleName().toString()))
+                return "field '" + f.getSimpleName() + "' hides an inherited field";
+            if (f.getModifiers().contains(Modifier.FINAL))
+                return "final field '" + f.getSimpleName() + "'";
+            if (valueKind(f.asType()) == null)
+                return "unsupported type for field '" + f.getSimpleName() + "'";
+        }
+        return null;
+    }
+
+    private boolean hasNullaryConstructor(TypeElement type) {
+        boolean anyConstructor = false;
+        for (Element e : type.getEnclosedElements()) {
+            if (e.getKind() == ElementKind.CONSTRUCTOR) {
+                anyConstructor = true;
+                if (((ExecutableElement) e).getParameters().isEmpty() &&
+                        !e.getModifiers().contains(Modifier.PRIVATE))
+                    return true;
+            }
+        }
+        return !anyConstructor;
+    }
+
+    private boolean hasAnnotation(Element e, String name) {
+        for (AnnotationMirror a : e.getAnnotationMirrors()) {
+            if (((TypeElement) a.getAnnotationType().asElement()).getQualifiedName().contentEquals(name))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isSubtype(TypeMirror t, String name) {
+        TypeElement e = processingEnv.getElementUtils().getTypeElement(name);
+        return e != null && processingEnv.getTypeUtils().isAssignable(
+                processingEnv.getTypeUtils().erasure(t),
+                processingEnv.getTypeUtils().erasure(e.asType()));
+    }
+
+    // What the generated code does with a value of this type: the name of a
+    //    primitive or boxed type, "String", "BigInteger", "Message", or null
+    //    if it can't be handled.
+    private String valueKind(TypeMirror t) {
+        switch (t.getKind()) {
+            case BOOLEAN: return "boolean";
+            case BYTE:    return "byte";
+            case SHORT:   return "short";
+            case INT:     return "int";
+            case LONG:    return "long";
+            case FLOAT:   return "float";
+            case DOUBLE:  return "double";
+            case ARRAY:
+                TypeMirror component = ((ArrayType) t).getComponentType();
+                return (component.getKind() == TypeKind.ARRAY) ? null : valueKind(component);
+            case DECLARED:
+                String name = qualifiedName(t);
+                if (name.equals("java.lang.String"))     return "String";
+                if (name.equals("java.lang.Boolean"))    return "Boolean";
+                if (name.equals("java.lang.Byte"))       return "Byte";
+                if (name.equals("java.lang.Short"))      return "Short";
+                if (name.equals("java.lang.Integer"))    return "Integer";
+                if (name.equals("java.lang.Long"))       return "Long";
+                if (name.equals("java.lang.Float"))      return "Float";
+                if (name.equals("java.lang.Double"))     return "Double";
+                if (name.equals("java.math.BigInteger")) return "BigInteger";
+                if (((DeclaredType) t).getTypeArguments().isEmpty() && isSubtype(t, MESSAGE))
+                    return "Message";
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private String qualifiedName(TypeMirror t) {
+        return ((TypeElement) ((DeclaredType) t).asElement()).getQualifiedName().toString();
+    }
+
+    // *** Code generation *** //
+
+    private void writeCodec(TypeElement type, List<VariableElement> fields) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String simpleName = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1);
+        String codecName = simpleName + CODEC_SUFFIX;
+        String typeName = type.getQualifiedName().toString();
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                (packageName.isEmpty() ? "" : packageName + ".") + codecName, type);
+        PrintWriter w = new PrintWriter(file.openWriter());
+        try {
+            w.println("// Generated by " + MessageCodecProcessor.class.getName() + ". Do not edit.");
+            if (!packageName.isEmpty())
+                w.println("package " + packageName + ";");
+            w.println();
+            w.println("public final class " + codecName + " implements " + CODEC + "<" + typeName + "> {");
+            w.print("    private static final String[] NAMES = {");
+            for (int i = 0; i < fields.size(); i++)
+                w.print((i > 0 ? ", " : "") + "\"" + fields.get(i).getSimpleName() + "\"");
+            w.println("};");
+            w.println();
+
+            w.println("    @Override");
+            w.println("    public void encode(StringBuilder sb, " + typeName + " m) {");
+            if (needsStart(fields))
+                w.println("        int start = sb.length();");
+            w.println("        sb.append('{');");
+            int written = NONE_WRITTEN;
+            for (VariableElement f : fields)
+                written = writeEncodeField(w, f, written);
+            w.println("        sb.append('}');");
+            w.println("    }");
+            w.println();
+
+            w.println("    @Override");
+            w.println("    public " + typeName + " decode(" + DECODER + " d) {");
+            w.println("        " + typeName + " m = new " + typeName + "();");
+            w.println("        if (d.beginObject()) {");
+            w.println("            do {");
+            w.println("                switch (d.nextKey(NAMES)) {");
+            for (int i = 0; i < fields.size(); i++)
+                w.println("                    case " + i + ": " + decodeStatement(fields.get(i)) + " break;");
+            w.println("                }");
+            w.println("            } while (d.nextMember());");
+            w.println("        }");
+            w.println("        return m;");
+            w.println("    }");
+            w.println("}");
+        }
+        finally {
+            w.close();
+        }
+    }
+
+    // Whether an earlier field has been written decides if a comma is
+    //    needed: never before the first field, always after a primitive
+    //    (which can't be null), and otherwise checked at runtime.
+    private static final int NONE_WRITTEN = 0;
+    private static final int MAYBE_WRITTEN = 1;
+    private static final int WRITTEN = 2;
+
+    // Whether any field needs the runtime check, and so the start of the
+    //    object to check against
+    private static boolean needsStart(List<VariableElement> fields) {
+        int written = NONE_WRITTEN;
+        for (VariableElement f : fields) {
+            if (written == MAYBE_WRITTEN)
+                return true;
+            if (f.asType().getKind().isPrimitive())
+                written = WRITTEN;
+            else if (written == NONE_WRITTEN)
+                written = MAYBE_WRITTEN;
+        }
+        return false;
+    }
+
+    private int writeEncodeField(PrintWriter w, VariableElement f, int written) {
+        String name = f.getSimpleName().toString();
+        String value = "m." + name;
+        TypeMirror t = f.asType();
+        String kind = valueKind(t);
+        boolean primitive = t.getKind().isPrimitive();
+        String indent = primitive ? "        " : "            ";
+
+        if (!primitive)
+            w.println("        if (" + value + " != null) {");
+        if (written == MAYBE_WRITTEN)
+            w.println(indent + "if (sb.length() > start + 1) sb.append(',');");
+        String comma = (written == WRITTEN) ? "," : "";
+        w.println(indent + "sb.append(\"" + comma + "\\\"" + name + "\\\":\");");
+        if (t.getKind() == TypeKind.ARRAY) {
+            if (kind.equals("byte") && hasAnnotation(f, BASE64_ENCODED))
+                w.println(indent + ENCODER + ".writeBase64(sb, " + value + ");");
+            else w.println(indent + ENCODER + ".writeArray(sb, " + value + ");");
+        }
+        else if (kind.equals("Message")) {
+            if (hasAnnotation(f, AS_ARRAY))
+                w.println(indent + ENCODER + ".writeMessageAsArray(sb, " + value + ");");
+            else w.println(indent + ENCODER + ".writeMessage(sb, " + value + ");");
+        }
+        else if (kind.equals("String"))
+            w.println(indent + ENCODER + ".writeString(sb, " + value + ");");
+        else if (kind.equalsIgnoreCase("double"))
+            w.println(indent + ENCODER + ".writeDouble(sb, " + value + ");");
+        else if (kind.equalsIgnoreCase("float"))
+            w.println(indent + ENCODER + ".writeFloat(sb, " + value + ");");
+        else w.println(indent + "sb.append(" + value + ");");
+        if (!primitive)
+            w.println("        }");
+        if (primitive)
+            return WRITTEN;
+        return (written == NONE_WRITTEN) ? MAYBE_WRITTEN : written;
+    }
+
+    private String decodeStatement(VariableElement f) {
+        String target = "m." + f.getSimpleName() + " = ";
+        TypeMirror t = f.asType();
+        String kind = valueKind(t);
+
+        if (t.getKind() == TypeKind.ARRAY) {
+            TypeMirror component = ((ArrayType) t).getComponentType();
+            if (component.getKind().isPrimitive()) {
+                if (kind.equals("byte") && hasAnnotation(f, BASE64_ENCODED))
+                    return target + "d.readBase64();";
+                return target + "d.read" + capitalize(kind) + "Array();";
+            }
+            if (kind.equals("String"))
+                return target + "d.readStringArray();";
+            String componentName = qualifiedName(component);
+            return target + "(" + componentName + "[]) d.readArray(" + componentName + ".class);";
+        }
+        if (t.getKind().isPrimitive())
+            return target + "d.read" + capitalize(kind) + "();";
+        if (kind.equals("Message")) {
+            String method = hasAnnotation(f, AS_ARRAY) ? "readMessageAsArray" : "readMessage";
+            return target + "(" + qualifiedName(t) + ") d." + method + "(" + qualifiedName(t) + ".class);";
+        }
+        if (kind.equals("String"))
+            return target + "d.readString();";
+        if (kind.equals("BigInteger"))
+            return target + "d.readBigInteger();";
+        String primitive = kind.equals("Integer") ? "int" : kind.toLowerCase();
+        return target + "java.lang." + kind + ".valueOf(d.read" + capitalize(primitive) + "());";
+    }
+
+    private static String capitalize(String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+}